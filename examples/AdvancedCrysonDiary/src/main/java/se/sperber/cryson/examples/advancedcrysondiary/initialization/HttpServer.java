@@ -29,6 +29,7 @@ public class HttpServer {
     jettySpringHelper.addJerseyServlet(context, "/cryson/*", CrysonFrontendService.class.getPackage().getName());
     jettySpringHelper.addJerseyServlet(context, "/services/*", DiaryService.class.getPackage().getName());
     jettySpringHelper.addSecurityFilter(context, "/*");
+    jettySpringHelper.addOpenSessionInViewFilter(context, "/cryson/*");
     context.addAliasCheck(new AllowSymLinkAliasChecker());
 
     server.start();
@@ -0,0 +1,16 @@
+package se.sperber.cryson.annotation;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a versioned entity class whose stale patches are merged field by field, when the fields they change were
+ * not changed by the intervening versions, instead of failing with a conflict. Full updates carry no record of which
+ * fields the client changed, so they are always version checked and never merged.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface CrysonMergeable {
+}
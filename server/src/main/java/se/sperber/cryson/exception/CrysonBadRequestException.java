@@ -0,0 +1,34 @@
+/*
+  Cryson
+  
+  Copyright 2011-2012 Björn Sperber (cryson@sperber.se)
+  
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  
+  http://www.apache.org/licenses/LICENSE-2.0
+  
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package se.sperber.cryson.exception;
+
+import javax.ws.rs.core.Response;
+
+public class CrysonBadRequestException extends CrysonException {
+
+  public CrysonBadRequestException(String message, Throwable cause) {
+    super(message, cause);
+  }
+
+  @Override
+  public int getStatusCode() {
+    return Response.Status.BAD_REQUEST.getStatusCode();
+  }
+
+}
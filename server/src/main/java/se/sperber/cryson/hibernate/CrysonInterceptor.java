@@ -27,8 +27,11 @@ import org.springframework.stereotype.Component;
 
 import javax.annotation.PostConstruct;
 import java.io.Serializable;
+import java.lang.reflect.Method;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 @Component
 public class CrysonInterceptor extends EmptyInterceptor {
@@ -37,11 +40,27 @@ public class CrysonInterceptor extends EmptyInterceptor {
   private DefaultListableBeanFactory defaultListableBeanFactory;
   
   Set<Interceptor> interceptors;
+
+  private final Set<Class<?>> classesWithInterceptedState = Collections.newSetFromMap(new ConcurrentHashMap<Class<?>, Boolean>());
   
+  private boolean interceptingUpdates;
+
   @PostConstruct
   public void findInterceptors() {
     interceptors = new HashSet<Interceptor>(defaultListableBeanFactory.getBeansOfType(Interceptor.class).values());
     interceptors.remove(this);
+    for(Interceptor interceptor : interceptors) {
+      interceptingUpdates = interceptingUpdates || !(interceptor instanceof EmptyInterceptor) || overridesOnFlushDirty(interceptor);
+    }
+  }
+
+  private boolean overridesOnFlushDirty(Interceptor interceptor) {
+    try {
+      Method onFlushDirty = interceptor.getClass().getMethod("onFlushDirty", Object.class, Serializable.class, Object[].class, Object[].class, String[].class, Type[].class);
+      return onFlushDirty.getDeclaringClass() != EmptyInterceptor.class;
+    } catch(NoSuchMethodException e) {
+      return true;
+    }
   }
 
   @Override
@@ -50,6 +69,7 @@ public class CrysonInterceptor extends EmptyInterceptor {
     for(Interceptor interceptor : interceptors) {
       result = interceptor.onFlushDirty(entity, id, currentState, previousState, propertyNames, types) || result;
     }
+    rememberInterceptedState(entity, result);
     return result;
   }
 
@@ -59,7 +79,24 @@ public class CrysonInterceptor extends EmptyInterceptor {
     for(Interceptor interceptor : interceptors) {
       result = interceptor.onSave(entity, id, state, propertyNames, types) || result;
     }
+    rememberInterceptedState(entity, result);
     return result;
   }
 
+  // Whether any interceptor may need to see updates, with their prior state, as they are flushed
+  public boolean isInterceptingUpdates() {
+    return interceptingUpdates;
+  }
+
+  // True once any interceptor has modified the state of an entity of the class
+  public boolean hasInterceptedState(Class<?> entityClass) {
+    return classesWithInterceptedState.contains(entityClass);
+  }
+
+  private void rememberInterceptedState(Object entity, boolean modified) {
+    if (modified) {
+      classesWithInterceptedState.add(entity.getClass());
+    }
+  }
+
 }
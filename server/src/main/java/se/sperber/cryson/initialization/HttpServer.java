@@ -49,6 +49,7 @@ public class HttpServer {
   @Value("${cryson.httpserver.user.service_context_path}") private String userServiceContextPath;
   @Value("${cryson.httpserver.user.service_package}") private String userServicePackage;
   @Value("${cryson.security.enabled}") private Boolean securityEnabled;
+  @Value("${cryson.streaming.enabled:true}") private Boolean streamingEnabled;
   
   private Server server;
   private ServerConnector connector;
@@ -67,6 +68,10 @@ public class HttpServer {
     if (securityEnabled) {
       jettySpringHelper.addSecurityFilter(crysonContext, "/*");
     }
+    if (streamingEnabled) {
+      jettySpringHelper.addOpenSessionInViewFilter(crysonContext, crysonContextPath);
+    }
+    jettySpringHelper.addReadPermissionsFilter(crysonContext, crysonContextPath);
   }
 
   public void startServer() throws Exception {
@@ -70,4 +70,11 @@ public class ListenerNotificationBatch implements CommitNotification {
     deletedEntities.add(entity);
   }
 
+  // Forgets the notifications of a rolled back attempt, before the commit is retried
+  public void clear() {
+    createdEntities.clear();
+    updatedEntities.clear();
+    deletedEntities.clear();
+  }
+
 }
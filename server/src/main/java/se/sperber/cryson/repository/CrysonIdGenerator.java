@@ -0,0 +1,55 @@
+/*
+  Cryson
+  
+  Copyright 2011-2012 Björn Sperber (cryson@sperber.se)
+  
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  
+  http://www.apache.org/licenses/LICENSE-2.0
+  
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package se.sperber.cryson.repository;
+
+import org.hibernate.MappingException;
+import org.hibernate.dialect.Dialect;
+import org.hibernate.id.enhanced.TableGenerator;
+import org.hibernate.type.Type;
+
+import java.util.Properties;
+
+/**
+ * Table backed id generator handing out pooled blocks of ids per entity table from memory, so that
+ * persisting an entity needs neither an immediate INSERT nor a database round trip for most ids.
+ * Map an id with @GeneratedValue(generator = CrysonIdGenerator.NAME) to use it.
+ */
+public class CrysonIdGenerator extends TableGenerator {
+
+  public static final String NAME = "cryson_id";
+
+  public static final String DEFAULT_TABLE = "cryson_ids";
+  public static final int DEFAULT_BLOCK_SIZE = 100;
+
+  @Override
+  public void configure(Type type, Properties params, Dialect dialect) throws MappingException {
+    setDefault(params, TABLE_PARAM, DEFAULT_TABLE);
+    setDefault(params, CONFIG_PREFER_SEGMENT_PER_ENTITY, "true");
+    setDefault(params, INCREMENT_PARAM, Integer.toString(DEFAULT_BLOCK_SIZE));
+    setDefault(params, OPT_PARAM, "pooled");
+    super.configure(type, params, dialect);
+  }
+
+  private void setDefault(Properties params, String name, String value) {
+    if (!params.containsKey(name)) {
+      params.setProperty(name, value);
+    }
+  }
+
+}
@@ -20,25 +20,57 @@ package se.sperber.cryson.repository;
 
 import com.google.common.base.Function;
 import com.google.common.collect.FluentIterable;
+import com.google.common.collect.Lists;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.sun.jersey.core.util.MultivaluedMapImpl;
 import org.hibernate.Criteria;
-import org.hibernate.FetchMode;
+import org.hibernate.Filter;
+import org.hibernate.Hibernate;
 import org.hibernate.Query;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
 import org.hibernate.SessionFactory;
+import org.hibernate.StaleObjectStateException;
+import org.hibernate.annotations.SQLDelete;
+import org.hibernate.annotations.SQLUpdate;
+import org.hibernate.criterion.Criterion;
 import org.hibernate.criterion.Example;
 import org.hibernate.criterion.MatchMode;
+import org.hibernate.criterion.Order;
+import org.hibernate.criterion.Projections;
 import org.hibernate.criterion.Restrictions;
+import org.hibernate.engine.spi.EntityKey;
+import org.hibernate.engine.spi.NamedQueryDefinition;
+import org.hibernate.engine.spi.NamedSQLQueryDefinition;
+import org.hibernate.engine.spi.PersistenceContext;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.metadata.ClassMetadata;
+import org.hibernate.persister.entity.AbstractEntityPersister;
+import org.hibernate.persister.entity.EntityPersister;
 import org.hibernate.transform.DistinctRootEntityResultTransformer;
+import org.hibernate.type.CollectionType;
+import org.hibernate.type.EntityType;
+import org.hibernate.type.Type;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.security.access.prepost.PostAuthorize;
-import org.springframework.security.access.prepost.PostFilter;
+import org.springframework.security.access.prepost.PreAuthorize;
 import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.stereotype.Repository;
+import se.sperber.cryson.annotation.CrysonMergeable;
+import se.sperber.cryson.exception.CrysonBadRequestException;
+import se.sperber.cryson.exception.CrysonEntityNotFoundException;
 import se.sperber.cryson.exception.CrysonValidationFailedException;
+import se.sperber.cryson.hibernate.CrysonInterceptor;
+import se.sperber.cryson.metrics.CrysonMetrics;
+import se.sperber.cryson.security.ReadCriterionProvider;
+import se.sperber.cryson.security.ReadPermissions;
 import se.sperber.cryson.security.Restrictable;
+import se.sperber.cryson.serialization.AssociationTree;
 import se.sperber.cryson.serialization.ReflectionHelper;
 import se.sperber.cryson.serialization.UnauthorizedEntity;
 
@@ -47,6 +79,12 @@ import javax.validation.Validation;
 import javax.validation.ValidatorFactory;
 import javax.ws.rs.core.MultivaluedMap;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -60,9 +98,36 @@ public class CrysonRepository {
   @Autowired
   private ReflectionHelper reflectionHelper;
 
+  @Autowired
+  private FetchPlanExecutor fetchPlanExecutor;
+
+  @Autowired
+  private CrysonInterceptor crysonInterceptor;
+
   @Value("${cryson.validation.enabled}")
   private boolean validationsEnabled;
 
+  @Value("${cryson.fetch.batch_size:500}")
+  private int batchSize;
+
+  @Value("${cryson.security.enabled:false}")
+  private boolean securityEnabled;
+
+  @Autowired
+  private MergeableChangeLog mergeableChangeLog;
+
+  @Autowired
+  private CrysonMetrics crysonMetrics;
+
+  @Value("${cryson.merge.retries:3}")
+  private int mergeRetries;
+
+  public static final String MERGED_UPDATES_METRIC = "commit.merged_updates";
+
+  static final String COUNT_QUERY_SUFFIX = ".count";
+
+  private final Map<Class<?>, ReadCriterionProvider> readCriterionProviders = new HashMap<Class<?>, ReadCriterionProvider>();
+
   private ValidatorFactory validatorFactory = Validation.buildDefaultValidatorFactory();
 
   public Object findById(String entityClassName, Long id, Set<String> associationsToFetch) {
@@ -72,15 +137,19 @@ public class CrysonRepository {
             .setResultTransformer(DistinctRootEntityResultTransformer.INSTANCE)
             .setCacheable(true);
 
-    setFetchModeForAssociations(criteria, associationsToFetch);
+    AssociationTree fetchPlan = AssociationTree.parse(associationsToFetch);
+    fetchPlanExecutor.joinToOneAssociations(criteria, entityClassName, fetchPlan);
 
     Object foundEntity = criteria.uniqueResult();
+    if (foundEntity != null) {
+      fetchPlanExecutor.fetch(Collections.singletonList(foundEntity), fetchPlan);
+    }
     return getEntityOrUnauthorizedEntity(foundEntity);
   }
 
   private Object getEntityOrUnauthorizedEntity(Object entity) {
     if (entity instanceof Restrictable) {
-      if (((Restrictable) entity).isReadableBy(SecurityContextHolder.getContext().getAuthentication())) {
+      if (ReadPermissions.isReadable(entity)) {
         return entity;
       } else {
         return new UnauthorizedEntity(entity.getClass().getSimpleName(), reflectionHelper.getPrimaryKey(entity));
@@ -89,6 +158,82 @@ public class CrysonRepository {
     return entity;
   }
 
+  // Committed entities are normally served as the in-session instances. Only classes whose state may differ from
+  // the database after a flush are evicted and re-read, with one IN query per class.
+  public List<Object> findCommitted(List<Object> entities) {
+    Map<Class<?>, List<Object>> rereadEntitiesByClass = new HashMap<Class<?>, List<Object>>();
+    for(Object entity : entities) {
+      Class<?> entityClass = Hibernate.getClass(entity);
+      if (requiresReread(entityClass)) {
+        List<Object> classEntities = rereadEntitiesByClass.get(entityClass);
+        if (classEntities == null) {
+          classEntities = new ArrayList<Object>();
+          rereadEntitiesByClass.put(entityClass, classEntities);
+        }
+        classEntities.add(entity);
+      }
+    }
+
+    Map<Object, Object> rereadEntities = new IdentityHashMap<Object, Object>();
+    for(Map.Entry<Class<?>, List<Object>> classEntities : rereadEntitiesByClass.entrySet()) {
+      for(List<Object> batch : Lists.partition(classEntities.getValue(), batchSize)) {
+        rereadEntities.putAll(reread(classEntities.getKey(), batch));
+      }
+    }
+
+    List<Object> result = new ArrayList<Object>(entities.size());
+    for(Object entity : entities) {
+      result.add(getEntityOrUnauthorizedEntity(rereadEntities.containsKey(entity) ? rereadEntities.get(entity) : entity));
+    }
+    return result;
+  }
+
+  private boolean requiresReread(Class<?> entityClass) {
+    if (Restrictable.class.isAssignableFrom(entityClass) || crysonInterceptor.hasInterceptedState(entityClass)) {
+      return true;
+    }
+    ClassMetadata classMetadata = sessionFactory.getClassMetadata(entityClass);
+    if (!(classMetadata instanceof AbstractEntityPersister)) {
+      return true;
+    }
+    AbstractEntityPersister persister = (AbstractEntityPersister)classMetadata;
+    if (persister.hasInsertGeneratedProperties() || persister.hasUpdateGeneratedProperties()) {
+      return true;
+    }
+    for(String[] formulaTemplates : persister.getSubclassPropertyFormulaTemplateClosure()) {
+      for(String formulaTemplate : formulaTemplates) {
+        if (formulaTemplate != null) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  private Map<Object, Object> reread(Class<?> entityClass, List<Object> entities) {
+    Session session = sessionFactory.getCurrentSession();
+    List<Long> ids = new ArrayList<Long>(entities.size());
+    for(Object entity : entities) {
+      ids.add(reflectionHelper.getPrimaryKey(entity));
+      session.evict(entity);
+    }
+
+    Map<Long, Object> foundEntitiesById = new HashMap<Long, Object>();
+    List foundEntities = session.createCriteria(entityClass)
+            .add(Restrictions.in("id", ids))
+            .setResultTransformer(DistinctRootEntityResultTransformer.INSTANCE)
+            .list();
+    for(Object foundEntity : foundEntities) {
+      foundEntitiesById.put(reflectionHelper.getPrimaryKey(foundEntity), foundEntity);
+    }
+
+    Map<Object, Object> rereadEntities = new IdentityHashMap<Object, Object>();
+    for(int ix = 0;ix < entities.size();ix++) {
+      rereadEntities.put(entities.get(ix), foundEntitiesById.get(ids.get(ix)));
+    }
+    return rereadEntities;
+  }
+
   public List findByIds(final String entityClassName, List<Long> ids, Set<String> associationsToFetch) {
     Criteria criteria = sessionFactory.getCurrentSession()
             .createCriteria(entityClassName)
@@ -96,9 +241,7 @@ public class CrysonRepository {
             .setResultTransformer(DistinctRootEntityResultTransformer.INSTANCE)
             .setCacheable(true);
 
-    setFetchModeForAssociations(criteria, associationsToFetch);
-
-    List<Object> foundEntities = criteria.list();
+    List<Object> foundEntities = listWithFetchPlan(criteria, entityClassName, associationsToFetch);
 
     return FluentIterable.from(foundEntities).transform(new Function<Object, Object>() {
       public Object apply(Object object) {
@@ -107,37 +250,89 @@ public class CrysonRepository {
     }).toList();
   }
 
-  @PostFilter("hasPermission(filterObject, 'read')")
   public List findByExample(String entityClassName, Object exampleEntity, Set<String> associationsToFetch) {
-    Criteria criteria = sessionFactory.getCurrentSession()
-            .createCriteria(entityClassName)
+    Criteria criteria = createReadCriteria(entityClassName)
             .add(Example.create(exampleEntity).enableLike(MatchMode.EXACT))
             .setResultTransformer(DistinctRootEntityResultTransformer.INSTANCE)
             .setCacheable(true);
 
-    setFetchModeForAssociations(criteria, associationsToFetch);
-
-    return criteria.list();
+    return filterReadable(listWithFetchPlan(criteria, entityClassName, associationsToFetch));
   }
 
-  @PostFilter("hasPermission(filterObject, 'read')")
   public List findAll(String entityClassName, Set<String> associationsToFetch) {
-    Criteria criteria = sessionFactory.getCurrentSession()
-            .createCriteria(entityClassName)
+    Criteria criteria = createReadCriteria(entityClassName)
+            .setResultTransformer(DistinctRootEntityResultTransformer.INSTANCE)
+            .setCacheable(true);
+
+    return filterReadable(listWithFetchPlan(criteria, entityClassName, associationsToFetch));
+  }
+
+  // Read rules of ReadCriterionProviders are applied in SQL, filterReadable still checks every loaded entity
+  private Criteria createReadCriteria(String entityClassName) {
+    Criteria criteria = sessionFactory.getCurrentSession().createCriteria(entityClassName);
+    if (securityEnabled) {
+      ClassMetadata classMetadata = sessionFactory.getClassMetadata(entityClassName);
+      for(Class<?> klazz = classMetadata != null ? classMetadata.getMappedClass() : null;klazz != null;klazz = klazz.getSuperclass()) {
+        ReadCriterionProvider readCriterionProvider = readCriterionProviders.get(klazz);
+        if (readCriterionProvider != null) {
+          Criterion readCriterion = readCriterionProvider.getReadCriterion(SecurityContextHolder.getContext().getAuthentication());
+          if (readCriterion != null) {
+            criteria.add(readCriterion);
+          }
+          break;
+        }
+      }
+    }
+    return criteria;
+  }
+
+  // Paginated finds are ordered by id, so that the id of the last entity of a full page is a stable cursor for the next
+  public Page findByExample(String entityClassName, Object exampleEntity, Set<String> associationsToFetch, Pagination pagination) {
+    Criteria criteria = createReadCriteria(entityClassName)
+            .add(Example.create(exampleEntity).enableLike(MatchMode.EXACT))
             .setResultTransformer(DistinctRootEntityResultTransformer.INSTANCE)
             .setCacheable(true);
+    Criteria countCriteria = createReadCriteria(entityClassName)
+            .add(Example.create(exampleEntity).enableLike(MatchMode.EXACT));
+
+    return pageWithFetchPlan(criteria, countCriteria, entityClassName, associationsToFetch, pagination);
+  }
 
-    setFetchModeForAssociations(criteria, associationsToFetch);
+  public Page findAll(String entityClassName, Set<String> associationsToFetch, Pagination pagination) {
+    Criteria criteria = createReadCriteria(entityClassName)
+            .setResultTransformer(DistinctRootEntityResultTransformer.INSTANCE)
+            .setCacheable(true);
+    Criteria countCriteria = createReadCriteria(entityClassName);
 
-    return criteria.list();
+    return pageWithFetchPlan(criteria, countCriteria, entityClassName, associationsToFetch, pagination);
   }
 
-  @PostFilter("hasPermission(filterObject, 'read')")
-  public List<Object> findByNamedQuery(String queryName, MultivaluedMap<String,String> queryParameters) {
+  public List<Object> findByNamedQuery(String queryName, MultivaluedMap<String,String> queryParameters, Set<String> associationsToFetch) {
     Query query = sessionFactory.getCurrentSession().getNamedQuery(queryName)
             .setResultTransformer(DistinctRootEntityResultTransformer.INSTANCE)
             .setCacheable(true);
 
+    setQueryParameters(query, queryParameters);
+
+    return filterReadable(listWithFetchPlan(query, associationsToFetch));
+  }
+
+  public Page findByNamedQuery(String queryName, MultivaluedMap<String,String> queryParameters, Set<String> associationsToFetch, Pagination pagination) {
+    Query query = sessionFactory.getCurrentSession().getNamedQuery(queryName)
+            .setResultTransformer(DistinctRootEntityResultTransformer.INSTANCE)
+            .setCacheable(true);
+    setQueryParameters(query, queryParameters);
+
+    Query countQuery = null;
+    if (pagination.isTotalCountRequested() && hasNamedQuery(queryName + COUNT_QUERY_SUFFIX)) {
+      countQuery = sessionFactory.getCurrentSession().getNamedQuery(queryName + COUNT_QUERY_SUFFIX);
+      setQueryParameters(countQuery, declaredParameters(countQuery, queryParameters));
+    }
+
+    return pageWithFetchPlan(query, countQuery, queryName, associationsToFetch, pagination);
+  }
+
+  private void setQueryParameters(Query query, MultivaluedMap<String,String> queryParameters) {
     for(String parameterName : queryParameters.keySet()) {
       List<String> parameters = queryParameters.get(parameterName);
       if (parameters.size() > 1) {
@@ -146,16 +341,52 @@ public class CrysonRepository {
         query.setParameter(parameterName, parameters.get(0));
       }
     }
+  }
 
-    return query.list();
+  private MultivaluedMap<String,String> declaredParameters(Query query, MultivaluedMap<String,String> queryParameters) {
+    MultivaluedMap<String,String> declaredParameters = new MultivaluedMapImpl();
+    Set<String> declaredNames = new HashSet<String>(Arrays.asList(query.getNamedParameters()));
+    for(String parameterName : queryParameters.keySet()) {
+      if (declaredNames.contains(parameterName)) {
+        declaredParameters.put(parameterName, queryParameters.get(parameterName));
+      }
+    }
+    return declaredParameters;
   }
 
-  @PostFilter("hasPermission(filterObject, 'read')")
-  public List<Object> findByNamedQueryJson(String queryName, JsonElement parameters) {
+  public List<Object> findByNamedQueryJson(String queryName, JsonElement parameters, Set<String> associationsToFetch) {
     Query query = sessionFactory.getCurrentSession().getNamedQuery(queryName)
             .setResultTransformer(DistinctRootEntityResultTransformer.INSTANCE)
             .setCacheable(true);
 
+    setQueryParameters(query, parameters);
+
+    return filterReadable(listWithFetchPlan(query, associationsToFetch));
+  }
+
+  public Page findByNamedQueryJson(String queryName, JsonElement parameters, Set<String> associationsToFetch, Pagination pagination) {
+    Query query = sessionFactory.getCurrentSession().getNamedQuery(queryName)
+            .setResultTransformer(DistinctRootEntityResultTransformer.INSTANCE)
+            .setCacheable(true);
+    setQueryParameters(query, parameters);
+
+    Query countQuery = null;
+    if (pagination.isTotalCountRequested() && hasNamedQuery(queryName + COUNT_QUERY_SUFFIX)) {
+      countQuery = sessionFactory.getCurrentSession().getNamedQuery(queryName + COUNT_QUERY_SUFFIX);
+      JsonObject countParameters = new JsonObject();
+      Set<String> declaredNames = new HashSet<String>(Arrays.asList(countQuery.getNamedParameters()));
+      for (Map.Entry<String, JsonElement> element : parameters.getAsJsonObject().entrySet()) {
+        if (declaredNames.contains(element.getKey())) {
+          countParameters.add(element.getKey(), element.getValue());
+        }
+      }
+      setQueryParameters(countQuery, countParameters);
+    }
+
+    return pageWithFetchPlan(query, countQuery, queryName, associationsToFetch, pagination);
+  }
+
+  private void setQueryParameters(Query query, JsonElement parameters) {
     JsonObject parameterMap = parameters.getAsJsonObject();
     for (Map.Entry<String, JsonElement> element : parameterMap.entrySet()) {
       String key = element.getKey();
@@ -171,8 +402,45 @@ public class CrysonRepository {
         query.setParameter(key, value.getAsString());
       }
     }
+  }
+
+  // Read from the cached query plan, without a session, so that callers can tell query parameters from their own
+  public Set<String> getNamedParameterNames(String queryName) {
+    SessionFactoryImplementor sessionFactoryImplementor = (SessionFactoryImplementor) sessionFactory;
+    NamedQueryDefinition namedQuery = sessionFactoryImplementor.getNamedQuery(queryName);
+    if (namedQuery != null) {
+      return sessionFactoryImplementor.getQueryPlanCache().getHQLQueryPlan(namedQuery.getQueryString(), false, Collections.<String, Filter>emptyMap()).getParameterMetadata().getNamedParameterNames();
+    }
+    NamedSQLQueryDefinition namedSQLQuery = sessionFactoryImplementor.getNamedSQLQuery(queryName);
+    if (namedSQLQuery != null) {
+      return sessionFactoryImplementor.getQueryPlanCache().getSQLParameterMetadata(namedSQLQuery.getQueryString()).getNamedParameterNames();
+    }
+    return Collections.emptySet();
+  }
 
-    return query.list();
+  private boolean hasNamedQuery(String queryName) {
+    SessionFactoryImplementor sessionFactoryImplementor = (SessionFactoryImplementor) sessionFactory;
+    return sessionFactoryImplementor.getNamedQuery(queryName) != null || sessionFactoryImplementor.getNamedSQLQuery(queryName) != null;
+  }
+
+  // Forward-only cursors over read-only entities, for exports that must not hold a whole result in memory
+  public ScrollableResults scrollAll(String entityClassName, Set<String> associationsToFetch, int fetchSize) {
+    Criteria criteria = createReadCriteria(entityClassName)
+            .addOrder(Order.asc("id"))
+            .setReadOnly(true)
+            .setFetchSize(fetchSize);
+    fetchPlanExecutor.joinToOneAssociations(criteria, entityClassName, AssociationTree.parse(associationsToFetch));
+
+    return criteria.scroll(ScrollMode.FORWARD_ONLY);
+  }
+
+  public ScrollableResults scrollByNamedQuery(String queryName, MultivaluedMap<String,String> queryParameters, int fetchSize) {
+    Query query = sessionFactory.getCurrentSession().getNamedQuery(queryName)
+            .setReadOnly(true)
+            .setFetchSize(fetchSize);
+    setQueryParameters(query, queryParameters);
+
+    return query.scroll(ScrollMode.FORWARD_ONLY);
   }
 
   @PostAuthorize("hasPermission(#entity, 'write')")
@@ -187,6 +455,16 @@ public class CrysonRepository {
     }
   }
 
+  // Unlike persist, nothing is flushed so that a commit's inserts can be JDBC batched by a single later flush.
+  // Validation and permissions are therefore checked against the entity as committed, before it is saved.
+  @PreAuthorize("hasPermission(#entity, 'write')")
+  public Long save(Object entity) {
+    if (validationsEnabled) {
+      throwConstraintViolations(validatorFactory.getValidator().validate(entity));
+    }
+    return (Long)sessionFactory.getCurrentSession().save(entity);
+  }
+
   @PostAuthorize("hasPermission(#entity, 'read')")
   public void refresh(Object entity) {
     sessionFactory.getCurrentSession().refresh(entity);
@@ -205,11 +483,230 @@ public class CrysonRepository {
     return mergedEntity;
   }
 
+  private boolean isMergeable(Class<?> entityClass, EntityPersister persister) {
+    if (!entityClass.isAnnotationPresent(CrysonMergeable.class) || !persister.isVersioned()) {
+      return false;
+    }
+    Class<?> versionClass = persister.getVersionType().getReturnedClass();
+    return versionClass == Long.class || versionClass == Integer.class || versionClass == long.class || versionClass == int.class;
+  }
+
+  // Whether the fields changed on top of baseVersion were left alone by all versions up to currentVersion
+  private boolean canMerge(Class<?> entityClass, Long id, Object baseVersion, Object currentVersion, Set<String> changedFields) {
+    if (baseVersion == null || currentVersion == null) {
+      return false;
+    }
+    Set<String> concurrentlyChangedFields = mergeableChangeLog.getChangedFieldsSince(entityClass, id, ((Number)baseVersion).longValue(), ((Number)currentVersion).longValue());
+    return concurrentlyChangedFields != null && Collections.disjoint(concurrentlyChangedFields, changedFields);
+  }
+
+  // Entities updated through the session get their new version at flush, and none if nothing changed
+  private void recordChangedFields(Class<?> entityClass, final Object entity, final EntityPersister persister, final Object previousVersion, Set<String> changedFields) {
+    mergeableChangeLog.recordAfterCommit(entityClass, reflectionHelper.getPrimaryKey(entity), new MergeableChangeLog.VersionSource() {
+      public Long getVersion() {
+        Object version = persister.getVersion(entity);
+        return persister.getVersionType().isEqual(version, previousVersion) ? null : ((Number)version).longValue();
+      }
+    }, changedFields);
+  }
+
+  // Applies the fields present in a partially sent entity. When no Restrictable check or interceptor needs the prior
+  // state, this is a single version-checked HQL update of just those columns, and null is returned since nothing is
+  // loaded. Otherwise the fields are copied onto the loaded entity, which is returned and flushed with the commit.
+  @PostAuthorize("hasPermission(returnObject, 'write')")
+  public Object patch(Object patchEntity, Set<String> fieldNames) {
+    Class<?> entityClass = Hibernate.getClass(patchEntity);
+    EntityPersister persister = ((SessionFactoryImplementor)sessionFactory).getEntityPersister(entityClass.getName());
+    Long id = reflectionHelper.getPrimaryKey(patchEntity);
+    if (persister.isVersioned() && !fieldNames.contains(persister.getPropertyNames()[persister.getVersionProperty()])) {
+      throw new CrysonBadRequestException("Patched entity without version; entity=" + entityClass.getName() + " id=" + id, null);
+    }
+
+    List<Integer> propertyIndexes = new ArrayList<Integer>();
+    for(String fieldName : fieldNames) {
+      Integer propertyIndex = persister.getEntityMetamodel().getPropertyIndexOrNull(fieldName);
+      if (propertyIndex != null && !(persister.isVersioned() && propertyIndex == persister.getVersionProperty())) {
+        propertyIndexes.add(propertyIndex);
+      }
+    }
+
+    Set<String> patchedFields = new HashSet<String>();
+    for(Integer propertyIndex : propertyIndexes) {
+      patchedFields.add(persister.getPropertyNames()[propertyIndex]);
+    }
+    boolean mergeable = isMergeable(entityClass, persister);
+
+    if (isPatchableInSql(entityClass, persister, propertyIndexes)) {
+      if (validationsEnabled) {
+        for(String patchedField : patchedFields) {
+          throwConstraintViolations(validatorFactory.getValidator().validateProperty(patchEntity, patchedField));
+        }
+      }
+      patchInSql(patchEntity, id, persister, propertyIndexes, mergeable ? patchedFields : null);
+      return null;
+    }
+
+    Object entity = sessionFactory.getCurrentSession().get(entityClass, id);
+    if (entity == null) {
+      throw new CrysonEntityNotFoundException("Not found; entity=" + entityClass.getName() + " id=" + id, null);
+    }
+    Object currentVersion = persister.isVersioned() ? persister.getVersion(entity) : null;
+    if (persister.isVersioned() && !persister.getVersionType().isEqual(currentVersion, persister.getVersion(patchEntity))) {
+      if (!mergeable || !canMerge(entityClass, id, persister.getVersion(patchEntity), currentVersion, patchedFields)) {
+        throw new StaleObjectStateException(persister.getEntityName(), id);
+      }
+      crysonMetrics.increment(MERGED_UPDATES_METRIC, 1);
+    }
+    for(Integer propertyIndex : propertyIndexes) {
+      persister.setPropertyValue(entity, propertyIndex, persister.getPropertyValue(patchEntity, propertyIndex));
+    }
+    if (validationsEnabled) {
+      throwConstraintViolations(validatorFactory.getValidator().validate(entity));
+    }
+    if (mergeable) {
+      recordChangedFields(entityClass, entity, persister, currentVersion, patchedFields);
+    }
+    return entity;
+  }
+
+  private boolean isPatchableInSql(Class<?> entityClass, EntityPersister persister, List<Integer> propertyIndexes) {
+    if (propertyIndexes.isEmpty() || Restrictable.class.isAssignableFrom(entityClass) || crysonInterceptor.isInterceptingUpdates()
+            || entityClass.isAnnotationPresent(SQLUpdate.class) || persister.getEntityMetamodel().getSubclassEntityNames().size() > 1) {
+      return false;
+    }
+    for(Integer propertyIndex : propertyIndexes) {
+      Type type = persister.getPropertyTypes()[propertyIndex];
+      if (!persister.getPropertyUpdateability()[propertyIndex] || type.isCollectionType() || type.isComponentType()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // A stale patch of a mergeable entity is retried against the current version, while its fields were left alone
+  private void patchInSql(Object patchEntity, Long id, EntityPersister persister, List<Integer> propertyIndexes, Set<String> mergeableFields) {
+    StringBuilder patchQuery = new StringBuilder(persister.isVersioned() ? "update versioned " : "update ");
+    patchQuery.append(persister.getEntityName()).append(" set ");
+    for(int ix = 0;ix < propertyIndexes.size();ix++) {
+      patchQuery.append(ix > 0 ? ", " : "").append(persister.getPropertyNames()[propertyIndexes.get(ix)]).append(" = :p").append(ix);
+    }
+    patchQuery.append(" where ").append(persister.getIdentifierPropertyName()).append(" = :id");
+    if (persister.isVersioned()) {
+      patchQuery.append(" and ").append(persister.getPropertyNames()[persister.getVersionProperty()]).append(" = :version");
+    }
+
+    Session session = sessionFactory.getCurrentSession();
+    Query query = session.createQuery(patchQuery.toString()).setParameter("id", id, persister.getIdentifierType());
+    for(int ix = 0;ix < propertyIndexes.size();ix++) {
+      int propertyIndex = propertyIndexes.get(ix);
+      query.setParameter("p" + ix, persister.getPropertyValue(patchEntity, propertyIndex), persister.getPropertyTypes()[propertyIndex]);
+    }
+    Object version = persister.isVersioned() ? persister.getVersion(patchEntity) : null;
+    if (persister.isVersioned()) {
+      query.setParameter("version", version, persister.getVersionType());
+    }
+
+    int updatedRows = query.executeUpdate();
+    for(int retry = 0;updatedRows == 0;retry++) {
+      // No row updated means either a missing entity or, for versioned ones, a stale version
+      String checkedProperty = persister.isVersioned() ? persister.getPropertyNames()[persister.getVersionProperty()] : persister.getIdentifierPropertyName();
+      Object currentVersion = session.createQuery("select " + checkedProperty + " from " + persister.getEntityName() + " where " + persister.getIdentifierPropertyName() + " = :id")
+              .setParameter("id", id, persister.getIdentifierType())
+              .uniqueResult();
+      if (currentVersion == null) {
+        throw new CrysonEntityNotFoundException("Not found; entity=" + persister.getEntityName() + " id=" + id, null);
+      }
+      if (mergeableFields == null || retry >= mergeRetries || !canMerge(persister.getMappedClass(), id, version, currentVersion, mergeableFields)) {
+        throw new StaleObjectStateException(persister.getEntityName(), id);
+      }
+      version = currentVersion;
+      query.setParameter("version", version, persister.getVersionType());
+      updatedRows = query.executeUpdate();
+      if (updatedRows > 0) {
+        crysonMetrics.increment(MERGED_UPDATES_METRIC, 1);
+      }
+    }
+
+    evict(session, persister, id); // Any instance in the session is now stale
+    if (mergeableFields != null) {
+      final Long patchedVersion = ((Number)version).longValue() + 1;
+      mergeableChangeLog.recordAfterCommit(persister.getMappedClass(), id, new MergeableChangeLog.VersionSource() {
+        public Long getVersion() {
+          return patchedVersion;
+        }
+      }, mergeableFields);
+    }
+  }
+
   public void delete(Object entity) {
     Object persistentEntity = sessionFactory.getCurrentSession().get(entity.getClass(), reflectionHelper.getPrimaryKey(entity));
     sessionFactory.getCurrentSession().delete(persistentEntity);
   }
 
+  // Classes without cascades, owned collections, self references or custom delete SQL are deleted with one HQL
+  // statement per batch, without loading the entities. Others fall back to delete, one entity at a time.
+  public void deleteAll(Class<?> entityClass, List<Object> entities) {
+    SessionFactoryImplementor sessionFactoryImplementor = (SessionFactoryImplementor)sessionFactory;
+    EntityPersister persister = sessionFactoryImplementor.getEntityPersister(entityClass.getName());
+    if (!isBulkDeletable(entityClass, persister)) {
+      for(Object entity : entities) {
+        delete(entity);
+      }
+      return;
+    }
+
+    Session session = sessionFactory.getCurrentSession();
+    session.flush(); // Queued deletes of referencing entities must reach the database first
+    String deleteQuery = "delete from " + persister.getEntityName() + " where " + persister.getIdentifierPropertyName() + " in (:ids)";
+    for(List<Object> batch : Lists.partition(entities, batchSize)) {
+      List<Long> ids = new ArrayList<Long>(batch.size());
+      for(Object entity : batch) {
+        ids.add(reflectionHelper.getPrimaryKey(entity));
+      }
+      session.createQuery(deleteQuery).setParameterList("ids", ids).executeUpdate();
+
+      for(Long id : ids) {
+        evict(session, persister, id);
+      }
+    }
+  }
+
+  private void evict(Session session, EntityPersister persister, Long id) {
+    PersistenceContext persistenceContext = ((SessionImplementor)session).getPersistenceContext();
+    EntityKey entityKey = ((SessionImplementor)session).generateEntityKey(id, persister);
+    Object sessionEntity = persistenceContext.getEntity(entityKey);
+    if (sessionEntity == null) {
+      sessionEntity = persistenceContext.getProxy(entityKey);
+    }
+    if (sessionEntity != null) {
+      session.evict(sessionEntity);
+    }
+  }
+
+  private boolean isBulkDeletable(Class<?> entityClass, EntityPersister persister) {
+    if (persister.hasCascades() || entityClass.isAnnotationPresent(SQLDelete.class)) {
+      return false;
+    }
+    for(Type type : persister.getPropertyTypes()) {
+      if (type.isCollectionType() && !((SessionFactoryImplementor)sessionFactory).getCollectionPersister(((CollectionType)type).getRole()).isInverse()) {
+        return false;
+      }
+      if (type.isEntityType() && ((EntityType)type).getAssociatedEntityName().equals(persister.getEntityName())) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // Unfiltered, for callers that check permissions themselves
+  public List findAllByIds(Class<?> entityClass, Collection<Long> ids) {
+    return sessionFactory.getCurrentSession()
+            .createCriteria(entityClass)
+            .add(Restrictions.in("id", ids))
+            .setResultTransformer(DistinctRootEntityResultTransformer.INSTANCE)
+            .list();
+  }
+
   @PostAuthorize("hasPermission(returnObject, 'read') and hasPermission(returnObject, 'write')")
   public Object ensureReadableAndWritable(String entityClassName, long id) {
     Criteria criteria = sessionFactory.getCurrentSession()
@@ -233,12 +730,82 @@ public class CrysonRepository {
     }
   }
 
-  private void setFetchModeForAssociations(Criteria criteria, Set<String> associationsToFetch) {
-    for(String associationToFetch : associationsToFetch) {
-      criteria.setFetchMode(associationToFetch, FetchMode.DEFAULT);
+  private List listWithFetchPlan(Criteria criteria, String entityClassName, Set<String> associationsToFetch) {
+    AssociationTree fetchPlan = AssociationTree.parse(associationsToFetch);
+    fetchPlanExecutor.joinToOneAssociations(criteria, entityClassName, fetchPlan);
+    List foundEntities = criteria.list();
+    fetchPlanExecutor.fetch(foundEntities, fetchPlan);
+    return foundEntities;
+  }
+
+  private List listWithFetchPlan(Query query, Set<String> associationsToFetch) {
+    List foundEntities = query.list();
+    fetchPlanExecutor.fetch(foundEntities, AssociationTree.parse(associationsToFetch));
+    return foundEntities;
+  }
+
+  // The count criteria shares the restrictions of the page criteria, but neither its cursor, ordering nor limits
+  private Page pageWithFetchPlan(Criteria criteria, Criteria countCriteria, String entityClassName, Set<String> associationsToFetch, Pagination pagination) {
+    Long totalCount = null;
+    if (pagination.isTotalCountRequested()) {
+      totalCount = ((Number) countCriteria.setProjection(Projections.rowCount()).uniqueResult()).longValue();
+    }
+
+    if (pagination.getAfter() != null) {
+      criteria.add(Restrictions.gt("id", pagination.getAfter()));
+    }
+    criteria.addOrder(Order.asc("id"));
+    if (pagination.getOffset() != null) {
+      criteria.setFirstResult(pagination.getOffset());
+    }
+    if (pagination.getLimit() != null) {
+      criteria.setMaxResults(pagination.getLimit());
+    }
+
+    List foundEntities = listWithFetchPlan(criteria, entityClassName, associationsToFetch);
+    return new Page(filterReadable(foundEntities), nextCursor(foundEntities, pagination), totalCount);
+  }
+
+  // Named queries order their results themselves, so an id cursor could skip or repeat rows; they are paged by offset
+  // only. The total count is taken from a companion named query called <queryName>.count, if there is one.
+  private Page pageWithFetchPlan(Query query, Query countQuery, String queryName, Set<String> associationsToFetch, Pagination pagination) {
+    if (pagination.getAfter() != null) {
+      throw new CrysonBadRequestException("Named queries do not support keyset pagination, use offset; query=" + queryName, null);
+    }
+    if (pagination.getOffset() != null) {
+      query.setFirstResult(pagination.getOffset());
+    }
+    if (pagination.getLimit() != null) {
+      query.setMaxResults(pagination.getLimit());
+    }
+
+    Long totalCount = null;
+    if (countQuery != null) {
+      totalCount = ((Number) countQuery.uniqueResult()).longValue();
+    }
+
+    List foundEntities = listWithFetchPlan(query, associationsToFetch);
+    return new Page(filterReadable(foundEntities), null, totalCount);
+  }
+
+  // Cursors are taken before read filtering, so that pages following unreadable entities are not lost
+  private Long nextCursor(List foundEntities, Pagination pagination) {
+    if (pagination.getLimit() == null || foundEntities.isEmpty() || foundEntities.size() < pagination.getLimit()) {
+      return null;
+    }
+    return reflectionHelper.getPrimaryKey(foundEntities.get(foundEntities.size() - 1));
+  }
+
+  // Replaces @PostFilter("hasPermission(filterObject, 'read')"), which evaluated SpEL through the permission evaluator
+  // for every element. Like method security, only applied when security is enabled.
+  public List<Object> filterReadable(List foundEntities) {
+    if (!securityEnabled) {
+      return foundEntities;
     }
+    return ReadPermissions.filterReadable(foundEntities);
   }
 
+
   void setSessionFactory(SessionFactory sessionFactory) {
     this.sessionFactory = sessionFactory;
   }
@@ -246,4 +813,15 @@ public class CrysonRepository {
   void setReflectionHelper(ReflectionHelper reflectionHelper) {
     this.reflectionHelper = reflectionHelper;
   }
+
+  void setFetchPlanExecutor(FetchPlanExecutor fetchPlanExecutor) {
+    this.fetchPlanExecutor = fetchPlanExecutor;
+  }
+
+  @Autowired(required = false)
+  void setReadCriterionProviders(List<ReadCriterionProvider> readCriterionProviders) {
+    for(ReadCriterionProvider readCriterionProvider : readCriterionProviders) {
+      this.readCriterionProviders.put(readCriterionProvider.getEntityClass(), readCriterionProvider);
+    }
+  }
 }
@@ -18,33 +18,63 @@
 
 package se.sperber.cryson.repository;
 
+import com.google.common.collect.ImmutableSet;
 import org.aspectj.lang.annotation.AfterThrowing;
 import org.aspectj.lang.annotation.Aspect;
 import org.hibernate.OptimisticLockException;
+import org.hibernate.PessimisticLockException;
 import org.hibernate.StaleObjectStateException;
+import org.hibernate.exception.LockAcquisitionException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.orm.hibernate3.HibernateOptimisticLockingFailureException;
+import org.springframework.dao.PessimisticLockingFailureException;
+import org.springframework.orm.ObjectOptimisticLockingFailureException;
 import org.springframework.stereotype.Component;
 import se.sperber.cryson.exception.CrysonEntityConflictException;
 import se.sperber.cryson.exception.CrysonException;
 
+import java.sql.SQLException;
+import java.util.Set;
+
 @Component
 @Aspect
 public class CrysonRepositoryExceptionTranslator {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(CrysonRepositoryExceptionTranslator.class);
+
+  // Deadlocks and lock timeouts; serialization failure (also MySQL and Derby deadlocks), PostgreSQL and Derby
+  private static final Set<String> TRANSIENT_LOCK_SQL_STATES = ImmutableSet.of("40001", "40P01", "55P03", "40XL1", "40XL2");
+
+  // MySQL lock wait timeout and deadlock, as older drivers report the former with a generic SQL state
+  private static final Set<Integer> TRANSIENT_LOCK_MYSQL_ERROR_CODES = ImmutableSet.of(1205, 1213);
+
   @AfterThrowing(pointcut="execution(public * se.sperber.cryson.repository.CrysonRepository.*(..))",
                  throwing="t")
   public void translateHibernateExceptions(Throwable t) throws Throwable {
     LOGGER.error("Translating exception", t);
     if (t instanceof CrysonException) {
       throw t;
-    } else if (t instanceof OptimisticLockException || t instanceof HibernateOptimisticLockingFailureException || t instanceof StaleObjectStateException) {
+    } else if (t instanceof OptimisticLockException || t instanceof ObjectOptimisticLockingFailureException || t instanceof StaleObjectStateException) {
       throw new CrysonEntityConflictException("Optimistic locking failed", t);
     } else {
       throw new CrysonException("Unclassified error: " + t.getMessage(), t);
     }
   }
 
+  // Whether a new transaction may well succeed where this one failed, looking through translated and wrapped causes
+  public boolean isTransientLockFailure(Throwable t) {
+    for(Throwable cause = t;cause != null;cause = cause.getCause() == cause ? null : cause.getCause()) {
+      if (cause instanceof PessimisticLockingFailureException || cause instanceof LockAcquisitionException || cause instanceof PessimisticLockException) {
+        return true;
+      }
+      if (cause instanceof SQLException) {
+        SQLException sqlException = (SQLException)cause;
+        if (TRANSIENT_LOCK_SQL_STATES.contains(sqlException.getSQLState()) || TRANSIENT_LOCK_MYSQL_ERROR_CODES.contains(sqlException.getErrorCode())) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
 }
\ No newline at end of file
@@ -0,0 +1,47 @@
+/*
+  Cryson
+  
+  Copyright 2011-2012 Björn Sperber (cryson@sperber.se)
+  
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  
+  http://www.apache.org/licenses/LICENSE-2.0
+  
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package se.sperber.cryson.repository;
+
+import se.sperber.cryson.serialization.HibernateProxyTypeAdapter;
+
+import java.util.*;
+
+final class Entities {
+
+  private Entities() {}
+
+  // Unproxied entities grouped by concrete class, in first-seen order
+  static Map<Class<?>, List<Object>> groupByClass(Collection<?> entities) {
+    Map<Class<?>, List<Object>> result = new LinkedHashMap<Class<?>, List<Object>>();
+    for(Object rawEntity : entities) {
+      if (rawEntity == null) {
+        continue;
+      }
+      Object entity = HibernateProxyTypeAdapter.initializeAndUnproxy(rawEntity);
+      List<Object> entitiesOfClass = result.get(entity.getClass());
+      if (entitiesOfClass == null) {
+        entitiesOfClass = new ArrayList<Object>();
+        result.put(entity.getClass(), entitiesOfClass);
+      }
+      entitiesOfClass.add(entity);
+    }
+    return result;
+  }
+
+}
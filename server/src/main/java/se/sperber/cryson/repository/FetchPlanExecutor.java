@@ -0,0 +1,189 @@
+/*
+  Cryson
+  
+  Copyright 2011-2012 Björn Sperber (cryson@sperber.se)
+  
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  
+  http://www.apache.org/licenses/LICENSE-2.0
+  
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package se.sperber.cryson.repository;
+
+import com.google.common.collect.Lists;
+import org.hibernate.Criteria;
+import org.hibernate.FetchMode;
+import org.hibernate.Hibernate;
+import org.hibernate.SessionFactory;
+import org.hibernate.collection.spi.PersistentCollection;
+import org.hibernate.metadata.ClassMetadata;
+import org.hibernate.proxy.HibernateProxy;
+import org.hibernate.proxy.LazyInitializer;
+import org.hibernate.type.CollectionType;
+import org.hibernate.type.EntityType;
+import org.hibernate.type.Type;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import se.sperber.cryson.serialization.AssociationTree;
+
+import java.io.Serializable;
+import java.util.*;
+
+/**
+ * Loads the associations requested with fetch=, parsed into an AssociationTree, picking a strategy per association:
+ * <ul>
+ *   <li>to-one chains from the root are joined into the root criteria query</li>
+ *   <li>collections are loaded with one join fetch query per association and chunk of owners,
+ *   so that sibling collections never multiply into a cartesian product</li>
+ *   <li>remaining to-one associations, e.g. below collections or in named query results,
+ *   are loaded with one IN query per target entity and chunk of ids</li>
+ * </ul>
+ * Chunks hold at most cryson.fetch.batch_size ids.
+ */
+@Component
+public class FetchPlanExecutor {
+
+  @Autowired
+  private SessionFactory sessionFactory;
+
+  @Value("${cryson.fetch.batch_size:500}")
+  private int batchSize;
+
+  public void joinToOneAssociations(Criteria criteria, String entityClassName, AssociationTree fetchPlan) {
+    if (!fetchPlan.isEmpty()) {
+      joinToOneAssociations(criteria, sessionFactory.getClassMetadata(entityClassName), "", fetchPlan);
+    }
+  }
+
+  private void joinToOneAssociations(Criteria criteria, ClassMetadata classMetadata, String pathPrefix, AssociationTree fetchPlan) {
+    if (classMetadata == null) {
+      return;
+    }
+    for(String association : fetchPlan.getAssociations()) {
+      Type type = getPropertyType(classMetadata, association);
+      if (type != null && type.isEntityType()) {
+        String path = pathPrefix + association;
+        criteria.setFetchMode(path, FetchMode.JOIN);
+        String associatedEntityName = ((EntityType)type).getAssociatedEntityName();
+        joinToOneAssociations(criteria, sessionFactory.getClassMetadata(associatedEntityName), path + ".", fetchPlan.get(association));
+      }
+    }
+  }
+
+  public void fetch(Collection<?> entities, AssociationTree fetchPlan) {
+    if (fetchPlan.isEmpty() || entities.isEmpty()) {
+      return;
+    }
+    for(Map.Entry<Class<?>, List<Object>> entitiesOfClass : Entities.groupByClass(entities).entrySet()) {
+      ClassMetadata classMetadata = sessionFactory.getClassMetadata(entitiesOfClass.getKey());
+      if (classMetadata == null) {
+        continue;
+      }
+      for(String association : fetchPlan.getAssociations()) {
+        Type type = getPropertyType(classMetadata, association);
+        if (type == null) {
+          continue;
+        }
+        List<Object> associatedEntities;
+        if (type.isCollectionType()) {
+          associatedEntities = fetchCollections(classMetadata, association, (CollectionType)type, entitiesOfClass.getValue());
+        } else if (type.isEntityType()) {
+          associatedEntities = fetchReferences(classMetadata, association, entitiesOfClass.getValue());
+        } else {
+          continue;
+        }
+        fetch(associatedEntities, fetchPlan.get(association));
+      }
+    }
+  }
+
+  private List<Object> fetchCollections(ClassMetadata classMetadata, String association, CollectionType type, List<Object> entities) {
+    List<Serializable> ownerIds = new ArrayList<Serializable>();
+    for(Object entity : entities) {
+      Object collection = classMetadata.getPropertyValue(entity, association);
+      if (collection instanceof PersistentCollection && !((PersistentCollection)collection).wasInitialized()) {
+        ownerIds.add(((PersistentCollection)collection).getKey());
+      }
+    }
+
+    String query = "select distinct owner from " + classMetadata.getEntityName() + " owner left join fetch owner." + association
+            + " where owner.id in (:ownerIds)";
+    for(List<Serializable> ownerIdBatch : Lists.partition(ownerIds, batchSize)) {
+      sessionFactory.getCurrentSession().createQuery(query).setParameterList("ownerIds", ownerIdBatch).list();
+    }
+
+    List<Object> associatedEntities = new ArrayList<Object>();
+    if (sessionFactory.getCollectionMetadata(type.getRole()).getElementType().isEntityType()) {
+      for(Object entity : entities) {
+        Object collection = classMetadata.getPropertyValue(entity, association);
+        if (collection instanceof Collection) {
+          associatedEntities.addAll((Collection<?>)collection);
+        }
+      }
+    }
+    return associatedEntities;
+  }
+
+  private List<Object> fetchReferences(ClassMetadata classMetadata, String association, List<Object> entities) {
+    List<Object> associatedEntities = new ArrayList<Object>();
+    Map<String, List<Serializable>> uninitializedIdsByEntityName = new LinkedHashMap<String, List<Serializable>>();
+    for(Object entity : entities) {
+      Object associatedEntity = classMetadata.getPropertyValue(entity, association);
+      if (associatedEntity == null) {
+        continue;
+      }
+      associatedEntities.add(associatedEntity);
+      if (associatedEntity instanceof HibernateProxy) {
+        LazyInitializer lazyInitializer = ((HibernateProxy)associatedEntity).getHibernateLazyInitializer();
+        if (lazyInitializer.isUninitialized()) {
+          List<Serializable> ids = uninitializedIdsByEntityName.get(lazyInitializer.getEntityName());
+          if (ids == null) {
+            ids = new ArrayList<Serializable>();
+            uninitializedIdsByEntityName.put(lazyInitializer.getEntityName(), ids);
+          }
+          ids.add(lazyInitializer.getIdentifier());
+        }
+      }
+    }
+
+    for(Map.Entry<String, List<Serializable>> uninitializedIds : uninitializedIdsByEntityName.entrySet()) {
+      String query = "from " + uninitializedIds.getKey() + " entity where entity.id in (:ids)";
+      for(List<Serializable> idBatch : Lists.partition(uninitializedIds.getValue(), batchSize)) {
+        sessionFactory.getCurrentSession().createQuery(query).setParameterList("ids", idBatch).list();
+      }
+    }
+
+    // The entities are in the session now, so this doesn't hit the database
+    for(Object associatedEntity : associatedEntities) {
+      Hibernate.initialize(associatedEntity);
+    }
+    return associatedEntities;
+  }
+
+  private Type getPropertyType(ClassMetadata classMetadata, String propertyName) {
+    for(String candidatePropertyName : classMetadata.getPropertyNames()) {
+      if (candidatePropertyName.equals(propertyName)) {
+        return classMetadata.getPropertyType(propertyName);
+      }
+    }
+    return null;
+  }
+
+  void setSessionFactory(SessionFactory sessionFactory) {
+    this.sessionFactory = sessionFactory;
+  }
+
+  void setBatchSize(int batchSize) {
+    this.batchSize = batchSize;
+  }
+
+}
@@ -0,0 +1,142 @@
+/*
+  Cryson
+  
+  Copyright 2011-2012 Björn Sperber (cryson@sperber.se)
+  
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  
+  http://www.apache.org/licenses/LICENSE-2.0
+  
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package se.sperber.cryson.repository;
+
+import com.google.common.collect.Lists;
+import org.hibernate.SessionFactory;
+import org.hibernate.collection.spi.PersistentCollection;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import se.sperber.cryson.serialization.Accessors;
+import se.sperber.cryson.serialization.AssociationTree;
+import se.sperber.cryson.serialization.LazyCollectionIds;
+import se.sperber.cryson.serialization.ReflectionHelper;
+
+import javax.persistence.ManyToMany;
+import javax.persistence.OneToMany;
+import javax.persistence.OrderBy;
+import javax.persistence.OrderColumn;
+import java.lang.reflect.Field;
+import java.util.*;
+
+/**
+ * Loads the element ids of lazy collections that will be serialized as _cryson_ids, with one projection query
+ * per association and chunk of owners instead of initializing every collection.
+ * Follows the fetched associations, so collections of fetched entities are covered as well.
+ */
+@Component
+public class LazyCollectionIdLoader {
+
+  @Autowired
+  private SessionFactory sessionFactory;
+
+  @Autowired
+  private ReflectionHelper reflectionHelper;
+
+  @Value("${cryson.fetch.batch_size:500}")
+  private int batchSize;
+
+  public LazyCollectionIds load(Object result, Set<String> associationsToFetch) {
+    LazyCollectionIds lazyCollectionIds = new LazyCollectionIds();
+    Collection<?> entities = result instanceof Collection ? (Collection<?>)result : Collections.singletonList(result);
+    load(entities, AssociationTree.parse(associationsToFetch), lazyCollectionIds);
+    return lazyCollectionIds;
+  }
+
+  private void load(Collection<?> entities, AssociationTree associationsToFetch, LazyCollectionIds lazyCollectionIds) {
+    for(Map.Entry<Class<?>, List<Object>> entitiesOfClass : Entities.groupByClass(entities).entrySet()) {
+      Class<?> klazz = entitiesOfClass.getKey();
+      if (sessionFactory.getClassMetadata(klazz) == null) {
+        continue;
+      }
+      for(Field field : reflectionHelper.getLazyFields(klazz)) {
+        if (associationsToFetch.includes(field.getName())) {
+          load(associatedEntities(entitiesOfClass.getValue(), field), associationsToFetch.get(field.getName()), lazyCollectionIds);
+        } else if (isIdLoadable(field)) {
+          loadIds(klazz, field, entitiesOfClass.getValue(), lazyCollectionIds);
+        }
+      }
+    }
+  }
+
+  private void loadIds(Class<?> klazz, Field field, List<Object> entities, LazyCollectionIds lazyCollectionIds) {
+    Accessors.Getter getter = reflectionHelper.getGetter(field);
+    String role = null;
+    List<Long> ownerIds = new ArrayList<Long>();
+    for(Object entity : entities) {
+      Object collection = getter.get(entity);
+      if (collection instanceof PersistentCollection && !((PersistentCollection)collection).wasInitialized()) {
+        role = ((PersistentCollection)collection).getRole();
+        ownerIds.add(reflectionHelper.getPrimaryKey(entity));
+      }
+    }
+    if (ownerIds.isEmpty()) {
+      return;
+    }
+
+    String query = "select owner.id, element.id from " + sessionFactory.getClassMetadata(klazz).getEntityName()
+            + " owner join owner." + field.getName() + " element where owner.id in (:ownerIds)";
+    for(List<Long> ownerIdBatch : Lists.partition(ownerIds, batchSize)) {
+      for(Long ownerId : ownerIdBatch) {
+        lazyCollectionIds.addOwner(role, ownerId);
+      }
+      List<Object[]> rows = sessionFactory.getCurrentSession().createQuery(query)
+              .setParameterList("ownerIds", ownerIdBatch)
+              .list();
+      for(Object[] row : rows) {
+        lazyCollectionIds.addId(role, (Long)row[0], (Long)row[1]);
+      }
+    }
+  }
+
+  // Ordered collections are left alone, a projection can't reproduce their order
+  private boolean isIdLoadable(Field field) {
+    return Collection.class.isAssignableFrom(field.getType())
+            && (field.isAnnotationPresent(OneToMany.class) || field.isAnnotationPresent(ManyToMany.class))
+            && !field.isAnnotationPresent(OrderBy.class) && !field.isAnnotationPresent(OrderColumn.class);
+  }
+
+  private List<Object> associatedEntities(List<Object> entities, Field field) {
+    Accessors.Getter getter = reflectionHelper.getGetter(field);
+    List<Object> associatedEntities = new ArrayList<Object>();
+    for(Object entity : entities) {
+      Object value = getter.get(entity);
+      if (value instanceof Collection) {
+        associatedEntities.addAll((Collection<?>)value);
+      } else if (value != null) {
+        associatedEntities.add(value);
+      }
+    }
+    return associatedEntities;
+  }
+
+  void setSessionFactory(SessionFactory sessionFactory) {
+    this.sessionFactory = sessionFactory;
+  }
+
+  void setReflectionHelper(ReflectionHelper reflectionHelper) {
+    this.reflectionHelper = reflectionHelper;
+  }
+
+  void setBatchSize(int batchSize) {
+    this.batchSize = batchSize;
+  }
+
+}
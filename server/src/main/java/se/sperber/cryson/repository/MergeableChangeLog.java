@@ -0,0 +1,95 @@
+/*
+  Cryson
+  
+  Copyright 2011-2012 Björn Sperber (cryson@sperber.se)
+  
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  
+  http://www.apache.org/licenses/LICENSE-2.0
+  
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package se.sperber.cryson.repository;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.PostConstruct;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers which fields each committed version of a @CrysonMergeable entity changed, so that a stale patch can be
+ * checked for overlap with the versions it missed. Bounded and expiring; versions written by full updates, other
+ * servers or outside of Cryson are never known, so patches missing them are not merged.
+ */
+@Component
+public class MergeableChangeLog {
+
+  @Value("${cryson.merge.log_size:100000}")
+  private long maximumSize;
+
+  @Value("${cryson.merge.log_expiry_seconds:600}")
+  private long expirySeconds;
+
+  private Cache<String, Set<String>> changedFieldsByVersion;
+
+  @PostConstruct
+  public void createCache() {
+    changedFieldsByVersion = CacheBuilder.newBuilder()
+            .maximumSize(maximumSize)
+            .expireAfterWrite(expirySeconds, TimeUnit.SECONDS)
+            .build();
+  }
+
+  // Versions of rolled back transactions may be reused, so changes are only recorded once committed
+  public void recordAfterCommit(final Class<?> entityClass, final Long id, final VersionSource versionSource, final Set<String> changedFields) {
+    if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+      return;
+    }
+    TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+      @Override
+      public void afterCommit() {
+        Long version = versionSource.getVersion();
+        if (version != null) {
+          changedFieldsByVersion.put(key(entityClass, id, version), changedFields);
+        }
+      }
+    });
+  }
+
+  // The fields changed by the versions after baseVersion up to and including currentVersion, or null if any is unknown
+  public Set<String> getChangedFieldsSince(Class<?> entityClass, Long id, long baseVersion, long currentVersion) {
+    Set<String> changedFields = new HashSet<String>();
+    for(long version = baseVersion + 1;version <= currentVersion;version++) {
+      Set<String> versionChangedFields = changedFieldsByVersion.getIfPresent(key(entityClass, id, version));
+      if (versionChangedFields == null) {
+        return null;
+      }
+      changedFields.addAll(versionChangedFields);
+    }
+    return changedFields;
+  }
+
+  private String key(Class<?> entityClass, Long id, long version) {
+    return entityClass.getName() + "#" + id + "#" + version;
+  }
+
+  // The committed version is known only after the flush for entities updated through the session
+  public interface VersionSource {
+    Long getVersion();
+  }
+
+}
@@ -0,0 +1,51 @@
+/*
+  Cryson
+  
+  Copyright 2011-2012 Björn Sperber (cryson@sperber.se)
+  
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  
+  http://www.apache.org/licenses/LICENSE-2.0
+  
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package se.sperber.cryson.repository;
+
+import java.util.List;
+
+/**
+ * Readable entities of one page, with the cursor to pass as after for the next page, if the page was full,
+ * and the total number of matching entities, if requested.
+ */
+public class Page {
+
+  private final List<Object> entities;
+  private final Long nextCursor;
+  private final Long totalCount;
+
+  public Page(List<Object> entities, Long nextCursor, Long totalCount) {
+    this.entities = entities;
+    this.nextCursor = nextCursor;
+    this.totalCount = totalCount;
+  }
+
+  public List<Object> getEntities() {
+    return entities;
+  }
+
+  public Long getNextCursor() {
+    return nextCursor;
+  }
+
+  public Long getTotalCount() {
+    return totalCount;
+  }
+
+}
@@ -0,0 +1,61 @@
+/*
+  Cryson
+  
+  Copyright 2011-2012 Björn Sperber (cryson@sperber.se)
+  
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  
+  http://www.apache.org/licenses/LICENSE-2.0
+  
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package se.sperber.cryson.repository;
+
+/**
+ * A requested page of find results: at most limit entities, after skipping offset entities and/or only entities
+ * with ids greater than the keyset cursor after. Paginated finds are ordered by id so that cursors are stable.
+ */
+public class Pagination {
+
+  public static final Pagination NONE = new Pagination(null, null, null, false);
+
+  private final Integer limit;
+  private final Integer offset;
+  private final Long after;
+  private final boolean totalCountRequested;
+
+  public Pagination(Integer limit, Integer offset, Long after, boolean totalCountRequested) {
+    this.limit = limit;
+    this.offset = offset;
+    this.after = after;
+    this.totalCountRequested = totalCountRequested;
+  }
+
+  public Integer getLimit() {
+    return limit;
+  }
+
+  public Integer getOffset() {
+    return offset;
+  }
+
+  public Long getAfter() {
+    return after;
+  }
+
+  public boolean isTotalCountRequested() {
+    return totalCountRequested;
+  }
+
+  public boolean isRequested() {
+    return limit != null || offset != null || after != null || totalCountRequested;
+  }
+
+}
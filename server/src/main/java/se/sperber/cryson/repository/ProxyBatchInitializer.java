@@ -0,0 +1,228 @@
+/*
+  Cryson
+  
+  Copyright 2011-2012 Björn Sperber (cryson@sperber.se)
+  
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  
+  http://www.apache.org/licenses/LICENSE-2.0
+  
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package se.sperber.cryson.repository;
+
+import com.google.common.collect.Lists;
+import org.hibernate.SessionFactory;
+import org.hibernate.collection.spi.PersistentCollection;
+import org.hibernate.proxy.HibernateProxy;
+import org.hibernate.proxy.LazyInitializer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import se.sperber.cryson.annotation.CrysonExclude;
+import se.sperber.cryson.metrics.CrysonMetrics;
+import se.sperber.cryson.security.ReadPermissions;
+import se.sperber.cryson.serialization.AssociationTree;
+import se.sperber.cryson.serialization.HibernateProxyTypeAdapter;
+import se.sperber.cryson.serialization.ReflectionHelper;
+
+import java.io.Serializable;
+import java.lang.reflect.Field;
+import java.util.*;
+
+/**
+ * Walks the object graph CrysonSerializer is about to write, level by level, and initializes the uninitialized
+ * proxies and collections found on each level with one IN query per entity class or collection role and batch,
+ * instead of letting the serializer initialize them one at a time.
+ */
+@Component
+public class ProxyBatchInitializer {
+
+  public static final String SAVED_QUERIES_METRIC = "proxy_initialization.saved_queries";
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ProxyBatchInitializer.class);
+
+  @Autowired
+  private SessionFactory sessionFactory;
+
+  @Autowired
+  private ReflectionHelper reflectionHelper;
+
+  @Autowired
+  private CrysonMetrics crysonMetrics;
+
+  @Value("${cryson.fetch.batch_size:500}")
+  private int batchSize;
+
+  public void initialize(Object result, Set<String> associationsToInclude) {
+    List<Object> level = new ArrayList<Object>();
+    List<AssociationTree> levelTrees = new ArrayList<AssociationTree>();
+    AssociationTree associationTree = AssociationTree.parse(associationsToInclude);
+    for(Object entity : result instanceof Collection ? (Collection<?>)result : Collections.singletonList(result)) {
+      level.add(entity);
+      levelTrees.add(associationTree);
+    }
+
+    Map<Object, Set<AssociationTree>> visited = new IdentityHashMap<Object, Set<AssociationTree>>();
+    long savedQueries = 0;
+    while(!level.isEmpty()) {
+      savedQueries += initializeProxies(level);
+
+      List<Object> nextLevel = new ArrayList<Object>();
+      List<AssociationTree> nextLevelTrees = new ArrayList<AssociationTree>();
+      Map<String, List<PersistentCollection>> uninitializedCollections = new LinkedHashMap<String, List<PersistentCollection>>();
+      Map<PersistentCollection, AssociationTree> collectionTrees = new IdentityHashMap<PersistentCollection, AssociationTree>();
+      for(int ix = 0;ix < level.size();ix++) {
+        if (level.get(ix) == null) {
+          continue;
+        }
+        // Proxies on this level are backed by loaded entities now, so this doesn't hit the database
+        Object entity = HibernateProxyTypeAdapter.initializeAndUnproxy(level.get(ix));
+        AssociationTree entityTree = levelTrees.get(ix);
+        if (!isUnvisited(visited, entity, entityTree) || !isWrittenInFull(entity)) {
+          continue;
+        }
+        for(Field field : reflectionHelper.getAssociationFields(entity.getClass())) {
+          if (!isSerialized(field, entityTree)) {
+            continue;
+          }
+          Object value = reflectionHelper.getGetter(field).get(entity);
+          AssociationTree valueTree = entityTree.get(field.getName());
+          if (value instanceof PersistentCollection && !((PersistentCollection)value).wasInitialized()) {
+            PersistentCollection collection = (PersistentCollection)value;
+            List<PersistentCollection> collectionsOfRole = uninitializedCollections.get(collection.getRole());
+            if (collectionsOfRole == null) {
+              collectionsOfRole = new ArrayList<PersistentCollection>();
+              uninitializedCollections.put(collection.getRole(), collectionsOfRole);
+            }
+            collectionsOfRole.add(collection);
+            collectionTrees.put(collection, valueTree);
+          } else if (value instanceof Collection) {
+            addAll(nextLevel, nextLevelTrees, (Collection<?>)value, valueTree);
+          } else if (value != null) {
+            nextLevel.add(value);
+            nextLevelTrees.add(valueTree);
+          }
+        }
+      }
+
+      savedQueries += initializeCollections(uninitializedCollections);
+      for(Map.Entry<PersistentCollection, AssociationTree> collectionTree : collectionTrees.entrySet()) {
+        addAll(nextLevel, nextLevelTrees, (Collection<?>)collectionTree.getKey(), collectionTree.getValue());
+      }
+
+      level = nextLevel;
+      levelTrees = nextLevelTrees;
+    }
+
+    if (savedQueries > 0) {
+      crysonMetrics.increment(SAVED_QUERIES_METRIC, savedQueries);
+      LOGGER.debug("Batched proxy initialization saved {} queries", savedQueries);
+    }
+  }
+
+  private long initializeProxies(List<Object> level) {
+    Map<String, List<Serializable>> uninitializedIdsByEntityName = new LinkedHashMap<String, List<Serializable>>();
+    for(Object entity : level) {
+      if (entity instanceof HibernateProxy) {
+        LazyInitializer lazyInitializer = ((HibernateProxy)entity).getHibernateLazyInitializer();
+        if (lazyInitializer.isUninitialized()) {
+          List<Serializable> ids = uninitializedIdsByEntityName.get(lazyInitializer.getEntityName());
+          if (ids == null) {
+            ids = new ArrayList<Serializable>();
+            uninitializedIdsByEntityName.put(lazyInitializer.getEntityName(), ids);
+          }
+          ids.add(lazyInitializer.getIdentifier());
+        }
+      }
+    }
+
+    long savedQueries = 0;
+    for(Map.Entry<String, List<Serializable>> uninitializedIds : uninitializedIdsByEntityName.entrySet()) {
+      String query = "from " + uninitializedIds.getKey() + " entity where entity.id in (:ids)";
+      for(List<Serializable> idBatch : Lists.partition(new ArrayList<Serializable>(new LinkedHashSet<Serializable>(uninitializedIds.getValue())), batchSize)) {
+        sessionFactory.getCurrentSession().createQuery(query).setParameterList("ids", idBatch).list();
+        savedQueries += idBatch.size() - 1;
+      }
+    }
+    return savedQueries;
+  }
+
+  private long initializeCollections(Map<String, List<PersistentCollection>> uninitializedCollections) {
+    long savedQueries = 0;
+    for(Map.Entry<String, List<PersistentCollection>> collectionsOfRole : uninitializedCollections.entrySet()) {
+      String role = collectionsOfRole.getKey();
+      int separatorIx = role.lastIndexOf('.');
+      String query = "select distinct owner from " + role.substring(0, separatorIx) + " owner left join fetch owner." + role.substring(separatorIx + 1)
+              + " where owner.id in (:ownerIds)";
+
+      Set<Serializable> ownerIds = new LinkedHashSet<Serializable>();
+      for(PersistentCollection collection : collectionsOfRole.getValue()) {
+        ownerIds.add(collection.getKey());
+      }
+      for(List<Serializable> ownerIdBatch : Lists.partition(new ArrayList<Serializable>(ownerIds), batchSize)) {
+        sessionFactory.getCurrentSession().createQuery(query).setParameterList("ownerIds", ownerIdBatch).list();
+        savedQueries += ownerIdBatch.size() - 1;
+      }
+    }
+    return savedQueries;
+  }
+
+  // Unreadable restrictables are written as id only
+  private boolean isWrittenInFull(Object entity) {
+    if (sessionFactory.getClassMetadata(entity.getClass()) == null) {
+      return false;
+    }
+    return ReadPermissions.isReadable(entity);
+  }
+
+  // Mirrors CrysonSerializer: eager associations are always written, lazy ones only when included
+  private boolean isSerialized(Field field, AssociationTree associationTree) {
+    if (reflectionHelper.isLazyField(field)) {
+      return associationTree.includes(field.getName());
+    }
+    return !field.isAnnotationPresent(CrysonExclude.class);
+  }
+
+  private boolean isUnvisited(Map<Object, Set<AssociationTree>> visited, Object entity, AssociationTree associationTree) {
+    Set<AssociationTree> visitedTrees = visited.get(entity);
+    if (visitedTrees == null) {
+      visitedTrees = Collections.newSetFromMap(new IdentityHashMap<AssociationTree, Boolean>());
+      visited.put(entity, visitedTrees);
+    }
+    return visitedTrees.add(associationTree);
+  }
+
+  private void addAll(List<Object> level, List<AssociationTree> levelTrees, Collection<?> entities, AssociationTree associationTree) {
+    for(Object entity : entities) {
+      level.add(entity);
+      levelTrees.add(associationTree);
+    }
+  }
+
+  void setSessionFactory(SessionFactory sessionFactory) {
+    this.sessionFactory = sessionFactory;
+  }
+
+  void setReflectionHelper(ReflectionHelper reflectionHelper) {
+    this.reflectionHelper = reflectionHelper;
+  }
+
+  void setCrysonMetrics(CrysonMetrics crysonMetrics) {
+    this.crysonMetrics = crysonMetrics;
+  }
+
+  void setBatchSize(int batchSize) {
+    this.batchSize = batchSize;
+  }
+
+}
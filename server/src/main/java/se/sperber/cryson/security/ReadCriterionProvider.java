@@ -0,0 +1,36 @@
+/*
+  Cryson
+  
+  Copyright 2011-2012 Björn Sperber (cryson@sperber.se)
+  
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  
+  http://www.apache.org/licenses/LICENSE-2.0
+  
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package se.sperber.cryson.security;
+
+import org.hibernate.criterion.Criterion;
+import org.springframework.security.core.Authentication;
+
+/**
+ * Optional companion to a Restrictable entity class, registered as a Spring bean, that expresses its read rule as a
+ * Criterion. CrysonRepository adds it to the criteria of list finds and exports, so that rows the user cannot read are
+ * never loaded. isReadableBy is still checked on every loaded entity and must agree with the criterion.
+ */
+public interface ReadCriterionProvider {
+
+  Class<? extends Restrictable> getEntityClass();
+
+  // Applies to the root entity of a criteria, null when every row is readable by the authentication
+  Criterion getReadCriterion(Authentication authentication);
+
+}
@@ -0,0 +1,90 @@
+/*
+  Cryson
+  
+  Copyright 2011-2012 Björn Sperber (cryson@sperber.se)
+  
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  
+  http://www.apache.org/licenses/LICENSE-2.0
+  
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package se.sperber.cryson.security;
+
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Read permission decisions for Restrictable entities, evaluated with direct isReadableBy calls instead of
+ * SpEL and remembered per entity instance for the rest of the request, so that filtering a result and serializing it
+ * ask each entity only once. Outside of a request scope, see CrysonReadPermissionsFilter, decisions are not remembered.
+ */
+public final class ReadPermissions {
+
+  private static final ThreadLocal<Map<Object, Boolean>> decisionsHolder = new ThreadLocal<Map<Object, Boolean>>();
+
+  private ReadPermissions() {}
+
+  public static void beginRequest() {
+    decisionsHolder.set(new IdentityHashMap<Object, Boolean>());
+  }
+
+  public static void endRequest() {
+    decisionsHolder.remove();
+  }
+
+  public static boolean isReadable(Object entity) {
+    if (!(entity instanceof Restrictable)) {
+      return true;
+    }
+    return isReadable((Restrictable) entity, SecurityContextHolder.getContext().getAuthentication(), decisionsHolder.get());
+  }
+
+  // Returns the list itself, without copying, when none of its entities is Restrictable
+  public static List<Object> filterReadable(List<?> entities) {
+    int firstRestrictableIndex = 0;
+    while (firstRestrictableIndex < entities.size() && !(entities.get(firstRestrictableIndex) instanceof Restrictable)) {
+      firstRestrictableIndex++;
+    }
+    if (firstRestrictableIndex == entities.size()) {
+      return (List<Object>) entities;
+    }
+
+    Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+    Map<Object, Boolean> decisions = decisionsHolder.get();
+    List<Object> readableEntities = new ArrayList<Object>(entities.size());
+    readableEntities.addAll(entities.subList(0, firstRestrictableIndex));
+    for(int ix = firstRestrictableIndex;ix < entities.size();ix++) {
+      Object entity = entities.get(ix);
+      if (!(entity instanceof Restrictable) || isReadable((Restrictable) entity, authentication, decisions)) {
+        readableEntities.add(entity);
+      }
+    }
+    return readableEntities;
+  }
+
+  private static boolean isReadable(Restrictable entity, Authentication authentication, Map<Object, Boolean> decisions) {
+    if (decisions == null) {
+      return entity.isReadableBy(authentication);
+    }
+    Boolean decision = decisions.get(entity);
+    if (decision == null) {
+      decision = entity.isReadableBy(authentication);
+      decisions.put(entity, decision);
+    }
+    return decision;
+  }
+
+}
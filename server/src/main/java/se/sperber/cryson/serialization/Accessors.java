@@ -0,0 +1,167 @@
+/*
+  Cryson
+  
+  Copyright 2011-2012 Björn Sperber (cryson@sperber.se)
+  
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  
+  http://www.apache.org/licenses/LICENSE-2.0
+  
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package se.sperber.cryson.serialization;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+
+/**
+ * Generates fast entity attribute accessors, meant to be created once and cached.
+ * Public getters and setters are bound with LambdaMetafactory so that calling them costs no more than
+ * an interface call. Fields, and methods that can't be bound that way, are accessed through MethodHandles.
+ */
+public final class Accessors {
+
+  public interface Getter {
+    Object get(Object target);
+  }
+
+  public interface Setter {
+    void set(Object target, Object value);
+  }
+
+  private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+  private static final MethodType GETTER_TYPE = MethodType.methodType(Object.class, Object.class);
+
+  private static final MethodType SETTER_TYPE = MethodType.methodType(void.class, Object.class, Object.class);
+
+  private Accessors() {}
+
+  public static Getter getter(Method method) {
+    try {
+      if (isBindable(method)) {
+        try {
+          MethodHandle handle = LOOKUP.unreflect(method);
+          MethodType instantiatedType = MethodType.methodType(wrap(method.getReturnType()), method.getDeclaringClass());
+          CallSite callSite = LambdaMetafactory.metafactory(LOOKUP, "get", MethodType.methodType(Getter.class),
+                  GETTER_TYPE, handle, instantiatedType);
+          return (Getter)callSite.getTarget().invoke();
+        } catch(Exception e) {
+          // Fall through to a plain MethodHandle
+        }
+      }
+      method.setAccessible(true);
+      return handleGetter(LOOKUP.unreflect(method).asType(GETTER_TYPE));
+    } catch(Throwable t) {
+      throw new RuntimeException(t);
+    }
+  }
+
+  public static Setter setter(Method method) {
+    try {
+      if (isBindable(method)) {
+        try {
+          MethodHandle handle = LOOKUP.unreflect(method);
+          MethodType instantiatedType = MethodType.methodType(void.class, method.getDeclaringClass(), wrap(method.getParameterTypes()[0]));
+          CallSite callSite = LambdaMetafactory.metafactory(LOOKUP, "set", MethodType.methodType(Setter.class),
+                  SETTER_TYPE, handle, instantiatedType);
+          return (Setter)callSite.getTarget().invoke();
+        } catch(Exception e) {
+          // Fall through to a plain MethodHandle
+        }
+      }
+      method.setAccessible(true);
+      return handleSetter(LOOKUP.unreflect(method).asType(SETTER_TYPE));
+    } catch(Throwable t) {
+      throw new RuntimeException(t);
+    }
+  }
+
+  public static Getter getter(Field field) {
+    try {
+      field.setAccessible(true);
+      return handleGetter(LOOKUP.unreflectGetter(field).asType(GETTER_TYPE));
+    } catch(Throwable t) {
+      throw new RuntimeException(t);
+    }
+  }
+
+  public static Setter setter(final Field field) {
+    try {
+      field.setAccessible(true);
+      return handleSetter(LOOKUP.unreflectSetter(field).asType(SETTER_TYPE));
+    } catch(IllegalAccessException e) {
+      // Final fields can only be written reflectively
+      return new Setter() {
+        public void set(Object target, Object value) {
+          try {
+            field.set(target, value);
+          } catch(IllegalAccessException e) {
+            throw new RuntimeException(e);
+          }
+        }
+      };
+    } catch(Throwable t) {
+      throw new RuntimeException(t);
+    }
+  }
+
+  private static Getter handleGetter(final MethodHandle handle) {
+    return new Getter() {
+      public Object get(Object target) {
+        try {
+          return (Object)handle.invokeExact(target);
+        } catch(RuntimeException e) {
+          throw e;
+        } catch(Throwable t) {
+          throw new RuntimeException(t);
+        }
+      }
+    };
+  }
+
+  private static Setter handleSetter(final MethodHandle handle) {
+    return new Setter() {
+      public void set(Object target, Object value) {
+        try {
+          handle.invokeExact(target, value);
+        } catch(RuntimeException e) {
+          throw e;
+        } catch(Throwable t) {
+          throw new RuntimeException(t);
+        }
+      }
+    };
+  }
+
+  // The generated class links against the entity class from our class loader, so it has to resolve to the same class
+  private static boolean isBindable(Method method) {
+    Class<?> klazz = method.getDeclaringClass();
+    if (Modifier.isStatic(method.getModifiers()) || !Modifier.isPublic(method.getModifiers()) || !Modifier.isPublic(klazz.getModifiers())) {
+      return false;
+    }
+    try {
+      return Class.forName(klazz.getName(), false, Accessors.class.getClassLoader()) == klazz;
+    } catch(ClassNotFoundException e) {
+      return false;
+    }
+  }
+
+  private static Class<?> wrap(Class<?> type) {
+    return MethodType.methodType(type).wrap().returnType();
+  }
+
+}
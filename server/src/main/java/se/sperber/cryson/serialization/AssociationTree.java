@@ -0,0 +1,88 @@
+/*
+  Cryson
+  
+  Copyright 2011-2012 Björn Sperber (cryson@sperber.se)
+  
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  
+  http://www.apache.org/licenses/LICENSE-2.0
+  
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package se.sperber.cryson.serialization;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Association paths such as "childEntities.comments", parsed once per request into a tree
+ * so that nested levels can be looked up without rebuilding string sets.
+ */
+public class AssociationTree {
+
+  public static final AssociationTree EMPTY = new AssociationTree(Collections.<String, AssociationTree>emptyMap());
+
+  private final Map<String, AssociationTree> subTrees;
+
+  private boolean included;
+
+  private AssociationTree(Map<String, AssociationTree> subTrees) {
+    this.subTrees = subTrees;
+  }
+
+  public static AssociationTree parse(Set<String> associationPaths) {
+    if (associationPaths.isEmpty()) {
+      return EMPTY;
+    }
+
+    AssociationTree root = new AssociationTree(new HashMap<String, AssociationTree>());
+    for(String associationPath : associationPaths) {
+      AssociationTree currentTree = root;
+      int startIx = 0;
+      int separatorIx;
+      while((separatorIx = associationPath.indexOf('.', startIx)) != -1) {
+        currentTree = currentTree.getOrCreateSubTree(associationPath.substring(startIx, separatorIx));
+        startIx = separatorIx + 1;
+      }
+      currentTree.getOrCreateSubTree(associationPath.substring(startIx)).included = true;
+    }
+    return root;
+  }
+
+  public boolean includes(String association) {
+    AssociationTree subTree = subTrees.get(association);
+    return subTree != null && subTree.included;
+  }
+
+  public Set<String> getAssociations() {
+    return subTrees.keySet();
+  }
+
+  public boolean isEmpty() {
+    return subTrees.isEmpty();
+  }
+
+  public AssociationTree get(String association) {
+    AssociationTree subTree = subTrees.get(association);
+    return subTree == null ? EMPTY : subTree;
+  }
+
+  private AssociationTree getOrCreateSubTree(String association) {
+    AssociationTree subTree = subTrees.get(association);
+    if (subTree == null) {
+      subTree = new AssociationTree(new HashMap<String, AssociationTree>());
+      subTrees.put(association, subTree);
+    }
+    return subTree;
+  }
+
+}
@@ -0,0 +1,48 @@
+/*
+  Cryson
+  
+  Copyright 2011-2012 Björn Sperber (cryson@sperber.se)
+  
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  
+  http://www.apache.org/licenses/LICENSE-2.0
+  
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package se.sperber.cryson.serialization;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class CommittedEntities {
+
+  private final List<DeserializedEntity> persistedEntities = new ArrayList<DeserializedEntity>();
+  private final List<DeserializedEntity> updatedEntities = new ArrayList<DeserializedEntity>();
+  private final List<DeserializedEntity> patchedEntities = new ArrayList<DeserializedEntity>();
+  private final List<DeserializedEntity> deletedEntities = new ArrayList<DeserializedEntity>();
+
+  public List<DeserializedEntity> getPersistedEntities() {
+    return persistedEntities;
+  }
+
+  public List<DeserializedEntity> getUpdatedEntities() {
+    return updatedEntities;
+  }
+
+  // Updated entities sent with only their changed attributes and version
+  public List<DeserializedEntity> getPatchedEntities() {
+    return patchedEntities;
+  }
+
+  public List<DeserializedEntity> getDeletedEntities() {
+    return deletedEntities;
+  }
+
+}
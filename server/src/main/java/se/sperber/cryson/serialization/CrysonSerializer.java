@@ -18,22 +18,36 @@
 
 package se.sperber.cryson.serialization;
 
+import com.google.common.base.Function;
 import com.google.common.collect.Sets;
 import com.google.gson.*;
+import com.google.gson.annotations.SerializedName;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import com.google.gson.stream.MalformedJsonException;
 import org.hibernate.proxy.HibernateProxy;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.stereotype.Component;
+import se.sperber.cryson.security.ReadPermissions;
 import se.sperber.cryson.security.Restrictable;
+import se.sperber.cryson.serialization.EntityDeserializationPlan.DeserializedAttribute;
+import se.sperber.cryson.serialization.EntitySerializationPlan.LazyAssociation;
+import se.sperber.cryson.serialization.EntitySerializationPlan.SerializedAttribute;
+import se.sperber.cryson.serialization.EntitySerializationPlan.UserTypeAttribute;
+import se.sperber.cryson.serialization.EntitySerializationPlan.VirtualAttributeGetter;
 
 import javax.annotation.PostConstruct;
 
-import java.lang.reflect.Field;
-import java.lang.reflect.Method;
-import java.lang.reflect.ParameterizedType;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.lang.reflect.*;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.regex.Matcher;
 
 @Component
 public class CrysonSerializer {
@@ -44,9 +58,15 @@ public class CrysonSerializer {
 
   private JsonParser jsonParser;
 
-  private final Map<Class<?>, Set<Field>> lazyFieldsCache = new ConcurrentHashMap<Class<?>, Set<Field>>();
+  private TypeAdapter<Object> objectTypeAdapter;
 
-  private final Map<Class<?>, Set<Field>> userTypeFieldsCache = new ConcurrentHashMap<Class<?>, Set<Field>>();
+  private TypeAdapter<JsonElement> jsonElementTypeAdapter;
+
+  private final Map<String, Class<?>> entityClassesBySimpleName = new ConcurrentHashMap<String, Class<?>>();
+
+  private final Map<Class<?>, EntitySerializationPlan> serializationPlans = new ConcurrentHashMap<Class<?>, EntitySerializationPlan>();
+
+  private final Map<Class<?>, EntityDeserializationPlan> deserializationPlans = new ConcurrentHashMap<Class<?>, EntityDeserializationPlan>();
 
   private final Set<String> allowedUnauthorizedAttributeNames = Sets.newHashSet("id", "crysonEntityClass");
 
@@ -76,14 +96,37 @@ public class CrysonSerializer {
 
     gsonBuilder.setExclusionStrategies(lazyAssociationExclusionStrategy, userTypeExclusionStrategy, crysonExcludeExclusionStrategy);
     gson = gsonBuilder.create();
+    objectTypeAdapter = gson.getAdapter(Object.class);
+    jsonElementTypeAdapter = gson.getAdapter(JsonElement.class);
 
     hibernateProxyTypeAdapter.setGson(gson);
   }
 
   public JsonElement serializeToTree(Object object, Set<String> associationsToInclude) {
-    JsonElement jsonElement = gson.toJsonTree(object);
-    augmentJsonElement(object, jsonElement, associationsToInclude);
-    return jsonElement;
+    return serializeToTree(object, associationsToInclude, LazyCollectionIds.NONE);
+  }
+
+  public JsonElement serializeToTree(Object object, Set<String> associationsToInclude, final LazyCollectionIds lazyCollectionIds) {
+    final AssociationTree associationTree = AssociationTree.parse(associationsToInclude);
+    // The tree is built by the same streamed writer, through Gson's public tree adapter
+    TypeAdapter<Object> entityTreeAdapter = new TypeAdapter<Object>() {
+      @Override
+      public void write(JsonWriter jsonWriter, Object value) throws IOException {
+        try {
+          writeEntity(value, jsonWriter, associationTree, lazyCollectionIds);
+        } catch(IOException e) {
+          throw e;
+        } catch(Throwable t) {
+          throw new RuntimeException(t);
+        }
+      }
+
+      @Override
+      public Object read(JsonReader jsonReader) throws IOException {
+        throw new UnsupportedOperationException();
+      }
+    };
+    return entityTreeAdapter.toJsonTree(object);
   }
 
   public String serializeTree(JsonElement jsonElement) {
@@ -91,7 +134,42 @@ public class CrysonSerializer {
   }
 
   public String serialize(Object object, Set<String> associationsToInclude) {
-    return serializeTree(serializeToTree(object, associationsToInclude));
+    StringWriter stringWriter = new StringWriter();
+    try {
+      serialize(object, associationsToInclude, stringWriter);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    return stringWriter.toString();
+  }
+
+  public String serialize(Object object, Set<String> associationsToInclude, LazyCollectionIds lazyCollectionIds) {
+    StringWriter stringWriter = new StringWriter();
+    try {
+      serialize(object, associationsToInclude, lazyCollectionIds, stringWriter);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    return stringWriter.toString();
+  }
+
+  public void serialize(Object object, Set<String> associationsToInclude, Writer writer) throws IOException {
+    serialize(object, associationsToInclude, LazyCollectionIds.NONE, writer);
+  }
+
+  public void serialize(Object object, Set<String> associationsToInclude, LazyCollectionIds lazyCollectionIds, Writer writer) throws IOException {
+    JsonWriter jsonWriter = new JsonWriter(writer);
+    jsonWriter.setLenient(true);
+    jsonWriter.setHtmlSafe(true);
+    jsonWriter.setSerializeNulls(true);
+    try {
+      writeEntity(object, jsonWriter, AssociationTree.parse(associationsToInclude), lazyCollectionIds);
+    } catch(IOException e) {
+      throw e;
+    } catch(Throwable t) {
+      throw new RuntimeException(t);
+    }
+    jsonWriter.flush();
   }
 
   public String serialize(Object object) {
@@ -112,224 +190,585 @@ public class CrysonSerializer {
   }
 
   public <T> T deserialize(String json, Class<T> classOfT, Map<Long, Long> replacedTemporaryIds) {
-    JsonElement jsonElement = jsonParser.parse(json);
-    return augmentEntity(gson.fromJson(json, classOfT), jsonElement, replacedTemporaryIds);
+    return deserialize(new JsonReader(new StringReader(json)), classOfT, replacedTemporaryIds);
   }
 
   public <T> T deserialize(JsonElement jsonElement, Class<T> classOfT, Map<Long, Long> replacedTemporaryIds) {
-    return augmentEntity(gson.fromJson(jsonElement, classOfT), jsonElement, replacedTemporaryIds);
+    if (!jsonElement.isJsonObject()) {
+      throw new JsonSyntaxException("Expected an entity object but was " + jsonElement);
+    }
+    DeserializedEntity deserializedEntity = readEntity(jsonElement.getAsJsonObject(), classOfT);
+    replaceTemporaryIds(deserializedEntity, replacedTemporaryIds);
+    return classOfT.cast(deserializedEntity.getEntity());
   }
 
-  private void augmentJsonElement(Object rawObject, JsonElement jsonElement, Set<String> associationsToInclude) {
-    Object object = HibernateProxyTypeAdapter.initializeAndUnproxy(rawObject);
+  private <T> T deserialize(JsonReader jsonReader, Class<T> classOfT, Map<Long, Long> replacedTemporaryIds) {
+    jsonReader.setLenient(true);
     try {
-      if (object instanceof Collection) {
-        int ix = 0;
-        JsonArray jsonArray = jsonElement.getAsJsonArray();
-        for(Object subObject : (Collection)object) {
-          JsonElement subJsonElement = jsonArray.get(ix++);
-          augmentJsonElement(subObject, subJsonElement, associationsToInclude);
+      DeserializedEntity deserializedEntity = readEntity(jsonReader, classOfT);
+      replaceTemporaryIds(deserializedEntity, replacedTemporaryIds);
+      return classOfT.cast(deserializedEntity.getEntity());
+    } catch(MalformedJsonException e) {
+      throw new JsonSyntaxException(e);
+    } catch(IOException e) {
+      throw new JsonIOException(e);
+    }
+  }
+
+  public CommittedEntities readCommittedEntities(Reader reader) {
+    JsonReader jsonReader = new JsonReader(reader);
+    jsonReader.setLenient(true);
+    CommittedEntities committedEntities = new CommittedEntities();
+    try {
+      jsonReader.beginObject();
+      while(jsonReader.hasNext()) {
+        String name = jsonReader.nextName();
+        if (name.equals("persistedEntities")) {
+          readEntities(jsonReader, committedEntities.getPersistedEntities());
+        } else if (name.equals("updatedEntities")) {
+          readEntities(jsonReader, committedEntities.getUpdatedEntities());
+        } else if (name.equals("patchedEntities")) {
+          readEntities(jsonReader, committedEntities.getPatchedEntities());
+        } else if (name.equals("deletedEntities")) {
+          readEntities(jsonReader, committedEntities.getDeletedEntities());
+        } else {
+          jsonReader.skipValue();
+        }
+      }
+      jsonReader.endObject();
+    } catch(MalformedJsonException e) {
+      throw new JsonSyntaxException(e);
+    } catch(IOException e) {
+      throw new JsonIOException(e);
+    }
+    return committedEntities;
+  }
+
+  public void replaceTemporaryIds(DeserializedEntity deserializedEntity, Map<Long, Long> replacedTemporaryIds) {
+    if (replacedTemporaryIds != null) {
+      for(Object reference : deserializedEntity.getReferences()) {
+        Long replacedTemporaryId = replacedTemporaryIds.get(reflectionHelper.getPrimaryKey(reference));
+        if (replacedTemporaryId != null) {
+          reflectionHelper.setPrimaryKey(reference, replacedTemporaryId);
         }
+      }
+    }
+  }
+
+  // Replaces the placeholders stored in the entity's _cryson_id and _cryson_ids attributes, e.g. with session entities
+  public void resolveReferences(DeserializedEntity deserializedEntity, Function<Object, Object> resolver) {
+    Object entity = deserializedEntity.getEntity();
+    for(Map.Entry<Accessors.Setter, Object> referenceValue : deserializedEntity.getReferenceValues().entrySet()) {
+      if (referenceValue.getValue() instanceof Collection) {
+        Collection<?> placeHolderObjects = (Collection<?>)referenceValue.getValue();
+        Collection<Object> resolvedObjects = placeHolderObjects instanceof Set ? new HashSet<Object>() : new ArrayList<Object>();
+        for(Object placeHolderObject : placeHolderObjects) {
+          resolvedObjects.add(resolver.apply(placeHolderObject));
+        }
+        referenceValue.getKey().set(entity, resolvedObjects);
       } else {
-        jsonElement.getAsJsonObject().add("crysonEntityClass", new JsonPrimitive(object.getClass().getSimpleName()));
+        referenceValue.getKey().set(entity, resolver.apply(referenceValue.getValue()));
+      }
+    }
+  }
+
+  private void readEntities(JsonReader jsonReader, List<DeserializedEntity> deserializedEntities) throws IOException {
+    jsonReader.beginArray();
+    while(jsonReader.hasNext()) {
+      deserializedEntities.add(readEntity(jsonReader, null));
+    }
+    jsonReader.endArray();
+  }
 
-        if (object instanceof Restrictable) {
-          if (!((Restrictable)object).isReadableBy(SecurityContextHolder.getContext().getAuthentication())) {
-            transformJsonObjectToUnauthorizedEntity(jsonElement.getAsJsonObject());
-            return;
+  // Attributes are read straight into the entity once its class is known. Only attributes preceding
+  // crysonEntityClass, when the class isn't given, are buffered as JSON elements until then.
+  private DeserializedEntity readEntity(JsonReader jsonReader, Class<?> klazz) throws IOException {
+    EntityDeserializationPlan plan = klazz == null ? null : getDeserializationPlan(klazz);
+    Object entity = plan == null ? null : plan.newInstance();
+    List<Object> references = new ArrayList<Object>();
+    Map<Accessors.Setter, Object> referenceValues = new LinkedHashMap<Accessors.Setter, Object>();
+    Set<String> fieldNames = new HashSet<String>();
+    List<String> pendingNames = null;
+    List<JsonElement> pendingValues = null;
+
+    jsonReader.beginObject();
+    while(jsonReader.hasNext()) {
+      String name = jsonReader.nextName();
+      if (plan != null) {
+        readAttribute(jsonReader, name, plan, entity, references, referenceValues, fieldNames);
+      } else if (name.equals("crysonEntityClass")) {
+        String entityClassName = jsonReader.nextString();
+        plan = getDeserializationPlan(entityClassBySimpleName(entityClassName));
+        entity = plan.newInstance();
+        if (pendingNames != null) {
+          for(int ix = 0;ix < pendingNames.size();ix++) {
+            readAttribute(pendingValues.get(ix), pendingNames.get(ix), plan, entity, references, referenceValues, fieldNames);
           }
         }
+        readAttribute(new JsonPrimitive(entityClassName), name, plan, entity, references, referenceValues, fieldNames);
+      } else {
+        if (pendingNames == null) {
+          pendingNames = new ArrayList<String>();
+          pendingValues = new ArrayList<JsonElement>();
+        }
+        pendingNames.add(name);
+        pendingValues.add(jsonElementTypeAdapter.read(jsonReader));
+      }
+    }
+    jsonReader.endObject();
 
-        for(Map.Entry<String, JsonElement> member : jsonElement.getAsJsonObject().entrySet()) {
-          if (member.getValue().isJsonObject() || member.getValue().isJsonArray()) {
-            Field field = reflectionHelper.getField(object, member.getKey());
-            field.setAccessible(true);
-            augmentJsonElement(field.get(object), member.getValue(), subAssociationsToInclude(associationsToInclude, member.getKey()));
-          }
+    if (plan == null) {
+      throw new JsonSyntaxException("Entity without crysonEntityClass");
+    }
+    return new DeserializedEntity(entity, references, referenceValues, fieldNames);
+  }
+
+  private DeserializedEntity readEntity(JsonObject jsonObject, Class<?> klazz) {
+    if (klazz == null) {
+      JsonElement entityClassName = jsonObject.get("crysonEntityClass");
+      if (entityClassName == null) {
+        throw new JsonSyntaxException("Entity without crysonEntityClass");
+      }
+      klazz = entityClassBySimpleName(entityClassName.getAsString());
+    }
+    EntityDeserializationPlan plan = getDeserializationPlan(klazz);
+    Object entity = plan.newInstance();
+    List<Object> references = new ArrayList<Object>();
+    Map<Accessors.Setter, Object> referenceValues = new LinkedHashMap<Accessors.Setter, Object>();
+    Set<String> fieldNames = new HashSet<String>();
+    for(Map.Entry<String, JsonElement> attribute : jsonObject.entrySet()) {
+      readAttribute(attribute.getValue(), attribute.getKey(), plan, entity, references, referenceValues, fieldNames);
+    }
+    return new DeserializedEntity(entity, references, referenceValues, fieldNames);
+  }
+
+  // Same as reading the attribute from the stream, for values already parsed into a tree
+  private void readAttribute(JsonElement jsonElement, String name, EntityDeserializationPlan plan, Object entity, List<Object> references, Map<Accessors.Setter, Object> referenceValues, Set<String> fieldNames) {
+    DeserializedAttribute attribute = plan.getAttribute(name);
+    if (attribute == null) {
+      return;
+    }
+    fieldNames.add(attribute.getFieldName());
+
+    switch(attribute.getKind()) {
+      case VALUE:
+        Object value = attribute.getTypeAdapter().fromJsonTree(jsonElement);
+        if (value != null || !attribute.isPrimitive()) {
+          attribute.getSetter().set(entity, value);
         }
-        
-        Set<Field> userTypeFields = getUserTypeFields(object.getClass());
-        for (Field field : userTypeFields) {
-          Object fieldValue = field.get(object);
-          if (fieldValue != null && Map.class.isAssignableFrom(field.getType())) {
-            JsonElement jsonFieldValue = gsonAllInclusive.toJsonTree(fieldValue);
-            jsonElement.getAsJsonObject().add(field.getName() + "_cryson_usertype", jsonFieldValue);
-          }
+        break;
+      case REFERENCE:
+        if (!jsonElement.isJsonNull()) {
+          Object placeHolderObject = newPlaceHolderObject(attribute.getReferencedClass(), jsonElement.getAsLong());
+          references.add(placeHolderObject);
+          referenceValues.put(attribute.getSetter(), placeHolderObject);
+          attribute.getSetter().set(entity, placeHolderObject);
+        }
+        break;
+      case REFERENCES:
+        Collection<Object> placeHolderObjects = attribute.isSet() ? new HashSet<Object>() : new ArrayList<Object>();
+        for(JsonElement id : jsonElement.getAsJsonArray()) {
+          Object placeHolderObject = newPlaceHolderObject(attribute.getReferencedClass(), id.getAsLong());
+          references.add(placeHolderObject);
+          placeHolderObjects.add(placeHolderObject);
+        }
+        referenceValues.put(attribute.getSetter(), placeHolderObjects);
+        attribute.getSetter().set(entity, placeHolderObjects);
+        break;
+      case USER_TYPE:
+        Map<Object, Object> userTypeValues = new HashMap<Object, Object>();
+        for(Map.Entry<String, JsonElement> userTypeValue : jsonElement.getAsJsonObject().entrySet()) {
+          userTypeValues.put(userTypeValue.getKey(), objectTypeAdapter.fromJsonTree(userTypeValue.getValue())); // Support string->string maps only
+        }
+        attribute.getSetter().set(entity, userTypeValues);
+        break;
+    }
+  }
+
+  private void readAttribute(JsonReader jsonReader, String name, EntityDeserializationPlan plan, Object entity, List<Object> references, Map<Accessors.Setter, Object> referenceValues, Set<String> fieldNames) throws IOException {
+    DeserializedAttribute attribute = plan.getAttribute(name);
+    if (attribute == null) {
+      jsonReader.skipValue();
+      return;
+    }
+    fieldNames.add(attribute.getFieldName());
+
+    switch(attribute.getKind()) {
+      case VALUE:
+        Object value = attribute.getTypeAdapter().read(jsonReader);
+        if (value != null || !attribute.isPrimitive()) {
+          attribute.getSetter().set(entity, value);
+        }
+        break;
+      case REFERENCE:
+        if (jsonReader.peek() == JsonToken.NULL) {
+          jsonReader.nextNull();
+        } else {
+          Object placeHolderObject = newPlaceHolderObject(attribute.getReferencedClass(), jsonReader.nextLong());
+          references.add(placeHolderObject);
+          referenceValues.put(attribute.getSetter(), placeHolderObject);
+          attribute.getSetter().set(entity, placeHolderObject);
+        }
+        break;
+      case REFERENCES:
+        Collection<Object> placeHolderObjects = attribute.isSet() ? new HashSet<Object>() : new ArrayList<Object>();
+        jsonReader.beginArray();
+        while(jsonReader.hasNext()) {
+          Object placeHolderObject = newPlaceHolderObject(attribute.getReferencedClass(), jsonReader.nextLong());
+          references.add(placeHolderObject);
+          placeHolderObjects.add(placeHolderObject);
         }
+        jsonReader.endArray();
+        referenceValues.put(attribute.getSetter(), placeHolderObjects);
+        attribute.getSetter().set(entity, placeHolderObjects);
+        break;
+      case USER_TYPE:
+        Map<Object, Object> userTypeValues = new HashMap<Object, Object>();
+        jsonReader.beginObject();
+        while(jsonReader.hasNext()) {
+          userTypeValues.put(jsonReader.nextName(), objectTypeAdapter.read(jsonReader)); // Support string->string maps only
+        }
+        jsonReader.endObject();
+        attribute.getSetter().set(entity, userTypeValues);
+        break;
+    }
+  }
+
+  private Object newPlaceHolderObject(Class<?> klazz, Long primaryKey) {
+    try {
+      Object placeHolderObject = klazz.newInstance();
+      reflectionHelper.setPrimaryKey(placeHolderObject, primaryKey);
+      return placeHolderObject;
+    } catch(Exception e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private Class<?> entityClassBySimpleName(String entityClassName) {
+    Class<?> klazz = entityClassesBySimpleName.get(entityClassName);
+    if (klazz == null) {
+      throw new JsonSyntaxException("Unknown crysonEntityClass " + entityClassName);
+    }
+    return klazz;
+  }
 
-        Set<Method> transientGetters = reflectionHelper.getAllDeclaredVirtualAttributeGetters(object.getClass());
-        for (Method method : transientGetters) {
-          Object methodValue = method.invoke(object);
-          JsonElement jsonFieldValue = gsonAllInclusive.toJsonTree(methodValue);
-          jsonElement.getAsJsonObject().add(reflectionHelper.getAttributeNameFromGetterName(method.getName()), jsonFieldValue);
+  private void writeEntity(Object rawObject, JsonWriter jsonWriter, AssociationTree associationsToInclude, LazyCollectionIds lazyCollectionIds) throws Exception {
+    if (rawObject == null) {
+      jsonWriter.nullValue();
+      return;
+    }
+
+    Object object = HibernateProxyTypeAdapter.initializeAndUnproxy(rawObject);
+    if (object instanceof Collection) {
+      jsonWriter.beginArray();
+      for(Object subObject : (Collection)object) {
+        if (subObject == null || subObject instanceof HibernateProxy || isSerializedAsEntity(subObject.getClass())) {
+          writeEntity(subObject, jsonWriter, associationsToInclude, lazyCollectionIds);
+        } else {
+          gson.toJson(subObject, subObject.getClass(), jsonWriter);
         }
+      }
+      jsonWriter.endArray();
+      return;
+    }
+
+    EntitySerializationPlan plan = getSerializationPlan(object.getClass());
+    jsonWriter.beginObject();
 
-        Set<Field> fields = getLazyFields(object.getClass());
-        for(Field field : fields) {
-          Object fieldValue = field.get(object);
-          if (fieldValue != null && associationsToInclude.contains(field.getName())) {
-            JsonElement fieldValueJsonElement = gson.toJsonTree(fieldValue);
-            augmentJsonElement(fieldValue, fieldValueJsonElement, subAssociationsToInclude(associationsToInclude, field.getName()));
-            jsonElement.getAsJsonObject().add(field.getName(), fieldValueJsonElement);
-          } else if (fieldValue != null) {
-            if (fieldValue instanceof Collection) {
-              JsonArray primaryKeyArray = new JsonArray();
-              for(Object subElement : (Collection)fieldValue) {
-                primaryKeyArray.add(new JsonPrimitive(reflectionHelper.getPrimaryKey(subElement)));
-              }
-              jsonElement.getAsJsonObject().add(field.getName() + "_cryson_ids", primaryKeyArray);
-            } else {
-              jsonElement.getAsJsonObject().addProperty(field.getName() + "_cryson_id", reflectionHelper.getPrimaryKey(fieldValue));
+    if (plan.isRestrictable()) {
+      if (!ReadPermissions.isReadable(object)) {
+        writeAttributes(object, plan, plan.getUnauthorizedAttributes(), jsonWriter, AssociationTree.EMPTY, lazyCollectionIds);
+        jsonWriter.name("crysonEntityClass").value(plan.getEntityClassName());
+        jsonWriter.name("crysonUnauthorized").value(true);
+        jsonWriter.endObject();
+        return;
+      }
+    }
+
+    writeAttributes(object, plan, plan.getAttributes(), jsonWriter, associationsToInclude, lazyCollectionIds);
+    if (!plan.isEntityClassAttributeDeclared()) {
+      jsonWriter.name("crysonEntityClass").value(plan.getEntityClassName());
+    }
+
+    for(UserTypeAttribute userTypeAttribute : plan.getUserTypeAttributes()) {
+      Object fieldValue = userTypeAttribute.getGetter().get(object);
+      if (fieldValue != null) {
+        jsonWriter.name(userTypeAttribute.getName());
+        gsonAllInclusive.toJson(fieldValue, fieldValue.getClass(), jsonWriter);
+      }
+    }
+
+    for(VirtualAttributeGetter virtualAttributeGetter : plan.getVirtualAttributeGetters()) {
+      Object methodValue = virtualAttributeGetter.getGetter().get(object);
+      jsonWriter.name(virtualAttributeGetter.getName());
+      if (methodValue == null) {
+        jsonWriter.nullValue();
+      } else {
+        gsonAllInclusive.toJson(methodValue, methodValue.getClass(), jsonWriter);
+      }
+    }
+
+    for(LazyAssociation lazyAssociation : plan.getLazyAssociations()) {
+      Object fieldValue = lazyAssociation.getGetter().get(object);
+      if (fieldValue != null && associationsToInclude.includes(lazyAssociation.getName())) {
+        jsonWriter.name(lazyAssociation.getName());
+        writeEntity(fieldValue, jsonWriter, associationsToInclude.get(lazyAssociation.getName()), lazyCollectionIds);
+      } else if (fieldValue != null) {
+        if (fieldValue instanceof Collection) {
+          jsonWriter.name(lazyAssociation.getIdsName());
+          jsonWriter.beginArray();
+          List<Long> loadedIds = lazyCollectionIds.getIds(fieldValue);
+          if (loadedIds != null) {
+            for(Long loadedId : loadedIds) {
+              jsonWriter.value(loadedId);
             }
           } else {
-            jsonElement.getAsJsonObject().add(field.getName() + "_cryson_id", JsonNull.INSTANCE);
+            for(Object subElement : (Collection)fieldValue) {
+              jsonWriter.value(reflectionHelper.getPrimaryKey(subElement));
+            }
           }
+          jsonWriter.endArray();
+        } else {
+          jsonWriter.name(lazyAssociation.getIdName()).value(reflectionHelper.getPrimaryKey(fieldValue));
         }
+      } else {
+        jsonWriter.name(lazyAssociation.getIdName()).nullValue();
       }
-    } catch(Throwable t) {
-      throw new RuntimeException(t);
     }
+
+    jsonWriter.endObject();
   }
 
-  private void transformJsonObjectToUnauthorizedEntity(JsonObject jsonObject) {
-    for(Map.Entry<String, JsonElement> entry : jsonObject.entrySet()) {
-      if (!allowedUnauthorizedAttributeNames.contains(entry.getKey())) {
-        jsonObject.remove(entry.getKey());
+  private void writeAttributes(Object object, EntitySerializationPlan plan, SerializedAttribute[] attributes, JsonWriter jsonWriter, AssociationTree associationsToInclude, LazyCollectionIds lazyCollectionIds) throws Exception {
+    for(SerializedAttribute attribute : attributes) {
+      jsonWriter.name(attribute.getName());
+      if (attribute.isEntityClassAttribute()) {
+        jsonWriter.value(plan.getEntityClassName());
+        continue;
+      }
+
+      Object value = attribute.getGetter().get(object);
+      if (value == null) {
+        jsonWriter.nullValue();
+      } else if (attribute.getTypeAdapter() != null) {
+        attribute.getTypeAdapter().write(jsonWriter, value);
+      } else if (value instanceof HibernateProxy || value instanceof Collection || isSerializedAsEntity(value.getClass())) {
+        writeEntity(value, jsonWriter, associationsToInclude.get(attribute.getField().getName()), lazyCollectionIds);
+      } else if (attribute.getType() == Object.class || attribute.getType() instanceof TypeVariable) {
+        gson.toJson(value, value.getClass(), jsonWriter);
+      } else {
+        gson.toJson(value, attribute.getType(), jsonWriter);
       }
     }
-    jsonObject.addProperty("crysonUnauthorized", true);
   }
 
-  private Set<String> subAssociationsToInclude(Set<String> associationsToInclude, String association) {
-    if (associationsToInclude.size() == 0) {
-      return associationsToInclude;
-    }
+  private boolean isSerializedAsEntity(Class<?> klazz) {
+    return !klazz.isPrimitive() && !klazz.isArray() && !Enum.class.isAssignableFrom(klazz)
+            && !Map.class.isAssignableFrom(klazz) && !klazz.getName().startsWith("java.");
+  }
 
-    Set<String> subAssociations = new HashSet<String>();
-    String subAssociationPrefix = association + ".";
-    for(String associationToInclude : associationsToInclude) {
-      if (associationToInclude.startsWith(subAssociationPrefix)) {
-        subAssociations.add(associationToInclude.replaceFirst(Matcher.quoteReplacement(subAssociationPrefix), ""));
-      }
+  public void registerEntityClasses(Collection<Class<?>> entityClasses) {
+    for(Class<?> entityClass : entityClasses) {
+      entityClassesBySimpleName.put(entityClass.getSimpleName(), entityClass);
+      getSerializationPlan(entityClass);
+      getDeserializationPlan(entityClass);
     }
-    return subAssociations;
   }
 
-  public String getEntityClassName(Object entity) {
-    if (entity instanceof HibernateProxy) {
-      return ((HibernateProxy)entity).getHibernateLazyInitializer().getPersistentClass().getName();
-    } else {
-      return entity.getClass().getName();
+  private EntitySerializationPlan getSerializationPlan(Class<?> klazz) {
+    EntitySerializationPlan plan = serializationPlans.get(klazz);
+    if (plan == null) {
+      plan = compileSerializationPlan(klazz);
+      serializationPlans.put(klazz, plan);
     }
+    return plan;
   }
 
-  private <T> T augmentEntity(T object, JsonElement jsonElement, Map<Long, Long> replacedTemporaryIds) {
-    try {
-      Set<Map.Entry<String,JsonElement>> attributes = jsonElement.getAsJsonObject().entrySet();
-      for(Map.Entry<String,JsonElement> attribute : attributes) {
-        if (attribute.getKey().endsWith("_cryson_id")) {
-          String attributeName = attribute.getKey().split("_cryson_id")[0];
-          Field field = reflectionHelper.getField(object, attributeName);
-          if (field != null) {
-            if (attribute.getValue() != JsonNull.INSTANCE) {
-              Object placeHolderObject = field.getType().newInstance();
-              reflectionHelper.setPrimaryKey(placeHolderObject, primaryKeyForReplacementObject(attribute.getValue().getAsLong(), replacedTemporaryIds));
-              field.set(object, placeHolderObject);
-            }
-          }
-        } else if (attribute.getKey().endsWith("_cryson_ids")) {
-          String attributeName = attribute.getKey().split("_cryson_ids")[0];
-          Field field = reflectionHelper.getField(object, attributeName);
-          if (field != null) {
-            Iterator<JsonElement> attributeIterator = attribute.getValue().getAsJsonArray().iterator();
-            Collection<Object> placeHolderObjects = emptyCollectionForField(field);
-            while(attributeIterator.hasNext()) {
-              JsonElement attributeValue = attributeIterator.next();
-              Object placeHolderObject = ((Class)((ParameterizedType)(field.getGenericType())).getActualTypeArguments()[0]).newInstance();
-              reflectionHelper.setPrimaryKey(placeHolderObject, primaryKeyForReplacementObject(attributeValue.getAsLong(), replacedTemporaryIds));
-              placeHolderObjects.add(placeHolderObject);
-            }
-            field.set(object, placeHolderObjects);
-          }
-        } else if (attribute.getKey().endsWith("_cryson_usertype")) {
-          String attributeName = attribute.getKey().split("_cryson_usertype")[0];
-          Field field = reflectionHelper.getField(object, attributeName);
-          if (field != null && Map.class.isAssignableFrom(field.getType())) {
-            Map<Object, Object> placeHolderObjects = new HashMap<Object, Object>();
-            for (Map.Entry<String, JsonElement> valueEntry : attribute.getValue().getAsJsonObject().entrySet()) {
-              String placeHolderKeyObject = valueEntry.getKey();
-              Object placeHolderValueObject = gson.fromJson(valueEntry.getValue(), Object.class); // Support string->string maps only
-              placeHolderObjects.put(placeHolderKeyObject, placeHolderValueObject);
-            }
-            field.set(object, placeHolderObjects);
-          }
+  private EntitySerializationPlan compileSerializationPlan(Class<?> klazz) {
+    List<SerializedAttribute> attributes = new ArrayList<SerializedAttribute>();
+    List<SerializedAttribute> unauthorizedAttributes = new ArrayList<SerializedAttribute>();
+    for(Field field : reflectionHelper.getDeclaredFieldsInHierarchyOrder(klazz)) {
+      if (!isExcludedField(field)) {
+        SerializedAttribute attribute = new SerializedAttribute(field, getSerializedName(field), getFixedTypeAdapter(field));
+        attributes.add(attribute);
+        if (allowedUnauthorizedAttributeNames.contains(attribute.getName()) && !attribute.isEntityClassAttribute()) {
+          unauthorizedAttributes.add(attribute);
         }
       }
-      return object;
-    } catch(Throwable t) {
-      throw new RuntimeException(t);
     }
+
+    List<UserTypeAttribute> userTypeAttributes = new ArrayList<UserTypeAttribute>();
+    for(Field field : reflectionHelper.getUserTypeFields(klazz)) {
+      if (Map.class.isAssignableFrom(field.getType())) {
+        userTypeAttributes.add(new UserTypeAttribute(field));
+      }
+    }
+
+    List<VirtualAttributeGetter> virtualAttributeGetters = new ArrayList<VirtualAttributeGetter>();
+    for(Method method : reflectionHelper.getAllDeclaredVirtualAttributeGetters(klazz)) {
+      virtualAttributeGetters.add(new VirtualAttributeGetter(method, reflectionHelper.getAttributeNameFromGetterName(method.getName())));
+    }
+    Collections.sort(virtualAttributeGetters, new Comparator<VirtualAttributeGetter>() {
+      public int compare(VirtualAttributeGetter a, VirtualAttributeGetter b) {
+        return a.getName().compareTo(b.getName());
+      }
+    });
+
+    List<LazyAssociation> lazyAssociations = new ArrayList<LazyAssociation>();
+    for(Field field : reflectionHelper.getLazyFields(klazz)) {
+      lazyAssociations.add(new LazyAssociation(field));
+    }
+
+    return new EntitySerializationPlan(klazz.getSimpleName(), Restrictable.class.isAssignableFrom(klazz),
+            attributes.toArray(new SerializedAttribute[attributes.size()]),
+            unauthorizedAttributes.toArray(new SerializedAttribute[unauthorizedAttributes.size()]),
+            userTypeAttributes.toArray(new UserTypeAttribute[userTypeAttributes.size()]),
+            virtualAttributeGetters.toArray(new VirtualAttributeGetter[virtualAttributeGetters.size()]),
+            lazyAssociations.toArray(new LazyAssociation[lazyAssociations.size()]));
   }
 
-  private Long primaryKeyForReplacementObject(Long candidatePrimaryKey, Map<Long, Long> replacedTemporaryIds) {
-    if (replacedTemporaryIds != null) {
-      Long replacedTemporaryId = replacedTemporaryIds.get(candidatePrimaryKey);
-      if (replacedTemporaryId != null) {
-        return replacedTemporaryId;
+  private EntityDeserializationPlan getDeserializationPlan(Class<?> klazz) {
+    EntityDeserializationPlan plan = deserializationPlans.get(klazz);
+    if (plan == null) {
+      plan = compileDeserializationPlan(klazz);
+      deserializationPlans.put(klazz, plan);
+    }
+    return plan;
+  }
+
+  @SuppressWarnings("unchecked")
+  private EntityDeserializationPlan compileDeserializationPlan(Class<?> klazz) {
+    Map<String, DeserializedAttribute> attributes = new HashMap<String, DeserializedAttribute>();
+    List<Field> fields = reflectionHelper.getDeclaredFieldsInHierarchyOrder(klazz);
+    for(Field field : fields) {
+      if (!isExcludedField(field) && !attributes.containsKey(getSerializedName(field))) {
+        Type fieldType = resolveFieldType(klazz, field);
+        TypeAdapter<Object> typeAdapter = (TypeAdapter<Object>)gson.getAdapter(TypeToken.get(fieldType));
+        attributes.put(getSerializedName(field), DeserializedAttribute.value(field.getName(), reflectionHelper.getSetter(field), typeAdapter, field.getType().isPrimitive()));
+      }
+    }
+
+    // Suffixed attributes may target any field, the closest declaration winning
+    for(Field field : fields) {
+      if ((field.getModifiers() & Modifier.STATIC) != 0) {
+        continue;
+      }
+      String referenceName = field.getName() + "_cryson_id";
+      if (!attributes.containsKey(referenceName)) {
+        attributes.put(referenceName, DeserializedAttribute.reference(field.getName(), reflectionHelper.getSetter(field), field.getType()));
+      }
+      String referencesName = field.getName() + "_cryson_ids";
+      Type fieldType = resolveFieldType(klazz, field);
+      if (!attributes.containsKey(referencesName) && fieldType instanceof ParameterizedType
+              && ((ParameterizedType)fieldType).getActualTypeArguments()[0] instanceof Class) {
+        Class<?> referencedClass = (Class<?>)((ParameterizedType)fieldType).getActualTypeArguments()[0];
+        attributes.put(referencesName, DeserializedAttribute.references(field.getName(), reflectionHelper.getSetter(field), referencedClass, field.getType() == Set.class));
+      }
+      String userTypeName = field.getName() + "_cryson_usertype";
+      if (!attributes.containsKey(userTypeName) && Map.class.isAssignableFrom(field.getType())) {
+        attributes.put(userTypeName, DeserializedAttribute.userType(field.getName(), reflectionHelper.getSetter(field)));
       }
     }
-    return candidatePrimaryKey;
+
+    return new EntityDeserializationPlan(klazz, attributes);
   }
 
-  private Collection<Object> emptyCollectionForField(Field field) {
-    if (field.getType() == Set.class) {
-      return new HashSet<Object>();
-    } else {
-      return new ArrayList<Object>();
-    }
-  }
-
-  private Set<Field> getLazyFields(Class<?> klazz) {
-    Set<Field> annotatedFields = lazyFieldsCache.get(klazz);
-    if (annotatedFields == null) {
-      annotatedFields = new HashSet<Field>();
-      @SuppressWarnings("rawtypes")
-      Class currentKlazz = klazz;
-      while(currentKlazz != null) {
-        Set<Field> declaredFields = reflectionHelper.getAllDeclaredFields(currentKlazz);
-        for(Field declaredField : declaredFields) {
-          if (reflectionHelper.isLazyField(declaredField)) {
-            declaredField.setAccessible(true);
-            annotatedFields.add(declaredField);
-          }
+  // Type variables of generic superclasses are resolved through the type arguments klazz extends them with,
+  // including those nested in parameterized and array field types
+  private Type resolveFieldType(Class<?> klazz, Field field) {
+    return resolveType(klazz, field.getGenericType());
+  }
+
+  private Type resolveType(Class<?> klazz, Type type) {
+    if (type instanceof TypeVariable) {
+      return resolveTypeVariable(klazz, (TypeVariable<?>)type);
+    } else if (type instanceof ParameterizedType) {
+      final ParameterizedType parameterizedType = (ParameterizedType)type;
+      final Type[] typeArguments = parameterizedType.getActualTypeArguments().clone();
+      boolean resolved = false;
+      for(int ix = 0;ix < typeArguments.length;ix++) {
+        Type typeArgument = resolveType(klazz, typeArguments[ix]);
+        resolved |= typeArgument != typeArguments[ix];
+        typeArguments[ix] = typeArgument;
+      }
+      return !resolved ? type : new ParameterizedType() {
+        public Type[] getActualTypeArguments() {
+          return typeArguments.clone();
+        }
+
+        public Type getRawType() {
+          return parameterizedType.getRawType();
+        }
+
+        public Type getOwnerType() {
+          return parameterizedType.getOwnerType();
         }
-        currentKlazz = currentKlazz.getSuperclass();
+      };
+    } else if (type instanceof GenericArrayType) {
+      final Type componentType = resolveType(klazz, ((GenericArrayType)type).getGenericComponentType());
+      if (componentType instanceof Class) {
+        return Array.newInstance((Class<?>)componentType, 0).getClass();
       }
-      lazyFieldsCache.put(klazz, annotatedFields);
-    }
-    return annotatedFields;
-  }
-
-  // Todo: refactor this copy-pasted method
-  private Set<Field> getUserTypeFields(Class<?> klazz) {
-    Set<Field> annotatedFields = userTypeFieldsCache.get(klazz);
-    if (annotatedFields == null) {
-      annotatedFields = new HashSet<Field>();
-      @SuppressWarnings("rawtypes")
-      Class currentKlazz = klazz;
-      while(currentKlazz != null) {
-        Set<Field> declaredFields = reflectionHelper.getAllDeclaredFields(currentKlazz);
-        for(Field declaredField : declaredFields) {
-          if (declaredField.isAnnotationPresent(org.hibernate.annotations.Type.class)) {
-            declaredField.setAccessible(true);
-            annotatedFields.add(declaredField);
-          }
+      return componentType == ((GenericArrayType)type).getGenericComponentType() ? type : new GenericArrayType() {
+        public Type getGenericComponentType() {
+          return componentType;
+        }
+      };
+    }
+    return type;
+  }
+
+  private Type resolveTypeVariable(Class<?> klazz, TypeVariable<?> typeVariable) {
+    if (!(typeVariable.getGenericDeclaration() instanceof Class)) {
+      return typeVariable;
+    }
+    Class<?> declaringClass = (Class<?>)typeVariable.getGenericDeclaration();
+    Map<TypeVariable<?>, Type> typeArguments = new HashMap<TypeVariable<?>, Type>();
+    for(Class<?> subclass = klazz;subclass != null && subclass != declaringClass;subclass = subclass.getSuperclass()) {
+      if (subclass.getGenericSuperclass() instanceof ParameterizedType) {
+        ParameterizedType superclass = (ParameterizedType)subclass.getGenericSuperclass();
+        TypeVariable<?>[] typeParameters = ((Class<?>)superclass.getRawType()).getTypeParameters();
+        for(int ix = 0;ix < typeParameters.length;ix++) {
+          Type typeArgument = superclass.getActualTypeArguments()[ix];
+          typeArguments.put(typeParameters[ix], typeArguments.containsKey(typeArgument) ? typeArguments.get(typeArgument) : typeArgument);
         }
-        currentKlazz = currentKlazz.getSuperclass();
       }
-      userTypeFieldsCache.put(klazz, annotatedFields);
     }
-    return annotatedFields;
+    Type resolvedType = typeArguments.get(typeVariable);
+    return resolvedType == null ? typeVariable : resolvedType;
+  }
+
+  // Same field exclusions as the Gson instance, so the streamed output matches the tree output
+  private boolean isExcludedField(Field field) {
+    if ((field.getModifiers() & (Modifier.TRANSIENT | Modifier.STATIC)) != 0 || field.isSynthetic()) {
+      return true;
+    }
+    FieldAttributes fieldAttributes = new FieldAttributes(field);
+    return lazyAssociationExclusionStrategy.shouldSkipField(fieldAttributes)
+            || userTypeExclusionStrategy.shouldSkipField(fieldAttributes)
+            || crysonExcludeExclusionStrategy.shouldSkipField(fieldAttributes);
+  }
+
+  private String getSerializedName(Field field) {
+    SerializedName serializedName = field.getAnnotation(SerializedName.class);
+    return serializedName == null ? field.getName() : serializedName.value();
+  }
+
+  @SuppressWarnings("unchecked")
+  private TypeAdapter<Object> getFixedTypeAdapter(Field field) {
+    Class<?> type = field.getType();
+    if (type.isPrimitive() || (Modifier.isFinal(type.getModifiers()) && type.getName().startsWith("java."))) {
+      return (TypeAdapter<Object>)gson.getAdapter(TypeToken.get(field.getGenericType()));
+    }
+    return null;
+  }
+
+  public String getEntityClassName(Object entity) {
+    if (entity instanceof HibernateProxy) {
+      return ((HibernateProxy)entity).getHibernateLazyInitializer().getPersistentClass().getName();
+    } else {
+      return entity.getClass().getName();
+    }
   }
 
   public JsonElement parse(String json) {
@@ -0,0 +1,56 @@
+/*
+  Cryson
+  
+  Copyright 2011-2012 Björn Sperber (cryson@sperber.se)
+  
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  
+  http://www.apache.org/licenses/LICENSE-2.0
+  
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package se.sperber.cryson.serialization;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Set;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+public class CrysonStreamingOutput implements StreamingOutput {
+
+  private final CrysonSerializer crysonSerializer;
+
+  private final Object object;
+
+  private final Set<String> associationsToInclude;
+
+  private final LazyCollectionIds lazyCollectionIds;
+
+  public CrysonStreamingOutput(CrysonSerializer crysonSerializer, Object object, Set<String> associationsToInclude, LazyCollectionIds lazyCollectionIds) {
+    this.crysonSerializer = crysonSerializer;
+    this.object = object;
+    this.associationsToInclude = associationsToInclude;
+    this.lazyCollectionIds = lazyCollectionIds;
+  }
+
+  @Override
+  public void write(OutputStream outputStream) throws IOException, WebApplicationException {
+    Writer writer = new BufferedWriter(new OutputStreamWriter(outputStream, UTF_8));
+    crysonSerializer.serialize(object, associationsToInclude, lazyCollectionIds, writer);
+    writer.flush();
+  }
+
+}
@@ -0,0 +1,65 @@
+/*
+  Cryson
+  
+  Copyright 2011-2012 Björn Sperber (cryson@sperber.se)
+  
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  
+  http://www.apache.org/licenses/LICENSE-2.0
+  
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package se.sperber.cryson.serialization;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An entity read by CrysonSerializer together with the placeholder entities it references through
+ * _cryson_id and _cryson_ids attributes, whose ids may still be temporary.
+ */
+public class DeserializedEntity {
+
+  private final Object entity;
+  private final List<Object> references;
+  private final Map<Accessors.Setter, Object> referenceValues;
+  private final Set<String> fieldNames;
+
+  DeserializedEntity(Object entity, List<Object> references, Map<Accessors.Setter, Object> referenceValues, Set<String> fieldNames) {
+    this.entity = entity;
+    this.references = references;
+    this.referenceValues = referenceValues;
+    this.fieldNames = fieldNames;
+  }
+
+  public Object getEntity() {
+    return entity;
+  }
+
+  public Class<?> getEntityClass() {
+    return entity.getClass();
+  }
+
+  // The fields that were present in the JSON, which are all that a patched entity changes
+  public Set<String> getFieldNames() {
+    return fieldNames;
+  }
+
+  List<Object> getReferences() {
+    return references;
+  }
+
+  // The placeholder, or collection of placeholders, last stored through each reference attribute
+  Map<Accessors.Setter, Object> getReferenceValues() {
+    return referenceValues;
+  }
+
+}
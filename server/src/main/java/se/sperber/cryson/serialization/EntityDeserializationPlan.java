@@ -0,0 +1,141 @@
+/*
+  Cryson
+  
+  Copyright 2011-2012 Björn Sperber (cryson@sperber.se)
+  
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  
+  http://www.apache.org/licenses/LICENSE-2.0
+  
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package se.sperber.cryson.serialization;
+
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.TypeAdapter;
+
+import java.lang.reflect.Constructor;
+import java.util.Map;
+
+/**
+ * Everything CrysonSerializer needs to read one entity class, resolved once per class:
+ * every accepted JSON attribute name, including the _cryson_id, _cryson_ids and _cryson_usertype suffixed ones,
+ * mapped to how its value is read and where it is stored.
+ */
+class EntityDeserializationPlan {
+
+  enum Kind { VALUE, REFERENCE, REFERENCES, USER_TYPE }
+
+  private final Class<?> entityClass;
+  private final Constructor<?> constructor;
+  private final Map<String, DeserializedAttribute> attributes;
+
+  EntityDeserializationPlan(Class<?> entityClass, Map<String, DeserializedAttribute> attributes) {
+    this.entityClass = entityClass;
+    this.constructor = findNoArgConstructor(entityClass);
+    this.attributes = attributes;
+  }
+
+  // Entities need a no-arg constructor anyway, but classes without one only fail once actually read
+  private static Constructor<?> findNoArgConstructor(Class<?> entityClass) {
+    try {
+      Constructor<?> constructor = entityClass.getDeclaredConstructor();
+      constructor.setAccessible(true);
+      return constructor;
+    } catch(NoSuchMethodException e) {
+      return null;
+    }
+  }
+
+  Object newInstance() {
+    if (constructor == null) {
+      throw new JsonSyntaxException("No no-arg constructor for " + entityClass.getName());
+    }
+    try {
+      return constructor.newInstance();
+    } catch(Exception e) {
+      throw new RuntimeException("Failed to instantiate " + entityClass.getName(), e);
+    }
+  }
+
+  DeserializedAttribute getAttribute(String name) {
+    return attributes.get(name);
+  }
+
+  static class DeserializedAttribute {
+
+    private final Kind kind;
+    private final String fieldName;
+    private final Accessors.Setter setter;
+    private final TypeAdapter<Object> typeAdapter;
+    private final boolean primitive;
+    private final Class<?> referencedClass;
+    private final boolean set;
+
+    private DeserializedAttribute(Kind kind, String fieldName, Accessors.Setter setter, TypeAdapter<Object> typeAdapter, boolean primitive, Class<?> referencedClass, boolean set) {
+      this.kind = kind;
+      this.fieldName = fieldName;
+      this.setter = setter;
+      this.typeAdapter = typeAdapter;
+      this.primitive = primitive;
+      this.referencedClass = referencedClass;
+      this.set = set;
+    }
+
+    static DeserializedAttribute value(String fieldName, Accessors.Setter setter, TypeAdapter<Object> typeAdapter, boolean primitive) {
+      return new DeserializedAttribute(Kind.VALUE, fieldName, setter, typeAdapter, primitive, null, false);
+    }
+
+    static DeserializedAttribute reference(String fieldName, Accessors.Setter setter, Class<?> referencedClass) {
+      return new DeserializedAttribute(Kind.REFERENCE, fieldName, setter, null, false, referencedClass, false);
+    }
+
+    static DeserializedAttribute references(String fieldName, Accessors.Setter setter, Class<?> referencedClass, boolean set) {
+      return new DeserializedAttribute(Kind.REFERENCES, fieldName, setter, null, false, referencedClass, set);
+    }
+
+    static DeserializedAttribute userType(String fieldName, Accessors.Setter setter) {
+      return new DeserializedAttribute(Kind.USER_TYPE, fieldName, setter, null, false, null, false);
+    }
+
+    Kind getKind() {
+      return kind;
+    }
+
+    // The entity field stored through, whichever of its JSON names was read
+    String getFieldName() {
+      return fieldName;
+    }
+
+    Accessors.Setter getSetter() {
+      return setter;
+    }
+
+    TypeAdapter<Object> getTypeAdapter() {
+      return typeAdapter;
+    }
+
+    // Gson leaves primitive fields untouched when the JSON value is null
+    boolean isPrimitive() {
+      return primitive;
+    }
+
+    Class<?> getReferencedClass() {
+      return referencedClass;
+    }
+
+    // Whether a collection of references is stored as a Set rather than a List
+    boolean isSet() {
+      return set;
+    }
+
+  }
+
+}
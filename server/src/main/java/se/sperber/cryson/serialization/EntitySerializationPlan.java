@@ -0,0 +1,207 @@
+/*
+  Cryson
+  
+  Copyright 2011-2012 Björn Sperber (cryson@sperber.se)
+  
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  
+  http://www.apache.org/licenses/LICENSE-2.0
+  
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package se.sperber.cryson.serialization;
+
+import com.google.gson.TypeAdapter;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Type;
+
+/**
+ * Everything CrysonSerializer needs to write one entity class, resolved once per class:
+ * the Gson-visible attributes in output order, user type maps, virtual attributes and lazy associations.
+ */
+class EntitySerializationPlan {
+
+  private final String entityClassName;
+  private final boolean restrictable;
+  private final boolean entityClassAttributeDeclared;
+  private final SerializedAttribute[] attributes;
+  private final SerializedAttribute[] unauthorizedAttributes;
+  private final UserTypeAttribute[] userTypeAttributes;
+  private final VirtualAttributeGetter[] virtualAttributeGetters;
+  private final LazyAssociation[] lazyAssociations;
+
+  EntitySerializationPlan(String entityClassName, boolean restrictable, SerializedAttribute[] attributes,
+                          SerializedAttribute[] unauthorizedAttributes, UserTypeAttribute[] userTypeAttributes,
+                          VirtualAttributeGetter[] virtualAttributeGetters, LazyAssociation[] lazyAssociations) {
+    this.entityClassName = entityClassName;
+    this.restrictable = restrictable;
+    this.attributes = attributes;
+    this.unauthorizedAttributes = unauthorizedAttributes;
+    this.userTypeAttributes = userTypeAttributes;
+    this.virtualAttributeGetters = virtualAttributeGetters;
+    this.lazyAssociations = lazyAssociations;
+
+    boolean declared = false;
+    for(SerializedAttribute attribute : attributes) {
+      declared = declared || attribute.isEntityClassAttribute();
+    }
+    this.entityClassAttributeDeclared = declared;
+  }
+
+  String getEntityClassName() {
+    return entityClassName;
+  }
+
+  boolean isRestrictable() {
+    return restrictable;
+  }
+
+  boolean isEntityClassAttributeDeclared() {
+    return entityClassAttributeDeclared;
+  }
+
+  SerializedAttribute[] getAttributes() {
+    return attributes;
+  }
+
+  SerializedAttribute[] getUnauthorizedAttributes() {
+    return unauthorizedAttributes;
+  }
+
+  UserTypeAttribute[] getUserTypeAttributes() {
+    return userTypeAttributes;
+  }
+
+  VirtualAttributeGetter[] getVirtualAttributeGetters() {
+    return virtualAttributeGetters;
+  }
+
+  LazyAssociation[] getLazyAssociations() {
+    return lazyAssociations;
+  }
+
+  static class SerializedAttribute {
+
+    private final Field field;
+    private final Accessors.Getter getter;
+    private final String name;
+    private final Type type;
+    private final TypeAdapter<Object> typeAdapter;
+
+    SerializedAttribute(Field field, String name, TypeAdapter<Object> typeAdapter) {
+      this.field = field;
+      this.getter = Accessors.getter(field);
+      this.name = name;
+      this.type = field.getGenericType();
+      this.typeAdapter = typeAdapter;
+    }
+
+    Field getField() {
+      return field;
+    }
+
+    Accessors.Getter getGetter() {
+      return getter;
+    }
+
+    String getName() {
+      return name;
+    }
+
+    Type getType() {
+      return type;
+    }
+
+    // Only set when the declared type fully determines the JSON representation, e.g. String or long
+    TypeAdapter<Object> getTypeAdapter() {
+      return typeAdapter;
+    }
+
+    boolean isEntityClassAttribute() {
+      return name.equals("crysonEntityClass");
+    }
+
+  }
+
+  static class UserTypeAttribute {
+
+    private final Accessors.Getter getter;
+    private final String name;
+
+    UserTypeAttribute(Field field) {
+      this.getter = Accessors.getter(field);
+      this.name = field.getName() + "_cryson_usertype";
+    }
+
+    Accessors.Getter getGetter() {
+      return getter;
+    }
+
+    String getName() {
+      return name;
+    }
+
+  }
+
+  static class VirtualAttributeGetter {
+
+    private final Accessors.Getter getter;
+    private final String name;
+
+    VirtualAttributeGetter(Method method, String name) {
+      this.getter = Accessors.getter(method);
+      this.name = name;
+    }
+
+    Accessors.Getter getGetter() {
+      return getter;
+    }
+
+    String getName() {
+      return name;
+    }
+
+  }
+
+  static class LazyAssociation {
+
+    private final Accessors.Getter getter;
+    private final String name;
+    private final String idName;
+    private final String idsName;
+
+    LazyAssociation(Field field) {
+      this.getter = Accessors.getter(field);
+      this.name = field.getName();
+      this.idName = name + "_cryson_id";
+      this.idsName = name + "_cryson_ids";
+    }
+
+    Accessors.Getter getGetter() {
+      return getter;
+    }
+
+    String getName() {
+      return name;
+    }
+
+    String getIdName() {
+      return idName;
+    }
+
+    String getIdsName() {
+      return idsName;
+    }
+
+  }
+
+}
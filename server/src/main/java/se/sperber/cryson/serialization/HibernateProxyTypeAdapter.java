@@ -36,7 +36,7 @@ public class HibernateProxyTypeAdapter implements JsonSerializer<HibernateProxy>
     return gson.toJsonTree(initializeAndUnproxy(hibernateProxy));
   }
 
-  static <T> T initializeAndUnproxy(T entity) {
+  public static <T> T initializeAndUnproxy(T entity) {
     if (entity == null) {
       throw new NullPointerException("Entity passed for initialization is null");
     }
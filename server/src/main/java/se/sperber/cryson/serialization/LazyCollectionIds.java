@@ -0,0 +1,66 @@
+/*
+  Cryson
+  
+  Copyright 2011-2012 Björn Sperber (cryson@sperber.se)
+  
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  
+  http://www.apache.org/licenses/LICENSE-2.0
+  
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package se.sperber.cryson.serialization;
+
+import org.hibernate.collection.spi.PersistentCollection;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Element ids of lazy collections, loaded up front so that CrysonSerializer can write _cryson_ids
+ * without initializing the collections. Keyed by collection role and owner id.
+ */
+public class LazyCollectionIds {
+
+  public static final LazyCollectionIds NONE = new LazyCollectionIds();
+
+  private final Map<String, Map<Long, List<Long>>> idsByRole = new HashMap<String, Map<Long, List<Long>>>();
+
+  public void addOwner(String role, Long ownerId) {
+    Map<Long, List<Long>> idsByOwner = idsByRole.get(role);
+    if (idsByOwner == null) {
+      idsByOwner = new HashMap<Long, List<Long>>();
+      idsByRole.put(role, idsByOwner);
+    }
+    if (!idsByOwner.containsKey(ownerId)) {
+      idsByOwner.put(ownerId, new ArrayList<Long>());
+    }
+  }
+
+  public void addId(String role, Long ownerId, Long id) {
+    addOwner(role, ownerId);
+    idsByRole.get(role).get(ownerId).add(id);
+  }
+
+  // Only answers for collections that are still uninitialized, initialized ones are cheaper to iterate
+  public List<Long> getIds(Object collection) {
+    if (collection instanceof PersistentCollection && !((PersistentCollection)collection).wasInitialized()) {
+      PersistentCollection persistentCollection = (PersistentCollection)collection;
+      Map<Long, List<Long>> idsByOwner = idsByRole.get(persistentCollection.getRole());
+      if (idsByOwner != null) {
+        return idsByOwner.get((Long)persistentCollection.getKey());
+      }
+    }
+    return null;
+  }
+
+}
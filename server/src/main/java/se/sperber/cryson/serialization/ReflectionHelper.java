@@ -39,8 +39,13 @@ public class ReflectionHelper {
   private ConcurrentMap<Class, List<Field>> versionFieldCache = new ConcurrentHashMap<Class, List<Field>>();
   private ConcurrentMap<Class, List<Field>> oneToOneFieldCache = new ConcurrentHashMap<Class, List<Field>>();
   private ConcurrentMap<Class, Set<Method>> virtualAttributeGetterCache = new ConcurrentHashMap<Class, Set<Method>>();
-  private ConcurrentMap<Class, Method> primaryKeyGetterCache = new ConcurrentHashMap<Class, Method>();
-  private ConcurrentMap<Class, Method> primaryKeySetterCache = new ConcurrentHashMap<Class, Method>();
+  private ConcurrentMap<Class, Accessors.Getter> primaryKeyGetterCache = new ConcurrentHashMap<Class, Accessors.Getter>();
+  private ConcurrentMap<Class, Accessors.Setter> primaryKeySetterCache = new ConcurrentHashMap<Class, Accessors.Setter>();
+  private ConcurrentMap<Field, Accessors.Getter> fieldGetterCache = new ConcurrentHashMap<Field, Accessors.Getter>();
+  private ConcurrentMap<Field, Accessors.Setter> fieldSetterCache = new ConcurrentHashMap<Field, Accessors.Setter>();
+  private ConcurrentMap<Class, List<Field>> lazyFieldsCache = new ConcurrentHashMap<Class, List<Field>>();
+  private ConcurrentMap<Class, List<Field>> userTypeFieldsCache = new ConcurrentHashMap<Class, List<Field>>();
+  private ConcurrentMap<Class, List<Field>> associationFieldsCache = new ConcurrentHashMap<Class, List<Field>>();
 
   public boolean isLazyField(Field field) {
     if (lazyFieldCache.containsKey(field)) {
@@ -141,6 +146,66 @@ public class ReflectionHelper {
     return fields;
   }
 
+  public List<Field> getDeclaredFieldsInHierarchyOrder(Class klazz) {
+    Class currentKlazz = klazz;
+    List<Field> fields = new ArrayList<Field>();
+    while(currentKlazz != null && currentKlazz != Object.class) {
+      fields.addAll(Arrays.asList(currentKlazz.getDeclaredFields()));
+      currentKlazz = currentKlazz.getSuperclass();
+    }
+    return fields;
+  }
+
+  public boolean isUserTypeField(Field field) {
+    return field.isAnnotationPresent(org.hibernate.annotations.Type.class);
+  }
+
+  public List<Field> getLazyFields(Class klazz) {
+    List<Field> lazyFields = lazyFieldsCache.get(klazz);
+    if (lazyFields == null) {
+      lazyFields = new ArrayList<Field>();
+      for(Field field : getDeclaredFieldsInHierarchyOrder(klazz)) {
+        if (isLazyField(field)) {
+          field.setAccessible(true);
+          lazyFields.add(field);
+        }
+      }
+      lazyFieldsCache.put(klazz, lazyFields);
+    }
+    return lazyFields;
+  }
+
+  public List<Field> getUserTypeFields(Class klazz) {
+    List<Field> userTypeFields = userTypeFieldsCache.get(klazz);
+    if (userTypeFields == null) {
+      userTypeFields = new ArrayList<Field>();
+      for(Field field : getDeclaredFieldsInHierarchyOrder(klazz)) {
+        if (isUserTypeField(field)) {
+          field.setAccessible(true);
+          userTypeFields.add(field);
+        }
+      }
+      userTypeFieldsCache.put(klazz, userTypeFields);
+    }
+    return userTypeFields;
+  }
+
+  public List<Field> getAssociationFields(Class klazz) {
+    List<Field> associationFields = associationFieldsCache.get(klazz);
+    if (associationFields == null) {
+      associationFields = new ArrayList<Field>();
+      for(Field field : getDeclaredFieldsInHierarchyOrder(klazz)) {
+        if (field.isAnnotationPresent(ManyToOne.class) || field.isAnnotationPresent(OneToOne.class) || field.isAnnotationPresent(OneToMany.class)
+                || field.isAnnotationPresent(ManyToMany.class) || field.isAnnotationPresent(ElementCollection.class)) {
+          field.setAccessible(true);
+          associationFields.add(field);
+        }
+      }
+      associationFieldsCache.put(klazz, associationFields);
+    }
+    return associationFields;
+  }
+
   public Set<Method> getAllDeclaredVirtualAttributeGetters(Class klazz) {
     if (virtualAttributeGetterCache.containsKey(klazz)) {
       return virtualAttributeGetterCache.get(klazz);
@@ -223,17 +288,16 @@ public class ReflectionHelper {
       if (entity instanceof HibernateProxy) {
         return (Long)((HibernateProxy)entity).getHibernateLazyInitializer().getIdentifier();
       } else {
-        try {
-          Method method = primaryKeyGetterCache.get(entity.getClass());
-          if (method == null) {
-            method = entity.getClass().getMethod("getId");
-            primaryKeyGetterCache.put(entity.getClass(), method);
+        Accessors.Getter getter = primaryKeyGetterCache.get(entity.getClass());
+        if (getter == null) {
+          try {
+            getter = Accessors.getter(entity.getClass().getMethod("getId"));
+          } catch(NoSuchMethodException e) {
+            getter = Accessors.getter(getField(entity, "id"));
           }
-          return (Long)method.invoke(entity);
-        } catch(NoSuchMethodException e) {
-          Field field = getField(entity, "id");
-          return (Long)field.get(entity);
+          primaryKeyGetterCache.put(entity.getClass(), getter);
         }
+        return (Long)getter.get(entity);
       }
     } catch(Throwable t) {
       throw new RuntimeException(t);
@@ -242,22 +306,39 @@ public class ReflectionHelper {
 
   public void setPrimaryKey(Object entity, Long primaryKey) {
     try {
-      try {
-        Method method = primaryKeySetterCache.get(entity.getClass());
-        if (method == null) {
-          method = entity.getClass().getMethod("setId", Long.class);
-          primaryKeySetterCache.put(entity.getClass(), method);
+      Accessors.Setter setter = primaryKeySetterCache.get(entity.getClass());
+      if (setter == null) {
+        try {
+          setter = Accessors.setter(entity.getClass().getMethod("setId", Long.class));
+        } catch(NoSuchMethodException e) {
+          setter = Accessors.setter(getField(entity, "id"));
         }
-        method.invoke(entity, primaryKey);
-      } catch(NoSuchMethodException e) {
-        Field field = getField(entity, "id");
-        field.set(entity, primaryKey);
+        primaryKeySetterCache.put(entity.getClass(), setter);
       }
+      setter.set(entity, primaryKey);
     } catch(Throwable t) {
       throw new RuntimeException(t);
     }
   }
 
+  public Accessors.Getter getGetter(Field field) {
+    Accessors.Getter getter = fieldGetterCache.get(field);
+    if (getter == null) {
+      getter = Accessors.getter(field);
+      fieldGetterCache.put(field, getter);
+    }
+    return getter;
+  }
+
+  public Accessors.Setter getSetter(Field field) {
+    Accessors.Setter setter = fieldSetterCache.get(field);
+    if (setter == null) {
+      setter = Accessors.setter(field);
+      fieldSetterCache.put(field, setter);
+    }
+    return setter;
+  }
+
   Field getField(Object object, String fieldName) {
     Field result = null;
     Class klazz = object.getClass();
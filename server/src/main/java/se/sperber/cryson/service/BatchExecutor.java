@@ -0,0 +1,187 @@
+/*
+  Cryson
+  
+  Copyright 2011-2012 Björn Sperber (cryson@sperber.se)
+  
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  
+  http://www.apache.org/licenses/LICENSE-2.0
+  
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package se.sperber.cryson.service;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.security.core.context.SecurityContext;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.stereotype.Component;
+import se.sperber.cryson.security.ReadPermissions;
+import se.sperber.cryson.serialization.CrysonSerializer;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.ws.rs.core.Response;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static javax.ws.rs.core.HttpHeaders.CONTENT_LENGTH;
+import static se.sperber.cryson.util.StringUtils.countUtf8Bytes;
+
+/**
+ * Runs the sub-requests of a batch concurrently, split into at most cryson.batch.max_parallelism groups, each read in
+ * a read-only transaction, session and connection of its own. One group runs on the request thread and the others
+ * on a shared pool of cryson.batch.threads threads; groups the pool has no room for run on the request thread too.
+ * Entities found by sub-requests of different groups are serialized once per group.
+ */
+@Component
+public class BatchExecutor {
+
+  @Autowired
+  private CrysonService crysonService;
+
+  @Autowired
+  private CrysonSerializer crysonSerializer;
+
+  @Value("${cryson.batch.threads:16}")
+  private int threads;
+
+  @Value("${cryson.batch.queue_size:64}")
+  private int queueSize;
+
+  @Value("${cryson.batch.max_parallelism:4}")
+  private int maxParallelism;
+
+  private ThreadPoolExecutor executor;
+
+  @PostConstruct
+  public void createExecutor() {
+    executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(queueSize),
+            new ThreadFactoryBuilder().setNameFormat("cryson-batch-%d").setDaemon(true).build());
+    executor.allowCoreThreadTimeOut(true);
+  }
+
+  @PreDestroy
+  public void shutdownExecutor() {
+    executor.shutdownNow();
+  }
+
+  public Response getBatch(List<BatchRequest> batchRequests) throws Exception {
+    String serializedBatch = crysonSerializer.serializeTree(executeBatch(batchRequests));
+    return Response.ok(serializedBatch)
+      .header(CONTENT_LENGTH, countUtf8Bytes(serializedBatch))
+      .build();
+  }
+
+  private JsonObject executeBatch(List<BatchRequest> batchRequests) throws Exception {
+    int groupCount = Math.max(1, Math.min(maxParallelism, batchRequests.size()));
+    List<List<Integer>> groupIndexes = new ArrayList<List<Integer>>(groupCount);
+    List<List<BatchRequest>> groups = new ArrayList<List<BatchRequest>>(groupCount);
+    for(int groupIndex = 0;groupIndex < groupCount;groupIndex++) {
+      groupIndexes.add(new ArrayList<Integer>());
+      groups.add(new ArrayList<BatchRequest>());
+    }
+    for(int requestIndex = 0;requestIndex < batchRequests.size();requestIndex++) {
+      groupIndexes.get(requestIndex % groupCount).add(requestIndex);
+      groups.get(requestIndex % groupCount).add(batchRequests.get(requestIndex));
+    }
+
+    List<Future<JsonObject>> futures = new ArrayList<Future<JsonObject>>(groupCount);
+    try {
+      futures.add(null);
+      for(int groupIndex = 1;groupIndex < groupCount;groupIndex++) {
+        futures.add(submit(groups.get(groupIndex)));
+      }
+
+      JsonElement[] results = new JsonElement[batchRequests.size()];
+      JsonArray entities = new JsonArray();
+      for(int groupIndex = 0;groupIndex < groupCount;groupIndex++) {
+        Future<JsonObject> future = futures.get(groupIndex);
+        JsonObject groupBatch = future != null ? get(future) : crysonService.executeBatch(groups.get(groupIndex));
+        mergeGroup(groupBatch, groupIndexes.get(groupIndex), entities, results);
+      }
+
+      JsonArray resultArray = new JsonArray();
+      for(JsonElement result : results) {
+        resultArray.add(result);
+      }
+      JsonObject batch = new JsonObject();
+      batch.add("entities", entities);
+      batch.add("results", resultArray);
+      return batch;
+    } finally {
+      for(Future<JsonObject> future : futures) {
+        if (future != null) {
+          future.cancel(true);
+        }
+      }
+    }
+  }
+
+  // Pool threads read as the requesting user, with read permission decisions remembered for the group
+  private Future<JsonObject> submit(final List<BatchRequest> group) {
+    final SecurityContext securityContext = SecurityContextHolder.getContext();
+    try {
+      return executor.submit(new Callable<JsonObject>() {
+        public JsonObject call() throws Exception {
+          SecurityContextHolder.setContext(securityContext);
+          ReadPermissions.beginRequest();
+          try {
+            return crysonService.executeBatch(group);
+          } finally {
+            ReadPermissions.endRequest();
+            SecurityContextHolder.clearContext();
+          }
+        }
+      });
+    } catch(RejectedExecutionException e) {
+      return null;
+    }
+  }
+
+  private JsonObject get(Future<JsonObject> future) throws Exception {
+    try {
+      return future.get();
+    } catch(ExecutionException e) {
+      throw e.getCause() instanceof Exception ? (Exception)e.getCause() : e;
+    }
+  }
+
+  // Entity indexes of a group are shifted past the entities of the groups merged before it
+  private void mergeGroup(JsonObject groupBatch, List<Integer> requestIndexes, JsonArray entities, JsonElement[] results) {
+    int entityOffset = entities.size();
+    entities.addAll(groupBatch.get("entities").getAsJsonArray());
+    JsonArray groupResults = groupBatch.get("results").getAsJsonArray();
+    for(int ix = 0;ix < groupResults.size();ix++) {
+      JsonElement groupResult = groupResults.get(ix);
+      if (groupResult.isJsonArray()) {
+        JsonArray result = new JsonArray();
+        for(JsonElement entityIndex : groupResult.getAsJsonArray()) {
+          result.add(new JsonPrimitive(entityIndex.getAsInt() + entityOffset));
+        }
+        groupResult = result;
+      }
+      results[requestIndexes.get(ix)] = groupResult;
+    }
+  }
+
+}
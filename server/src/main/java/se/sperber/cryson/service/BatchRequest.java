@@ -0,0 +1,90 @@
+/*
+  Cryson
+  
+  Copyright 2011-2012 Björn Sperber (cryson@sperber.se)
+  
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  
+  http://www.apache.org/licenses/LICENSE-2.0
+  
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package se.sperber.cryson.service;
+
+import com.google.gson.JsonElement;
+
+import java.util.List;
+import java.util.Set;
+
+/**
+ * One read of a batch request; entity definitions, entities by ids, by example, all entities of a class or
+ * entities by a named query with JSON parameters, each with its associations to fetch.
+ */
+public final class BatchRequest {
+
+  public enum Type { DEFINITIONS, IDS, EXAMPLE, ALL, NAMED_QUERY }
+
+  private final Type type;
+  private final String name;
+  private final List<Long> ids;
+  private final JsonElement parameters;
+  private final Set<String> associationsToFetch;
+
+  private BatchRequest(Type type, String name, List<Long> ids, JsonElement parameters, Set<String> associationsToFetch) {
+    this.type = type;
+    this.name = name;
+    this.ids = ids;
+    this.parameters = parameters;
+    this.associationsToFetch = associationsToFetch;
+  }
+
+  public static BatchRequest definitions() {
+    return new BatchRequest(Type.DEFINITIONS, null, null, null, null);
+  }
+
+  public static BatchRequest byIds(String entityName, List<Long> ids, Set<String> associationsToFetch) {
+    return new BatchRequest(Type.IDS, entityName, ids, null, associationsToFetch);
+  }
+
+  public static BatchRequest byExample(String entityName, JsonElement example, Set<String> associationsToFetch) {
+    return new BatchRequest(Type.EXAMPLE, entityName, null, example, associationsToFetch);
+  }
+
+  public static BatchRequest all(String entityName, Set<String> associationsToFetch) {
+    return new BatchRequest(Type.ALL, entityName, null, null, associationsToFetch);
+  }
+
+  public static BatchRequest byNamedQuery(String queryName, JsonElement parameters, Set<String> associationsToFetch) {
+    return new BatchRequest(Type.NAMED_QUERY, queryName, null, parameters, associationsToFetch);
+  }
+
+  public Type getType() {
+    return type;
+  }
+
+  // The entity name, or the query name of a named query
+  public String getName() {
+    return name;
+  }
+
+  public List<Long> getIds() {
+    return ids;
+  }
+
+  // The example entity, or the parameters of a named query
+  public JsonElement getParameters() {
+    return parameters;
+  }
+
+  public Set<String> getAssociationsToFetch() {
+    return associationsToFetch;
+  }
+
+}
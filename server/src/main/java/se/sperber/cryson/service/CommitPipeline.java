@@ -0,0 +1,299 @@
+/*
+  Cryson
+  
+  Copyright 2011-2012 Björn Sperber (cryson@sperber.se)
+  
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  
+  http://www.apache.org/licenses/LICENSE-2.0
+  
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package se.sperber.cryson.service;
+
+import com.google.common.base.Function;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.gson.JsonObject;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.security.access.AccessDeniedException;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+import se.sperber.cryson.exception.CrysonEntityNotFoundException;
+import se.sperber.cryson.listener.ListenerNotificationBatch;
+import se.sperber.cryson.repository.CrysonRepository;
+import se.sperber.cryson.repository.ProxyBatchInitializer;
+import se.sperber.cryson.security.Restrictable;
+import se.sperber.cryson.serialization.CommittedEntities;
+import se.sperber.cryson.serialization.CrysonSerializer;
+import se.sperber.cryson.serialization.DeserializedEntity;
+import se.sperber.cryson.serialization.ReflectionHelper;
+
+import java.lang.reflect.Field;
+import java.util.*;
+
+/**
+ * Runs a client commit in a single transaction and Hibernate session, in explicit phases:
+ * validate permissions, persist, update and patch (resolving references through the session), delete, flush and finally refresh the committed
+ * entities, re-reading only those the session may hold stale state for, to build the response.
+ */
+@Transactional
+@Service
+public class CommitPipeline {
+
+  @Autowired
+  private CrysonService crysonService;
+
+  @Autowired
+  private CrysonRepository crysonRepository;
+
+  @Autowired
+  private CrysonSerializer crysonSerializer;
+
+  @Autowired
+  private ReflectionHelper reflectionHelper;
+
+  @Autowired
+  private ProxyBatchInitializer proxyBatchInitializer;
+
+  @Autowired
+  private SessionFactory sessionFactory;
+
+  @Value("${cryson.fetch.batch_size:500}")
+  private int batchSize;
+
+  @Value("${cryson.security.enabled:false}")
+  private boolean securityEnabled;
+
+  public JsonObject commit(CommittedEntities committedEntities, ListenerNotificationBatch listenerNotificationBatch) throws Exception {
+    validatePermissions(committedEntities);
+
+    Map<Long, Long> replacedTemporaryIds = new HashMap<Long, Long>();
+    List<Object> persistedEntities = persist(committedEntities.getPersistedEntities(), replacedTemporaryIds);
+    List<Object> updatedEntities = update(committedEntities.getUpdatedEntities(), replacedTemporaryIds);
+    List<Object> patchedEntities = patch(committedEntities.getPatchedEntities(), replacedTemporaryIds);
+    delete(committedEntities.getDeletedEntities(), replacedTemporaryIds, listenerNotificationBatch);
+    sessionFactory.getCurrentSession().flush();
+    updatedEntities.addAll(loadPatchedInSql(committedEntities.getPatchedEntities(), patchedEntities));
+
+    JsonObject responseJsonObject = new JsonObject();
+    responseJsonObject.add("replacedTemporaryIds", crysonSerializer.serializeToTreeWithoutAugmentation(replacedTemporaryIds));
+    refresh(responseJsonObject, listenerNotificationBatch, persistedEntities, updatedEntities);
+    return responseJsonObject;
+  }
+
+  // Originals of updated and patched Restrictable entities are loaded with one IN query per class and stay in the
+  // session, where the update and patch phases apply changes onto them. Without security, nothing is checked.
+  private void validatePermissions(CommittedEntities committedEntities) {
+    if (!securityEnabled) {
+      return;
+    }
+    Map<Class<?>, Set<Long>> restrictableIdsByClass = new HashMap<Class<?>, Set<Long>>();
+    for(DeserializedEntity updatedEntity : Iterables.concat(committedEntities.getUpdatedEntities(), committedEntities.getPatchedEntities())) {
+      if (updatedEntity.getEntity() instanceof Restrictable) {
+        Set<Long> ids = restrictableIdsByClass.get(updatedEntity.getEntityClass());
+        if (ids == null) {
+          ids = new LinkedHashSet<Long>();
+          restrictableIdsByClass.put(updatedEntity.getEntityClass(), ids);
+        }
+        ids.add(reflectionHelper.getPrimaryKey(updatedEntity.getEntity()));
+      }
+    }
+
+    Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+    for(Map.Entry<Class<?>, Set<Long>> restrictableIds : restrictableIdsByClass.entrySet()) {
+      for(List<Long> ids : Lists.partition(new ArrayList<Long>(restrictableIds.getValue()), batchSize)) {
+        Set<Long> missingIds = new HashSet<Long>(ids);
+        for(Object originalEntity : crysonRepository.findAllByIds(restrictableIds.getKey(), ids)) {
+          Restrictable restrictable = (Restrictable)originalEntity;
+          if (!restrictable.isReadableBy(authentication) || !restrictable.isWritableBy(authentication)) {
+            throw new AccessDeniedException("Access is denied");
+          }
+          missingIds.remove(reflectionHelper.getPrimaryKey(originalEntity));
+        }
+        if (!missingIds.isEmpty()) {
+          throw new CrysonEntityNotFoundException("Not found; entity=" + restrictableIds.getKey().getName() + " id=" + missingIds.iterator().next(), null);
+        }
+      }
+    }
+  }
+
+  // Entities are saved in class insertion order, keeping each class' inserts together for JDBC batching
+  private List<Object> persist(List<DeserializedEntity> deserializedEntities, Map<Long, Long> replacedTemporaryIds) throws Exception {
+    List<Object> persistedEntities = new ArrayList<Object>(deserializedEntities.size());
+    for(DeserializedEntity persistedEntity : topologicallySortPersistedEntities(deserializedEntities)) {
+      crysonSerializer.replaceTemporaryIds(persistedEntity, replacedTemporaryIds);
+      resolveReferences(persistedEntity);
+      Object entity = persistedEntity.getEntity();
+      Long temporaryId = reflectionHelper.getPrimaryKey(entity);
+      if (temporaryId < 0) {
+        reflectionHelper.setPrimaryKey(entity, null);
+      }
+      Long replacementId = crysonRepository.save(entity);
+      persistedEntities.add(entity);
+      replacedTemporaryIds.put(temporaryId, replacementId);
+    }
+    return persistedEntities;
+  }
+
+  private List<Object> update(List<DeserializedEntity> deserializedEntities, Map<Long, Long> replacedTemporaryIds) throws Exception {
+    List<Object> updatedEntities = new ArrayList<Object>(deserializedEntities.size());
+    for(DeserializedEntity updatedEntity : deserializedEntities) {
+      crysonSerializer.replaceTemporaryIds(updatedEntity, replacedTemporaryIds);
+      resolveReferences(updatedEntity);
+      updatedEntities.add(crysonRepository.update(updatedEntity.getEntity()));
+    }
+    return updatedEntities;
+  }
+
+  // Entities patched in SQL are not loaded, and are represented by null until loadPatchedInSql
+  private List<Object> patch(List<DeserializedEntity> deserializedEntities, Map<Long, Long> replacedTemporaryIds) throws Exception {
+    List<Object> patchedEntities = new ArrayList<Object>(deserializedEntities.size());
+    for(DeserializedEntity patchedEntity : deserializedEntities) {
+      crysonSerializer.replaceTemporaryIds(patchedEntity, replacedTemporaryIds);
+      resolveReferences(patchedEntity);
+      patchedEntities.add(crysonRepository.patch(patchedEntity.getEntity(), patchedEntity.getFieldNames()));
+    }
+    return patchedEntities;
+  }
+
+  // Loads the entities patched in SQL after the flush, with one IN query per class, for the response and listeners
+  private List<Object> loadPatchedInSql(List<DeserializedEntity> deserializedEntities, List<Object> patchedEntities) {
+    Map<Class<?>, List<Long>> patchedIdsByClass = new HashMap<Class<?>, List<Long>>();
+    for(int ix = 0;ix < deserializedEntities.size();ix++) {
+      if (patchedEntities.get(ix) == null) {
+        DeserializedEntity patchedEntity = deserializedEntities.get(ix);
+        List<Long> ids = patchedIdsByClass.get(patchedEntity.getEntityClass());
+        if (ids == null) {
+          ids = new ArrayList<Long>();
+          patchedIdsByClass.put(patchedEntity.getEntityClass(), ids);
+        }
+        ids.add(reflectionHelper.getPrimaryKey(patchedEntity.getEntity()));
+      }
+    }
+    if (patchedIdsByClass.isEmpty()) {
+      return patchedEntities;
+    }
+
+    Map<Class<?>, Map<Long, Object>> loadedEntitiesByClass = new HashMap<Class<?>, Map<Long, Object>>();
+    for(Map.Entry<Class<?>, List<Long>> patchedIds : patchedIdsByClass.entrySet()) {
+      Map<Long, Object> loadedEntities = new HashMap<Long, Object>();
+      for(List<Long> ids : Lists.partition(patchedIds.getValue(), batchSize)) {
+        for(Object loadedEntity : crysonRepository.findAllByIds(patchedIds.getKey(), ids)) {
+          loadedEntities.put(reflectionHelper.getPrimaryKey(loadedEntity), loadedEntity);
+        }
+      }
+      loadedEntitiesByClass.put(patchedIds.getKey(), loadedEntities);
+    }
+
+    List<Object> loadedPatchedEntities = new ArrayList<Object>(patchedEntities.size());
+    for(int ix = 0;ix < deserializedEntities.size();ix++) {
+      DeserializedEntity patchedEntity = deserializedEntities.get(ix);
+      loadedPatchedEntities.add(patchedEntities.get(ix) != null ? patchedEntities.get(ix)
+              : loadedEntitiesByClass.get(patchedEntity.getEntityClass()).get(reflectionHelper.getPrimaryKey(patchedEntity.getEntity())));
+    }
+    return loadedPatchedEntities;
+  }
+
+  // Classes are deleted in reverse insertion order, so that referencing entities go before the entities they reference
+  private void delete(List<DeserializedEntity> deserializedEntities, Map<Long, Long> replacedTemporaryIds, ListenerNotificationBatch listenerNotificationBatch) throws Exception {
+    Map<Class<?>, List<Object>> deletedEntitiesByClass = new HashMap<Class<?>, List<Object>>();
+    for(DeserializedEntity deletedEntity : deserializedEntities) {
+      crysonSerializer.replaceTemporaryIds(deletedEntity, replacedTemporaryIds);
+      List<Object> classEntities = deletedEntitiesByClass.get(deletedEntity.getEntityClass());
+      if (classEntities == null) {
+        classEntities = new ArrayList<Object>();
+        deletedEntitiesByClass.put(deletedEntity.getEntityClass(), classEntities);
+      }
+      classEntities.add(deletedEntity.getEntity());
+    }
+
+    final Map<Class<?>, Integer> classInsertionOrder = crysonService.getClassInsertionOrder();
+    List<Class<?>> deletedClasses = new ArrayList<Class<?>>(deletedEntitiesByClass.keySet());
+    Collections.sort(deletedClasses, new Comparator<Class<?>>() {
+      public int compare(Class<?> a, Class<?> b) {
+        return classInsertionOrder.get(b).compareTo(classInsertionOrder.get(a));
+      }
+    });
+    for(Class<?> deletedClass : deletedClasses) {
+      crysonRepository.deleteAll(deletedClass, deletedEntitiesByClass.get(deletedClass));
+    }
+
+    for(DeserializedEntity deletedEntity : deserializedEntities) {
+      listenerNotificationBatch.entityDeleted(deletedEntity.getEntity());
+    }
+  }
+
+  private void refresh(JsonObject responseJsonObject, ListenerNotificationBatch listenerNotificationBatch, List<Object> persistedEntities, List<Object> updatedEntities) {
+    List<Object> refreshedPersistedEntities = crysonRepository.findCommitted(persistedEntities);
+    List<Object> refreshedUpdatedEntities = crysonRepository.findCommitted(updatedEntities);
+
+    for (Object refreshedPersistedEntity : refreshedPersistedEntities) {
+      listenerNotificationBatch.entityCreated(refreshedPersistedEntity);
+    }
+
+    for (Object refreshedUpdatedEntity : refreshedUpdatedEntities) {
+      listenerNotificationBatch.entityUpdated(refreshedUpdatedEntity);
+    }
+
+    proxyBatchInitializer.initialize(refreshedPersistedEntities, Collections.<String>emptySet());
+    proxyBatchInitializer.initialize(refreshedUpdatedEntities, Collections.<String>emptySet());
+    responseJsonObject.add("persistedEntities", crysonSerializer.serializeToTree(refreshedPersistedEntities, Collections.<String>emptySet()));
+    responseJsonObject.add("updatedEntities", crysonSerializer.serializeToTree(refreshedUpdatedEntities, Collections.<String>emptySet()));
+  }
+
+  // References, and embedded one-to-ones, become session entities or uninitialized proxies without querying.
+  // References to temporary ids not (yet) replaced are left as placeholders.
+  private void resolveReferences(DeserializedEntity deserializedEntity) {
+    final Session session = sessionFactory.getCurrentSession();
+    crysonSerializer.resolveReferences(deserializedEntity, new Function<Object, Object>() {
+      public Object apply(Object placeHolderObject) {
+        return load(session, placeHolderObject);
+      }
+    });
+
+    Object entity = deserializedEntity.getEntity();
+    for(Field field : reflectionHelper.getOneToOneFields(entity)) {
+      Object associatedEntity = reflectionHelper.getGetter(field).get(entity);
+      if (associatedEntity != null && !session.contains(associatedEntity)) {
+        reflectionHelper.getSetter(field).set(entity, load(session, associatedEntity));
+      }
+    }
+  }
+
+  private Object load(Session session, Object entity) {
+    Long id = reflectionHelper.getPrimaryKey(entity);
+    if (id == null || id < 0) {
+      return entity;
+    }
+    return session.load(crysonSerializer.getEntityClassName(entity), id);
+  }
+
+  private Collection<DeserializedEntity> topologicallySortPersistedEntities(List<DeserializedEntity> persistedEntities) {
+    final Map<Class<?>, Integer> classInsertionOrder = crysonService.getClassInsertionOrder();
+    List<DeserializedEntity> result = new ArrayList<DeserializedEntity>(persistedEntities);
+
+    Collections.sort(result, new Comparator<DeserializedEntity>() {
+      public int compare(DeserializedEntity a, DeserializedEntity b) {
+        int aInsertionOrder = classInsertionOrder.get(a.getEntityClass());
+        int bInsertionOrder = classInsertionOrder.get(b.getEntityClass());
+        return ((aInsertionOrder < bInsertionOrder) ? -1 : ((aInsertionOrder > bInsertionOrder) ? 1 : 0));
+      }
+    });
+
+    return result;
+  }
+
+}
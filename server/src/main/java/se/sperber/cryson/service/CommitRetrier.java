@@ -0,0 +1,107 @@
+/*
+  Cryson
+  
+  Copyright 2011-2012 Björn Sperber (cryson@sperber.se)
+  
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  
+  http://www.apache.org/licenses/LICENSE-2.0
+  
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package se.sperber.cryson.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import se.sperber.cryson.metrics.CrysonMetrics;
+import se.sperber.cryson.repository.CrysonRepositoryExceptionTranslator;
+
+import java.util.Random;
+import java.util.concurrent.Callable;
+
+/**
+ * Reruns a commit transaction that failed on a deadlock or lock timeout, after a jittered exponential backoff
+ * and up to cryson.commit.max_attempts attempts in total. Each attempt must start over from the request itself.
+ */
+@Component
+public class CommitRetrier {
+
+  public static final String RETRIES_METRIC = "commit.lock_retries";
+  public static final String EXHAUSTED_RETRIES_METRIC = "commit.lock_retries_exhausted";
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(CommitRetrier.class);
+
+  private static final int MAX_BACKOFF_DOUBLINGS = 10;
+
+  @Autowired
+  private CrysonRepositoryExceptionTranslator crysonRepositoryExceptionTranslator;
+
+  @Autowired
+  private CrysonMetrics crysonMetrics;
+
+  @Value("${cryson.commit.max_attempts:3}")
+  private int maxAttempts;
+
+  @Value("${cryson.commit.retry_backoff_millis:50}")
+  private long backoffMillis;
+
+  private final Random random = new Random();
+
+  public <T> T execute(Callable<T> commit) throws Exception {
+    // Within an enclosing transaction a failed attempt has already doomed it
+    if (TransactionSynchronizationManager.isActualTransactionActive()) {
+      return commit.call();
+    }
+
+    for(int attempt = 1;;attempt++) {
+      try {
+        return commit.call();
+      } catch(Exception e) {
+        if (!crysonRepositoryExceptionTranslator.isTransientLockFailure(e)) {
+          throw e;
+        }
+        if (attempt >= maxAttempts) {
+          crysonMetrics.increment(EXHAUSTED_RETRIES_METRIC, 1);
+          throw e;
+        }
+        LOGGER.warn("Retrying commit after transient lock failure; attempt=" + attempt, e);
+        crysonMetrics.increment(RETRIES_METRIC, 1);
+        backOff(attempt);
+      }
+    }
+  }
+
+  // Full jitter, so that commits which deadlocked on each other do not collide again on retry
+  private void backOff(int attempt) throws InterruptedException {
+    long maxBackoffMillis = backoffMillis << Math.min(attempt - 1, MAX_BACKOFF_DOUBLINGS);
+    Thread.sleep((long)(random.nextDouble() * maxBackoffMillis));
+  }
+
+  void setCrysonRepositoryExceptionTranslator(CrysonRepositoryExceptionTranslator crysonRepositoryExceptionTranslator) {
+    this.crysonRepositoryExceptionTranslator = crysonRepositoryExceptionTranslator;
+  }
+
+  void setCrysonMetrics(CrysonMetrics crysonMetrics) {
+    this.crysonMetrics = crysonMetrics;
+  }
+
+  void setMaxAttempts(int maxAttempts) {
+    this.maxAttempts = maxAttempts;
+  }
+
+  void setBackoffMillis(long backoffMillis) {
+    this.backoffMillis = backoffMillis;
+  }
+
+}
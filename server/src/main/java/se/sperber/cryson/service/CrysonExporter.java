@@ -0,0 +1,122 @@
+/*
+  Cryson
+  
+  Copyright 2011-2012 Björn Sperber (cryson@sperber.se)
+  
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  
+  http://www.apache.org/licenses/LICENSE-2.0
+  
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package se.sperber.cryson.service;
+
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+import se.sperber.cryson.repository.CrysonRepository;
+import se.sperber.cryson.repository.FetchPlanExecutor;
+import se.sperber.cryson.repository.LazyCollectionIdLoader;
+import se.sperber.cryson.repository.ProxyBatchInitializer;
+import se.sperber.cryson.serialization.AssociationTree;
+import se.sperber.cryson.serialization.CrysonSerializer;
+import se.sperber.cryson.serialization.LazyCollectionIds;
+
+import javax.ws.rs.core.MultivaluedMap;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Writes an entity class or named query result as newline-delimited JSON, one entity per line, reading it through
+ * a forward-only cursor in chunks of cryson.export.chunk_size rows. Each chunk is fetched, serialized and cleared
+ * from the session before the next is read, so memory use does not grow with the size of the result.
+ */
+@Transactional(readOnly = true)
+@Service
+public class CrysonExporter {
+
+  @Autowired
+  private CrysonRepository crysonRepository;
+
+  @Autowired
+  private CrysonSerializer crysonSerializer;
+
+  @Autowired
+  private FetchPlanExecutor fetchPlanExecutor;
+
+  @Autowired
+  private ProxyBatchInitializer proxyBatchInitializer;
+
+  @Autowired
+  private LazyCollectionIdLoader lazyCollectionIdLoader;
+
+  @Autowired
+  private SessionFactory sessionFactory;
+
+  @Value("${cryson.export.chunk_size:1000}")
+  private int chunkSize;
+
+  public void exportAll(String entityClassName, Set<String> associationsToFetch, Writer writer) throws IOException {
+    useExportSession();
+    export(crysonRepository.scrollAll(entityClassName, associationsToFetch, chunkSize), associationsToFetch, writer);
+  }
+
+  public void exportByNamedQuery(String queryName, MultivaluedMap<String, String> queryParameters, Set<String> associationsToFetch, Writer writer) throws IOException {
+    useExportSession();
+    export(crysonRepository.scrollByNamedQuery(queryName, queryParameters, chunkSize), associationsToFetch, writer);
+  }
+
+  private void useExportSession() {
+    Session session = sessionFactory.getCurrentSession();
+    ReadOnlySessions.useReadOnly(session);
+    // Entities left from earlier in the request would otherwise be evicted mid-export
+    session.clear();
+  }
+
+  private void export(ScrollableResults scrollableResults, Set<String> associationsToFetch, Writer writer) throws IOException {
+    try {
+      List<Object> chunk = new ArrayList<Object>(chunkSize);
+      while (scrollableResults.next()) {
+        chunk.add(scrollableResults.get(0));
+        if (chunk.size() == chunkSize) {
+          writeChunk(chunk, associationsToFetch, writer);
+          chunk.clear();
+        }
+      }
+      writeChunk(chunk, associationsToFetch, writer);
+    } finally {
+      scrollableResults.close();
+    }
+  }
+
+  private void writeChunk(List<Object> chunk, Set<String> associationsToFetch, Writer writer) throws IOException {
+    if (chunk.isEmpty()) {
+      return;
+    }
+    fetchPlanExecutor.fetch(chunk, AssociationTree.parse(associationsToFetch));
+    List<Object> readableEntities = crysonRepository.filterReadable(chunk);
+    proxyBatchInitializer.initialize(readableEntities, associationsToFetch);
+    LazyCollectionIds lazyCollectionIds = lazyCollectionIdLoader.load(readableEntities, associationsToFetch);
+    for(Object entity : readableEntities) {
+      crysonSerializer.serialize(entity, associationsToFetch, lazyCollectionIds, writer);
+      writer.write('\n');
+    }
+    writer.flush();
+    sessionFactory.getCurrentSession().clear();
+  }
+
+}
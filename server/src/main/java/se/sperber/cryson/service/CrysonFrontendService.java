@@ -18,6 +18,7 @@
 
 package se.sperber.cryson.service;
 
+import com.google.common.io.ByteStreams;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import org.hibernate.OptimisticLockException;
@@ -25,25 +26,33 @@ import org.hibernate.StaleObjectStateException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.beans.factory.support.DefaultListableBeanFactory;
-import org.springframework.orm.hibernate3.HibernateOptimisticLockingFailureException;
+import org.springframework.orm.ObjectOptimisticLockingFailureException;
 import org.springframework.security.access.AccessDeniedException;
 import org.springframework.security.access.prepost.PreAuthorize;
 import org.springframework.stereotype.Service;
+import se.sperber.cryson.exception.CrysonBadRequestException;
 import se.sperber.cryson.exception.CrysonEntityConflictException;
 import se.sperber.cryson.exception.CrysonException;
 import se.sperber.cryson.listener.CrysonListener;
 import se.sperber.cryson.listener.ListenerNotificationBatch;
+import se.sperber.cryson.repository.Pagination;
+import se.sperber.cryson.serialization.CommittedEntities;
 import se.sperber.cryson.serialization.CrysonSerializer;
 import se.sperber.cryson.util.StringUtils;
 
 import javax.annotation.PostConstruct;
 import javax.ws.rs.*;
 import javax.ws.rs.core.*;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.Serializable;
 import java.nio.charset.StandardCharsets;
 import java.text.ParseException;
 import java.util.*;
+import java.util.concurrent.Callable;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
 import static javax.ws.rs.core.HttpHeaders.CONTENT_LENGTH;
@@ -60,13 +69,30 @@ public class CrysonFrontendService {
   @Autowired
   private CrysonService crysonService;
 
+  @Autowired
+  private CommitPipeline commitPipeline;
+
+  @Autowired
+  private CommitRetrier commitRetrier;
+
+  @Autowired
+  private IdempotentResponseCache idempotentResponseCache;
+
+  @Autowired
+  private BatchExecutor batchExecutor;
+
   @Autowired
   private CrysonSerializer crysonSerializer;
 
+  @Value("${cryson.batch.max_requests:50}")
+  private int maxBatchRequests;
+
   private Set<CrysonListener> crysonListeners;
 
   private static final Logger LOGGER = LoggerFactory.getLogger(CrysonFrontendService.class);
 
+  private static final Set<String> PAGINATION_PARAMETERS = new HashSet<String>(Arrays.asList("limit", "offset", "after", "count"));
+
   @PostConstruct
   public void findListeners() {
     crysonListeners = new HashSet<CrysonListener>(defaultListableBeanFactory.getBeansOfType(CrysonListener.class).values());
@@ -122,10 +148,11 @@ public class CrysonFrontendService {
 
   @GET
   @Path("{entity_name}")
-  public Response getEntitiesByExample(@PathParam("entity_name") String entityName, @QueryParam("example") String exampleJson, @QueryParam("fetch") String rawAssociationsToFetch) {
+  public Response getEntitiesByExample(@PathParam("entity_name") String entityName, @QueryParam("example") String exampleJson, @QueryParam("fetch") String rawAssociationsToFetch, @Context UriInfo uriInfo) {
     try {
       Set<String> associationsToFetch = splitAssociationsToFetch(rawAssociationsToFetch);
-      return crysonService.getEntitiesByExample(entityName, exampleJson, associationsToFetch);
+      Pagination pagination = parsePagination(uriInfo.getQueryParameters());
+      return crysonService.getEntitiesByExample(entityName, exampleJson, associationsToFetch, pagination);
     } catch(Throwable t) {
       return translateThrowable(t);
     }
@@ -133,10 +160,37 @@ public class CrysonFrontendService {
 
   @GET
   @Path("{entity_name}/all")
-  public Response getAllEntities(@PathParam("entity_name") String entityName, @QueryParam("fetch") String rawAssociationsToFetch) {
+  public Response getAllEntities(@PathParam("entity_name") String entityName, @QueryParam("fetch") String rawAssociationsToFetch, @Context UriInfo uriInfo) {
     try {
       Set<String> associationsToFetch = splitAssociationsToFetch(rawAssociationsToFetch);
-      return crysonService.getAllEntities(entityName, associationsToFetch);
+      Pagination pagination = parsePagination(uriInfo.getQueryParameters());
+      return crysonService.getAllEntities(entityName, associationsToFetch, pagination);
+    } catch(Throwable t) {
+      return translateThrowable(t);
+    }
+  }
+
+  @GET
+  @Path("{entity_name}/export")
+  @Produces(CrysonService.NDJSON_MEDIA_TYPE)
+  public Response exportAllEntities(@PathParam("entity_name") String entityName, @QueryParam("fetch") String rawAssociationsToFetch) {
+    try {
+      Set<String> associationsToFetch = splitAssociationsToFetch(rawAssociationsToFetch);
+      return crysonService.exportAllEntities(entityName, associationsToFetch);
+    } catch(Throwable t) {
+      return translateThrowable(t);
+    }
+  }
+
+  @GET
+  @Path("namedQuery/{query_name}/export")
+  @Produces(CrysonService.NDJSON_MEDIA_TYPE)
+  public Response exportEntitiesByNamedQuery(@PathParam("query_name") String queryName, @Context UriInfo uriInfo, @QueryParam("fetch") String rawAssociationsToFetch) {
+    try {
+      Set<String> associationsToFetch = splitAssociationsToFetch(rawAssociationsToFetch);
+      MultivaluedMap<String,String> queryParameters = uriInfo.getQueryParameters();
+      queryParameters.remove("fetch");
+      return crysonService.exportEntitiesByNamedQuery(queryName, queryParameters, associationsToFetch);
     } catch(Throwable t) {
       return translateThrowable(t);
     }
@@ -149,7 +203,12 @@ public class CrysonFrontendService {
       Set<String> associationsToFetch = splitAssociationsToFetch(rawAssociationsToFetch);
       MultivaluedMap<String,String> queryParameters = uriInfo.getQueryParameters();
       queryParameters.remove("fetch");
-      return crysonService.getEntitiesByNamedQuery(queryName, queryParameters, associationsToFetch);
+      // Parameters the query declares itself are bound to it, even when named like a pagination parameter
+      Set<String> paginationParameters = new HashSet<String>(PAGINATION_PARAMETERS);
+      paginationParameters.removeAll(crysonService.getNamedQueryParameterNames(queryName));
+      Pagination pagination = parsePagination(queryParameters, paginationParameters);
+      queryParameters.keySet().removeAll(paginationParameters);
+      return crysonService.getEntitiesByNamedQuery(queryName, queryParameters, associationsToFetch, pagination);
     } catch(Throwable t) {
       return translateThrowable(t);
     }
@@ -161,7 +220,19 @@ public class CrysonFrontendService {
     try {
       JsonElement parameters = crysonSerializer.parse(json);
       Set<String> associationsToFetch = splitAssociationsToFetch(rawAssociationsToFetch);
-      return crysonService.getEntitiesByNamedQueryJson(queryName, associationsToFetch, parameters);
+      Pagination pagination = parsePagination(uriInfo.getQueryParameters());
+      return crysonService.getEntitiesByNamedQueryJson(queryName, associationsToFetch, parameters, pagination);
+    } catch(Throwable t) {
+      return translateThrowable(t);
+    }
+  }
+
+  @POST
+  @Path("batch")
+  public Response getBatch(@QueryParam("parallel") boolean parallel, String json) {
+    try {
+      List<BatchRequest> batchRequests = parseBatchRequests(json);
+      return parallel ? batchExecutor.getBatch(batchRequests) : crysonService.getBatch(batchRequests);
     } catch(Throwable t) {
       return translateThrowable(t);
     }
@@ -169,44 +240,72 @@ public class CrysonFrontendService {
 
   @PUT
   @Path("{entity_name}")
-  public Response createEntity(@Context UriInfo uriInfo, @Context HttpHeaders httpHeaders, @PathParam("entity_name") String entityName, String json) {
+  public Response createEntity(@Context final UriInfo uriInfo, @Context final HttpHeaders httpHeaders, @PathParam("entity_name") final String entityName, final String json) {
     try {
-      ListenerNotificationBatch listenerNotificationBatch = new ListenerNotificationBatch(uriInfo, httpHeaders);
-      Response response = crysonService.createEntity(entityName, json, listenerNotificationBatch);
-      notifyCommit(listenerNotificationBatch);
-      return response;
+      return idempotentResponseCache.execute(httpHeaders, "PUT " + entityName, new Callable<Response>() {
+        public Response call() throws Exception {
+          return executeCreateEntity(uriInfo, httpHeaders, entityName, json);
+        }
+      });
     } catch(Throwable t) {
       return translateThrowable(t);
     }
   }
 
+  private Response executeCreateEntity(UriInfo uriInfo, HttpHeaders httpHeaders, final String entityName, final String json) throws Exception {
+    final ListenerNotificationBatch listenerNotificationBatch = new ListenerNotificationBatch(uriInfo, httpHeaders);
+    Response response = commitRetrier.execute(new Callable<Response>() {
+      public Response call() throws Exception {
+        listenerNotificationBatch.clear();
+        return crysonService.createEntity(entityName, json, listenerNotificationBatch);
+      }
+    });
+    notifyCommit(listenerNotificationBatch);
+    return response;
+  }
+
   @POST
   @Path("commit")
-  public Response commit(@Context UriInfo uriInfo, @Context HttpHeaders httpHeaders, String json) {
+  public Response commit(@Context final UriInfo uriInfo, @Context final HttpHeaders httpHeaders, final InputStream json) {
     try {
-      ListenerNotificationBatch listenerNotificationBatch = new ListenerNotificationBatch(uriInfo, httpHeaders);
-      JsonElement committedEntities = crysonSerializer.parse(json);
-      crysonService.validatePermissions(committedEntities);
-      List<Object> persistedEntites = new ArrayList<Object>();
-      List<Object> updatedEntities = new ArrayList<Object>();
-      JsonObject responseJsonObject = crysonService.commit(committedEntities, listenerNotificationBatch, persistedEntites, updatedEntities);
-      crysonService.refreshEntities(responseJsonObject, listenerNotificationBatch, persistedEntites, updatedEntities);
-      String serializedEntity = crysonSerializer.serializeTree(responseJsonObject);
-      Response response = Response.ok(serializedEntity)
-        .header(CONTENT_LENGTH, StringUtils.countUtf8Bytes(serializedEntity))
-        .build();
-
-      notifyCommit(listenerNotificationBatch);
-      return response;
+      return idempotentResponseCache.execute(httpHeaders, "POST commit", new Callable<Response>() {
+        public Response call() throws Exception {
+          return executeCommit(uriInfo, httpHeaders, json);
+        }
+      });
     } catch(Throwable t) {
       return translateThrowable(t);
     }
   }
+
+  private Response executeCommit(UriInfo uriInfo, HttpHeaders httpHeaders, InputStream json) throws Exception {
+    final ListenerNotificationBatch listenerNotificationBatch = new ListenerNotificationBatch(uriInfo, httpHeaders);
+    final byte[] body = ByteStreams.toByteArray(json); // Buffered, since a retried commit deserializes it again
+    JsonObject responseJsonObject = commitRetrier.execute(new Callable<JsonObject>() {
+      public JsonObject call() throws Exception {
+        listenerNotificationBatch.clear();
+        CommittedEntities committedEntities = crysonSerializer.readCommittedEntities(new InputStreamReader(new ByteArrayInputStream(body), UTF_8));
+        return commitPipeline.commit(committedEntities, listenerNotificationBatch);
+      }
+    });
+    String serializedEntity = crysonSerializer.serializeTree(responseJsonObject);
+    Response response = Response.ok(serializedEntity)
+      .header(CONTENT_LENGTH, StringUtils.countUtf8Bytes(serializedEntity))
+      .build();
+
+    notifyCommit(listenerNotificationBatch);
+    return response;
+  }
   
-  public Response commitEntity(Object entity, UriInfo uriInfo, HttpHeaders httpHeaders) {
+  public Response commitEntity(final Object entity, UriInfo uriInfo, HttpHeaders httpHeaders) {
     try {
-      ListenerNotificationBatch listenerNotificationBatch = new ListenerNotificationBatch(uriInfo, httpHeaders);
-      Response response = crysonService.commitEntity(entity, listenerNotificationBatch);
+      final ListenerNotificationBatch listenerNotificationBatch = new ListenerNotificationBatch(uriInfo, httpHeaders);
+      Response response = commitRetrier.execute(new Callable<Response>() {
+        public Response call() throws Exception {
+          listenerNotificationBatch.clear();
+          return crysonService.commitEntity(entity, listenerNotificationBatch);
+        }
+      });
       notifyCommit(listenerNotificationBatch);
       return response;
     } catch(Throwable t) {
@@ -233,7 +332,7 @@ public class CrysonFrontendService {
     LOGGER.error("Error", t);
     if (t instanceof CrysonException) {
       return translateCrysonException((CrysonException)t);
-    } else if (t instanceof OptimisticLockException || t instanceof HibernateOptimisticLockingFailureException || t instanceof StaleObjectStateException) {
+    } else if (t instanceof OptimisticLockException || t instanceof ObjectOptimisticLockingFailureException || t instanceof StaleObjectStateException) {
       return translateCrysonException(new CrysonEntityConflictException("Optimistic locking failed", t));
     } else if (t instanceof AccessDeniedException) {
       return Response.status(Response.Status.UNAUTHORIZED).entity(buildJsonMessage(t.getMessage())).build();
@@ -262,6 +361,106 @@ public class CrysonFrontendService {
     return new HashSet<String>(Arrays.asList(rawAssociationsToFetch.split(",")));
   }
 
+  private Pagination parsePagination(MultivaluedMap<String,String> queryParameters) {
+    return parsePagination(queryParameters, PAGINATION_PARAMETERS);
+  }
+
+  private Pagination parsePagination(MultivaluedMap<String,String> queryParameters, Set<String> paginationParameters) {
+    Integer limit = paginationParameters.contains("limit") ? parseNonNegativeParameter(queryParameters, "limit") : null;
+    Integer offset = paginationParameters.contains("offset") ? parseNonNegativeParameter(queryParameters, "offset") : null;
+    String rawAfter = paginationParameters.contains("after") ? queryParameters.getFirst("after") : null;
+    Long after;
+    try {
+      after = rawAfter != null ? Long.valueOf(rawAfter) : null;
+    } catch(NumberFormatException e) {
+      throw new CrysonBadRequestException("Invalid pagination parameter; after=" + rawAfter, e);
+    }
+    boolean totalCountRequested = paginationParameters.contains("count") && "true".equals(queryParameters.getFirst("count"));
+    return new Pagination(limit, offset, after, totalCountRequested);
+  }
+
+  private Integer parseNonNegativeParameter(MultivaluedMap<String,String> queryParameters, String parameterName) {
+    String rawValue = queryParameters.getFirst(parameterName);
+    if (rawValue == null) {
+      return null;
+    }
+    try {
+      Integer value = Integer.valueOf(rawValue);
+      if (value < 0) {
+        throw new NumberFormatException();
+      }
+      return value;
+    } catch(NumberFormatException e) {
+      throw new CrysonBadRequestException("Invalid pagination parameter; " + parameterName + "=" + rawValue, e);
+    }
+  }
+
+  private List<BatchRequest> parseBatchRequests(String json) {
+    JsonElement rawBatchRequests = crysonSerializer.parse(json);
+    if (!rawBatchRequests.isJsonArray()) {
+      throw new CrysonBadRequestException("Batch is not an array", null);
+    }
+    if (rawBatchRequests.getAsJsonArray().size() > maxBatchRequests) {
+      throw new CrysonBadRequestException("Batch too large; requests=" + rawBatchRequests.getAsJsonArray().size() + " max=" + maxBatchRequests, null);
+    }
+
+    List<BatchRequest> batchRequests = new ArrayList<BatchRequest>();
+    for(JsonElement rawBatchRequest : rawBatchRequests.getAsJsonArray()) {
+      if (!rawBatchRequest.isJsonObject()) {
+        throw new CrysonBadRequestException("Batch request is not an object; request=" + rawBatchRequest, null);
+      }
+      JsonObject batchRequest = rawBatchRequest.getAsJsonObject();
+      String type = getBatchRequestString(batchRequest, "type");
+      Set<String> associationsToFetch = splitAssociationsToFetch(batchRequest.has("fetch") ? getBatchRequestString(batchRequest, "fetch") : null);
+      if (type.equals("definitions")) {
+        batchRequests.add(BatchRequest.definitions());
+      } else if (type.equals("ids")) {
+        batchRequests.add(BatchRequest.byIds(getBatchRequestString(batchRequest, "entity"), getBatchRequestIds(batchRequest), associationsToFetch));
+      } else if (type.equals("example")) {
+        batchRequests.add(BatchRequest.byExample(getBatchRequestString(batchRequest, "entity"), getBatchRequestObject(batchRequest, "example"), associationsToFetch));
+      } else if (type.equals("all")) {
+        batchRequests.add(BatchRequest.all(getBatchRequestString(batchRequest, "entity"), associationsToFetch));
+      } else if (type.equals("namedQuery")) {
+        JsonElement parameters = batchRequest.has("parameters") ? getBatchRequestObject(batchRequest, "parameters") : new JsonObject();
+        batchRequests.add(BatchRequest.byNamedQuery(getBatchRequestString(batchRequest, "query"), parameters, associationsToFetch));
+      } else {
+        throw new CrysonBadRequestException("Unknown batch request type; type=" + type, null);
+      }
+    }
+    return batchRequests;
+  }
+
+  private String getBatchRequestString(JsonObject batchRequest, String name) {
+    JsonElement value = batchRequest.get(name);
+    if (value == null || !value.isJsonPrimitive() || !value.getAsJsonPrimitive().isString()) {
+      throw new CrysonBadRequestException("Invalid batch request; " + name + "=" + value, null);
+    }
+    return value.getAsString();
+  }
+
+  private JsonObject getBatchRequestObject(JsonObject batchRequest, String name) {
+    JsonElement value = batchRequest.get(name);
+    if (value == null || !value.isJsonObject()) {
+      throw new CrysonBadRequestException("Invalid batch request; " + name + "=" + value, null);
+    }
+    return value.getAsJsonObject();
+  }
+
+  private List<Long> getBatchRequestIds(JsonObject batchRequest) {
+    JsonElement rawIds = batchRequest.get("ids");
+    if (rawIds == null || !rawIds.isJsonArray()) {
+      throw new CrysonBadRequestException("Invalid batch request; ids=" + rawIds, null);
+    }
+    List<Long> ids = new ArrayList<Long>();
+    for(JsonElement rawId : rawIds.getAsJsonArray()) {
+      if (!rawId.isJsonPrimitive() || !rawId.getAsJsonPrimitive().isNumber()) {
+        throw new CrysonBadRequestException("Invalid batch request; ids=" + rawIds, null);
+      }
+      ids.add(rawId.getAsLong());
+    }
+    return ids;
+  }
+
   private Response getEntitiesById(String entityName, String rawStringIds, String rawAssociationsToFetch) {
     Set<String> associationsToFetch = splitAssociationsToFetch(rawAssociationsToFetch);
     String[] stringIds = rawStringIds.split(",");
@@ -26,6 +26,7 @@ import com.google.common.collect.Maps;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
 import org.hibernate.SessionFactory;
 import org.hibernate.annotations.Type;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -35,12 +36,20 @@ import org.springframework.context.annotation.ClassPathScanningCandidateComponen
 import org.springframework.core.type.filter.AnnotationTypeFilter;
 import org.springframework.security.access.AccessDeniedException;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
+import se.sperber.cryson.exception.CrysonBadRequestException;
 import se.sperber.cryson.exception.CrysonEntityNotFoundException;
 import se.sperber.cryson.listener.ListenerNotificationBatch;
 import se.sperber.cryson.repository.CrysonRepository;
+import se.sperber.cryson.repository.LazyCollectionIdLoader;
+import se.sperber.cryson.repository.Page;
+import se.sperber.cryson.repository.Pagination;
+import se.sperber.cryson.repository.ProxyBatchInitializer;
 import se.sperber.cryson.security.Restrictable;
 import se.sperber.cryson.serialization.CrysonSerializer;
+import se.sperber.cryson.serialization.CrysonStreamingOutput;
+import se.sperber.cryson.serialization.LazyCollectionIds;
 import se.sperber.cryson.serialization.ReflectionHelper;
 import se.sperber.cryson.serialization.UnauthorizedEntity;
 import se.sperber.cryson.util.StringUtils;
@@ -50,6 +59,12 @@ import javax.persistence.Entity;
 import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MultivaluedMap;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.lang.reflect.ParameterizedType;
@@ -64,6 +79,10 @@ import static se.sperber.cryson.util.StringUtils.countUtf8Bytes;
 @Service
 public class CrysonService {
 
+  public static final String NEXT_CURSOR_HEADER = "X-Cryson-Next-Cursor";
+  public static final String TOTAL_COUNT_HEADER = "X-Cryson-Total-Count";
+  public static final String NDJSON_MEDIA_TYPE = "application/x-ndjson";
+
   @Autowired
   private CrysonRepository crysonRepository;
 
@@ -72,12 +91,24 @@ public class CrysonService {
 
   @Autowired
   private ReflectionHelper reflectionHelper;
-  
+
+  @Autowired
+  private LazyCollectionIdLoader lazyCollectionIdLoader;
+
+  @Autowired
+  private ProxyBatchInitializer proxyBatchInitializer;
+
   @Autowired
   private SessionFactory sessionFactory;
 
+  @Autowired
+  private CrysonExporter crysonExporter;
+
   @Value("${cryson.model.package}")
   private String modelsPackage;
+
+  @Value("${cryson.streaming.enabled:true}")
+  private boolean streamingEnabled;
   
   private Map<String, Class<?>> entityClassesBySimpleName;
 
@@ -101,6 +132,7 @@ public class CrysonService {
     entityClassesBySimpleName = result;
 
     classInsertionOrder = calculateClassInsertionOrder(entityClassesBySimpleName.values());
+    crysonSerializer.registerEntityClasses(entityClassesBySimpleName.values());
   }
 
   public Response getEntityDefinition(String entityName) throws Exception {
@@ -111,6 +143,13 @@ public class CrysonService {
   }
 
   public Response getEntityDefinitions() throws Exception {
+    String definitions = getCachedDefinitions();
+    return Response.ok(definitions)
+      .header(CONTENT_LENGTH, cachedDefinitionsContentLength)
+      .build();
+  }
+
+  private String getCachedDefinitions() throws ClassNotFoundException {
     if (cachedDefinitions == null) {
       Map<String, Map<String, String>> entityDefinitions = new HashMap<String, Map<String, String>>();
       for(String entityClassName : entityClassesBySimpleName.keySet()) {
@@ -119,9 +158,7 @@ public class CrysonService {
       cachedDefinitions = crysonSerializer.serializeWithoutAugmentation(entityDefinitions);
       cachedDefinitionsContentLength = countUtf8Bytes(cachedDefinitions);
     }
-    return Response.ok(cachedDefinitions)
-      .header(CONTENT_LENGTH, cachedDefinitionsContentLength)
-      .build();
+    return cachedDefinitions;
   }
 
   private Map<String, String> getEntityDefinitionMap(String entityName) throws ClassNotFoundException {
@@ -155,7 +192,9 @@ public class CrysonService {
     return entityDefinition;
   }
 
+  @Transactional(readOnly = true)
   public Response getEntityById(String entityName, Long id, Set<String> associationsToFetch) {
+    useReadOnlySession();
     String qualifiedEntityClassName = qualifiedEntityClassName(entityName);
     Object entity = crysonRepository.findById(qualifiedEntityClassName, id, associationsToFetch);
     if (entity != null) {
@@ -165,163 +204,254 @@ public class CrysonService {
     }
   }
 
+  @Transactional(readOnly = true)
   public Response getEntitiesByIds(final String entityName, List<Long> ids, Set<String> associationsToFetch) {
+    useReadOnlySession();
     final List<Object> entities = crysonRepository.findByIds(qualifiedEntityClassName(entityName), ids, associationsToFetch);
     return serialize(entities, associationsToFetch);
   }
 
+  @Transactional(readOnly = true)
   public Response getEntitiesByExample(String entityName, String exampleJson, Set<String> associationsToFetch) throws Exception {
+    return getEntitiesByExample(entityName, exampleJson, associationsToFetch, Pagination.NONE);
+  }
+
+  @Transactional(readOnly = true)
+  public Response getEntitiesByExample(String entityName, String exampleJson, Set<String> associationsToFetch, Pagination pagination) throws Exception {
+    useReadOnlySession();
     Class entityClass = entityClass(entityName);
     Object exampleEntity = crysonSerializer.deserialize(exampleJson, entityClass, null);
+    if (pagination.isRequested()) {
+      return serialize(crysonRepository.findByExample(qualifiedEntityClassName(entityName), exampleEntity, associationsToFetch, pagination), associationsToFetch);
+    }
     List<Object> entities = crysonRepository.findByExample(qualifiedEntityClassName(entityName), exampleEntity, associationsToFetch);
     return serialize(entities, associationsToFetch);
   }
 
+  @Transactional(readOnly = true)
   public Response getAllEntities(String entityName, Set<String> associationsToFetch) {
+    return getAllEntities(entityName, associationsToFetch, Pagination.NONE);
+  }
+
+  @Transactional(readOnly = true)
+  public Response getAllEntities(String entityName, Set<String> associationsToFetch, Pagination pagination) {
+    useReadOnlySession();
+    if (pagination.isRequested()) {
+      return serialize(crysonRepository.findAll(qualifiedEntityClassName(entityName), associationsToFetch, pagination), associationsToFetch);
+    }
     List<Object> entities = crysonRepository.findAll(qualifiedEntityClassName(entityName), associationsToFetch);
     return serialize(entities, associationsToFetch);
   }
 
+  @Transactional(propagation = Propagation.SUPPORTS)
+  public Set<String> getNamedQueryParameterNames(String queryName) {
+    return crysonRepository.getNamedParameterNames(queryName);
+  }
+
+  @Transactional(readOnly = true)
   public Response getEntitiesByNamedQuery(String queryName, MultivaluedMap<String, String> queryParameters, Set<String> associationsToFetch) {
-    List<Object> entities = crysonRepository.findByNamedQuery(queryName, queryParameters);
-    return serialize(entities, associationsToFetch);
+    return getEntitiesByNamedQuery(queryName, queryParameters, associationsToFetch, Pagination.NONE);
   }
 
-  public Response getEntitiesByNamedQueryJson(String queryName, Set<String> associationsToFetch, JsonElement parameters) {
-    List<Object> entities = crysonRepository.findByNamedQueryJson(queryName, parameters);
+  @Transactional(readOnly = true)
+  public Response getEntitiesByNamedQuery(String queryName, MultivaluedMap<String, String> queryParameters, Set<String> associationsToFetch, Pagination pagination) {
+    useReadOnlySession();
+    if (pagination.isRequested()) {
+      return serialize(crysonRepository.findByNamedQuery(queryName, queryParameters, associationsToFetch, pagination), associationsToFetch);
+    }
+    List<Object> entities = crysonRepository.findByNamedQuery(queryName, queryParameters, associationsToFetch);
     return serialize(entities, associationsToFetch);
   }
 
-  public Response createEntity(String entityName, String json, ListenerNotificationBatch listenerNotificationBatch) throws Exception {
-    Class entityClass = entityClass(entityName);
-    Object entity = crysonSerializer.deserialize(json, entityClass, null);
-    crysonRepository.persist(entity);
-    crysonRepository.refresh(entity);
-    listenerNotificationBatch.entityCreated(entity);
-    return serialize(entity);
+  @Transactional(readOnly = true)
+  public Response getEntitiesByNamedQueryJson(String queryName, Set<String> associationsToFetch, JsonElement parameters) {
+    return getEntitiesByNamedQueryJson(queryName, associationsToFetch, parameters, Pagination.NONE);
   }
 
-  private Response serialize(Object entity) {
-    String serializedEntity = crysonSerializer.serialize(entity);
-    return Response.ok(serializedEntity)
-      .header(CONTENT_LENGTH, countUtf8Bytes(serializedEntity))
-      .build();
+  @Transactional(readOnly = true)
+  public Response getEntitiesByNamedQueryJson(String queryName, Set<String> associationsToFetch, JsonElement parameters, Pagination pagination) {
+    useReadOnlySession();
+    if (pagination.isRequested()) {
+      return serialize(crysonRepository.findByNamedQueryJson(queryName, parameters, associationsToFetch, pagination), associationsToFetch);
+    }
+    List<Object> entities = crysonRepository.findByNamedQueryJson(queryName, parameters, associationsToFetch);
+    return serialize(entities, associationsToFetch);
   }
 
-  private Response serialize(Object entity, Set<String> associationsToFetch) {
-    String serializedEntity = crysonSerializer.serialize(entity, associationsToFetch);
-    return Response.ok(serializedEntity)
-      .header(CONTENT_LENGTH, countUtf8Bytes(serializedEntity))
+  // Sub-requests share the session, so an entity found by several of them is one instance, serialized once with the
+  // union of their associations to fetch. Each result lists the indexes of its entities in "entities".
+  @Transactional(readOnly = true)
+  public Response getBatch(List<BatchRequest> batchRequests) throws Exception {
+    String serializedBatch = crysonSerializer.serializeTree(executeBatch(batchRequests));
+    return Response.ok(serializedBatch)
+      .header(CONTENT_LENGTH, countUtf8Bytes(serializedBatch))
       .build();
   }
 
-  private Response serialize(List<Object> entities, Set<String> associationsToFetch) {
-    String serializedEntities = crysonSerializer.serialize(entities, associationsToFetch);
-    return Response.ok(serializedEntities)
-      .header(CONTENT_LENGTH, countUtf8Bytes(serializedEntities))
-      .build();
-  }
+  @Transactional(readOnly = true)
+  public JsonObject executeBatch(List<BatchRequest> batchRequests) throws Exception {
+    useReadOnlySession();
+    List<Object> entities = new ArrayList<Object>();
+    Map<Object, Integer> entityIndexes = new IdentityHashMap<Object, Integer>();
+    List<Set<String>> entityAssociationsToFetch = new ArrayList<Set<String>>();
+    JsonArray results = new JsonArray();
+    for(BatchRequest batchRequest : batchRequests) {
+      if (batchRequest.getType() == BatchRequest.Type.DEFINITIONS) {
+        results.add(crysonSerializer.parse(getCachedDefinitions()));
+        continue;
+      }
+      JsonArray result = new JsonArray();
+      for(Object entity : findBatchEntities(batchRequest)) {
+        Integer entityIndex = entityIndexes.get(entity);
+        if (entityIndex == null) {
+          entityIndex = entities.size();
+          entities.add(entity);
+          entityIndexes.put(entity, entityIndex);
+          entityAssociationsToFetch.add(new HashSet<String>());
+        }
+        entityAssociationsToFetch.get(entityIndex).addAll(batchRequest.getAssociationsToFetch());
+        result.add(new JsonPrimitive(entityIndex));
+      }
+      results.add(result);
+    }
 
+    JsonObject batch = new JsonObject();
+    batch.add("entities", serializeBatchEntities(entities, entityAssociationsToFetch));
+    batch.add("results", results);
+    return batch;
+  }
 
-  public void validatePermissions(JsonElement committedEntities) throws Exception {
-    JsonArray updatedEntities = committedEntities.getAsJsonObject().get("updatedEntities").getAsJsonArray();
-    for(JsonElement updatedEntityElement : updatedEntities) {
-      Object entity = crysonSerializer.deserialize(updatedEntityElement, entityClass(updatedEntityElement), new HashMap<Long, Long>());
-      if (entity instanceof Restrictable) {
-        Object originalEntity = crysonRepository.ensureReadableAndWritable(qualifiedEntityClassName(updatedEntityElement.getAsJsonObject().get("crysonEntityClass").getAsString()),
-                updatedEntityElement.getAsJsonObject().get("id").getAsLong());
-        sessionFactory.getCurrentSession().evict(originalEntity);
-      }
+  private List<Object> findBatchEntities(BatchRequest batchRequest) {
+    if (batchRequest.getType() == BatchRequest.Type.NAMED_QUERY) {
+      return crysonRepository.findByNamedQueryJson(batchRequest.getName(), batchRequest.getParameters(), batchRequest.getAssociationsToFetch());
+    }
+    Class<?> entityClass = entityClassesBySimpleName.get(batchRequest.getName());
+    if (entityClass == null) {
+      throw new CrysonBadRequestException("Unknown entity; entity=" + batchRequest.getName(), null);
+    }
+    switch(batchRequest.getType()) {
+      case IDS:
+        return crysonRepository.findByIds(entityClass.getName(), batchRequest.getIds(), batchRequest.getAssociationsToFetch());
+      case EXAMPLE:
+        Object exampleEntity = crysonSerializer.deserialize(batchRequest.getParameters(), entityClass, null);
+        return crysonRepository.findByExample(entityClass.getName(), exampleEntity, batchRequest.getAssociationsToFetch());
+      default:
+        return crysonRepository.findAll(entityClass.getName(), batchRequest.getAssociationsToFetch());
     }
   }
 
-  public JsonObject commit(JsonElement committedEntities, ListenerNotificationBatch listenerNotificationBatch, List<Object> refreshedPersistedEntities, List<Object> updatedPersistedEntities) throws Exception {
-    Map<Long, Long> replacedTemporaryIds = new HashMap<Long, Long>();
-    JsonArray persistedEntities = committedEntities.getAsJsonObject().get("persistedEntities").getAsJsonArray();
-    Collection<JsonElement> sortedPersistedEntities = topologicallySortPersistedEntities(persistedEntities);
-    for(JsonElement persistedEntityElement : sortedPersistedEntities) {
-      Object entity = crysonSerializer.deserialize(persistedEntityElement, entityClass(persistedEntityElement), replacedTemporaryIds);
-      Long temporaryId = reflectionHelper.getPrimaryKey(entity);
-      if (temporaryId < 0) {
-        reflectionHelper.setPrimaryKey(entity, null);
+  // Entities with the same associations to fetch are initialized and serialized together, keeping loads batched
+  private JsonArray serializeBatchEntities(List<Object> entities, List<Set<String>> entityAssociationsToFetch) {
+    Map<Set<String>, List<Integer>> entityIndexesByAssociationsToFetch = new HashMap<Set<String>, List<Integer>>();
+    for(int entityIndex = 0;entityIndex < entities.size();entityIndex++) {
+      List<Integer> entityIndexes = entityIndexesByAssociationsToFetch.get(entityAssociationsToFetch.get(entityIndex));
+      if (entityIndexes == null) {
+        entityIndexes = new ArrayList<Integer>();
+        entityIndexesByAssociationsToFetch.put(entityAssociationsToFetch.get(entityIndex), entityIndexes);
       }
-      crysonRepository.persist(entity);
-      refreshedPersistedEntities.add(entity);
-      Long replacementId = reflectionHelper.getPrimaryKey(entity);
-      replacedTemporaryIds.put(temporaryId, replacementId);
+      entityIndexes.add(entityIndex);
     }
 
-    JsonArray updatedEntities = committedEntities.getAsJsonObject().get("updatedEntities").getAsJsonArray();
-    for(JsonElement updatedEntityElement : updatedEntities) {
-      Object entity = crysonSerializer.deserialize(updatedEntityElement, entityClass(updatedEntityElement), replacedTemporaryIds);
-      patchOneToOnes(entity);
-      Object updatedEntity = crysonRepository.update(entity);
-      updatedPersistedEntities.add(updatedEntity);
+    JsonElement[] serializedEntities = new JsonElement[entities.size()];
+    for(Map.Entry<Set<String>, List<Integer>> entityIndexes : entityIndexesByAssociationsToFetch.entrySet()) {
+      List<Object> group = new ArrayList<Object>(entityIndexes.getValue().size());
+      for(Integer entityIndex : entityIndexes.getValue()) {
+        group.add(entities.get(entityIndex));
+      }
+      proxyBatchInitializer.initialize(group, entityIndexes.getKey());
+      LazyCollectionIds lazyCollectionIds = lazyCollectionIdLoader.load(group, entityIndexes.getKey());
+      JsonArray serializedGroup = crysonSerializer.serializeToTree(group, entityIndexes.getKey(), lazyCollectionIds).getAsJsonArray();
+      for(int ix = 0;ix < group.size();ix++) {
+        serializedEntities[entityIndexes.getValue().get(ix)] = serializedGroup.get(ix);
+      }
     }
 
-    JsonArray deletedEntities = committedEntities.getAsJsonObject().get("deletedEntities").getAsJsonArray();
-    for(JsonElement deletedEntityElement : deletedEntities) {
-      Object entity = crysonSerializer.deserialize(deletedEntityElement, entityClass(deletedEntityElement), replacedTemporaryIds);
-      crysonRepository.delete(entity);
-      listenerNotificationBatch.entityDeleted(entity);
+    JsonArray serializedEntityArray = new JsonArray();
+    for(JsonElement serializedEntity : serializedEntities) {
+      serializedEntityArray.add(serializedEntity);
     }
+    return serializedEntityArray;
+  }
 
-    JsonObject responseJsonObject = new JsonObject();
-    responseJsonObject.add("replacedTemporaryIds", crysonSerializer.serializeToTreeWithoutAugmentation(replacedTemporaryIds));
+  // Read when the response is written, in a transaction of its own, since the one of this method has ended by then
+  @Transactional(readOnly = true)
+  public Response exportAllEntities(String entityName, final Set<String> associationsToFetch) {
+    final String qualifiedEntityClassName = qualifiedEntityClassName(entityName);
+    return export(new Export() {
+      public void writeTo(Writer writer) throws IOException {
+        crysonExporter.exportAll(qualifiedEntityClassName, associationsToFetch, writer);
+      }
+    });
+  }
 
-    return responseJsonObject;
+  @Transactional(readOnly = true)
+  public Response exportEntitiesByNamedQuery(final String queryName, final MultivaluedMap<String, String> queryParameters, final Set<String> associationsToFetch) {
+    return export(new Export() {
+      public void writeTo(Writer writer) throws IOException {
+        crysonExporter.exportByNamedQuery(queryName, queryParameters, associationsToFetch, writer);
+      }
+    });
   }
 
-  private void patchOneToOnes(Object entity) throws Exception {
-    List<Field> oneToOneFields = reflectionHelper.getOneToOneFields(entity);
-    for(Field field : oneToOneFields) {
-      Object associatedEntity = field.get(entity);
-      if (associatedEntity != null) {
-        field.set(entity, crysonRepository.findById(crysonSerializer.getEntityClassName(associatedEntity), reflectionHelper.getPrimaryKey(associatedEntity), Collections.EMPTY_SET));
+  private Response export(final Export export) {
+    return Response.ok(new StreamingOutput() {
+      public void write(OutputStream outputStream) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(outputStream, UTF_8));
+        export.writeTo(writer);
+        writer.flush();
       }
-    }
+    }).type(NDJSON_MEDIA_TYPE).build();
   }
 
-  public void refreshEntities(JsonObject responseJsonObject, ListenerNotificationBatch listenerNotificationBatch, List<Object> persistedEntities, List<Object> updatedEntities) {
-    List<Object> refreshedPersistedEntities = new ArrayList<Object>(persistedEntities.size());
-    List<Object> refreshedUpdatedEntities = new ArrayList<Object>(updatedEntities.size());
+  private interface Export {
+    void writeTo(Writer writer) throws IOException;
+  }
 
-    for (Object persistedEntity : persistedEntities) {
-      Object refreshedPersistedEntity = crysonRepository.findById(crysonSerializer.getEntityClassName(persistedEntity), reflectionHelper.getPrimaryKey(persistedEntity), Collections.EMPTY_SET);
-      refreshedPersistedEntities.add(refreshedPersistedEntity);
-      listenerNotificationBatch.entityCreated(refreshedPersistedEntity);
-    }
+  // Entities loaded for a read are not snapshotted for dirty checking, until the read's transaction completes
+  private void useReadOnlySession() {
+    ReadOnlySessions.useReadOnly(sessionFactory.getCurrentSession());
+  }
 
-    for (Object updatedEntity : updatedEntities) {
-      Object refreshedUpdatedEntity = crysonRepository.findById(crysonSerializer.getEntityClassName(updatedEntity), reflectionHelper.getPrimaryKey(updatedEntity), Collections.EMPTY_SET);
-      refreshedUpdatedEntities.add(refreshedUpdatedEntity);
-      listenerNotificationBatch.entityUpdated(refreshedUpdatedEntity);
-    }
+  public Response createEntity(String entityName, String json, ListenerNotificationBatch listenerNotificationBatch) throws Exception {
+    Class entityClass = entityClass(entityName);
+    Object entity = crysonSerializer.deserialize(json, entityClass, null);
+    crysonRepository.persist(entity);
+    crysonRepository.refresh(entity);
+    listenerNotificationBatch.entityCreated(entity);
+    return serialize(entity);
+  }
 
-    responseJsonObject.add("persistedEntities", crysonSerializer.serializeToTree(refreshedPersistedEntities, Collections.<String>emptySet()));
-    responseJsonObject.add("updatedEntities", crysonSerializer.serializeToTree(refreshedUpdatedEntities, Collections.<String>emptySet()));
+  // The body stays a plain JSON array, so that paginated responses are readable by existing clients
+  private Response serialize(Page page, Set<String> associationsToFetch) {
+    Response.ResponseBuilder responseBuilder = Response.fromResponse(serialize(page.getEntities(), associationsToFetch));
+    if (page.getNextCursor() != null) {
+      responseBuilder.header(NEXT_CURSOR_HEADER, page.getNextCursor());
+    }
+    if (page.getTotalCount() != null) {
+      responseBuilder.header(TOTAL_COUNT_HEADER, page.getTotalCount());
+    }
+    return responseBuilder.build();
   }
 
-  private Collection<JsonElement> topologicallySortPersistedEntities(JsonArray persistedEntities) {
-    List<JsonElement> result = new ArrayList<JsonElement>(persistedEntities.size());
+  private Response serialize(Object entity) {
+    return serialize(entity, Collections.<String>emptySet());
+  }
 
-    for(JsonElement persistedEntity : persistedEntities) {
-      result.add(persistedEntity);
+  private Response serialize(Object entity, Set<String> associationsToFetch) {
+    proxyBatchInitializer.initialize(entity, associationsToFetch);
+    LazyCollectionIds lazyCollectionIds = lazyCollectionIdLoader.load(entity, associationsToFetch);
+    if (streamingEnabled) {
+      return Response.ok(new CrysonStreamingOutput(crysonSerializer, entity, associationsToFetch, lazyCollectionIds)).build();
     }
+    String serializedEntity = crysonSerializer.serialize(entity, associationsToFetch, lazyCollectionIds);
+    return Response.ok(serializedEntity)
+      .header(CONTENT_LENGTH, countUtf8Bytes(serializedEntity))
+      .build();
+  }
 
-    Collections.sort(result, new Comparator<JsonElement>() {
-      public int compare(JsonElement a, JsonElement b) {
-        try {
-          int aInsertionOrder = classInsertionOrder.get(entityClass(a));
-          int bInsertionOrder = classInsertionOrder.get(entityClass(b));
-          return ((aInsertionOrder < bInsertionOrder) ? -1 : ((aInsertionOrder > bInsertionOrder) ? 1 : 0));
-        } catch (ClassNotFoundException e) {
-          throw new RuntimeException("Failed to find class for entity", e);
-        }
-      }
-    });
 
-    return result;
+  public Map<Class<?>, Integer> getClassInsertionOrder() {
+    return classInsertionOrder;
   }
 
   private Map<Class<?>, Integer> calculateClassInsertionOrder(Collection<Class<?>> classes) {
@@ -399,9 +529,6 @@ public class CrysonService {
     return entityClassesBySimpleName.get(entityName);
   }
 
-  private Class entityClass(JsonElement entityElement) throws ClassNotFoundException {
-    return entityClass(entityElement.getAsJsonObject().get("crysonEntityClass").getAsString());
-  }
 
   void setCrysonSerializer(CrysonSerializer crysonSerializer) {
     this.crysonSerializer = crysonSerializer;
@@ -411,6 +538,14 @@ public class CrysonService {
     this.crysonRepository = crysonRepository;
   }
 
+  void setLazyCollectionIdLoader(LazyCollectionIdLoader lazyCollectionIdLoader) {
+    this.lazyCollectionIdLoader = lazyCollectionIdLoader;
+  }
+
+  void setProxyBatchInitializer(ProxyBatchInitializer proxyBatchInitializer) {
+    this.proxyBatchInitializer = proxyBatchInitializer;
+  }
+
   void setEntityClassesBySimpleName(Map<String, Class<?>> entityClassesBySimpleName) {
     this.entityClassesBySimpleName = entityClassesBySimpleName;
   }
@@ -0,0 +1,140 @@
+/*
+  Cryson
+  
+  Copyright 2011-2012 Björn Sperber (cryson@sperber.se)
+  
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  
+  http://www.apache.org/licenses/LICENSE-2.0
+  
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package se.sperber.cryson.service;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.SettableFuture;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.stereotype.Component;
+import se.sperber.cryson.exception.CrysonEntityConflictException;
+import se.sperber.cryson.metrics.CrysonMetrics;
+
+import javax.annotation.PostConstruct;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Remembers the successful responses of requests carrying an X-Cryson-Request-Id header, per user and operation, and
+ * replays them to resent requests instead of executing those again. A resent request arriving while the first is
+ * still executing waits for its outcome, for a limited time after which it is answered with a conflict. Bounded and
+ * expiring; failed requests are forgotten so they can be retried.
+ */
+@Component
+public class IdempotentResponseCache {
+
+  public static final String REQUEST_ID_HEADER = "X-Cryson-Request-Id";
+  public static final String REPLAYED_HEADER = "X-Cryson-Replayed";
+  public static final String REPLAYED_RESPONSES_METRIC = "idempotency.replayed_responses";
+
+  @Autowired
+  private CrysonMetrics crysonMetrics;
+
+  @Value("${cryson.idempotency.cache_size:10000}")
+  private long maximumSize;
+
+  @Value("${cryson.idempotency.expiry_seconds:600}")
+  private long expirySeconds;
+
+  @Value("${cryson.idempotency.wait_seconds:30}")
+  private long waitSeconds;
+
+  private Cache<String, SettableFuture<Response>> responsesByRequest;
+
+  @PostConstruct
+  public void createCache() {
+    responsesByRequest = CacheBuilder.newBuilder()
+            .maximumSize(maximumSize)
+            .expireAfterWrite(expirySeconds, TimeUnit.SECONDS)
+            .build();
+  }
+
+  public Response execute(HttpHeaders httpHeaders, String operation, Callable<Response> request) throws Exception {
+    String requestId = httpHeaders.getRequestHeaders().getFirst(REQUEST_ID_HEADER);
+    if (requestId == null) {
+      return request.call();
+    }
+
+    String key = principalName() + "\n" + operation + "\n" + requestId;
+    SettableFuture<Response> response = SettableFuture.create();
+    SettableFuture<Response> firstResponse = responsesByRequest.asMap().putIfAbsent(key, response);
+    if (firstResponse != null) {
+      Response replayedResponse;
+      try {
+        replayedResponse = firstResponse.get(waitSeconds, TimeUnit.SECONDS);
+      } catch(ExecutionException e) {
+        throw e.getCause() instanceof Exception ? (Exception)e.getCause() : e;
+      } catch(TimeoutException e) {
+        throw new CrysonEntityConflictException("Request still in progress; requestId=" + requestId, e);
+      }
+      crysonMetrics.increment(REPLAYED_RESPONSES_METRIC, 1);
+      return Response.fromResponse(replayedResponse).header(REPLAYED_HEADER, "true").build();
+    }
+
+    try {
+      Response replayableResponse = replayable(request.call());
+      if (replayableResponse.getStatus() >= 300) {
+        responsesByRequest.asMap().remove(key, response);
+      }
+      response.set(replayableResponse);
+      return Response.fromResponse(replayableResponse).build();
+    } catch(Exception e) {
+      responsesByRequest.asMap().remove(key, response);
+      response.setException(e);
+      throw e;
+    } catch(Error e) {
+      responsesByRequest.asMap().remove(key, response);
+      response.setException(e);
+      throw e;
+    }
+  }
+
+  // Streamed bodies are written out once, since they read from the session of the first request
+  private Response replayable(Response response) throws Exception {
+    if (!(response.getEntity() instanceof StreamingOutput)) {
+      return response;
+    }
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    ((StreamingOutput)response.getEntity()).write(body);
+    return Response.fromResponse(response).entity(body.toByteArray()).build();
+  }
+
+  private String principalName() {
+    Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+    return authentication != null ? authentication.getName() : "";
+  }
+
+  void setCrysonMetrics(CrysonMetrics crysonMetrics) {
+    this.crysonMetrics = crysonMetrics;
+  }
+
+  void setWaitSeconds(long waitSeconds) {
+    this.waitSeconds = waitSeconds;
+  }
+
+}
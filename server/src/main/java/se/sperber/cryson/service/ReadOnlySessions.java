@@ -0,0 +1,51 @@
+/*
+  Cryson
+  
+  Copyright 2011-2012 Björn Sperber (cryson@sperber.se)
+  
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  
+  http://www.apache.org/licenses/LICENSE-2.0
+  
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package se.sperber.cryson.service;
+
+import org.hibernate.Session;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Makes entities loaded by a read transaction read-only, so they are neither snapshotted nor dirty checked, and
+ * restores the session's default once the transaction completes, since a session bound for the whole request may
+ * go on to commit changes after the read.
+ */
+class ReadOnlySessions {
+
+  private ReadOnlySessions() {
+  }
+
+  // Only the outermost read switches the default, so nested reads leave restoring it to the first one
+  static void useReadOnly(final Session session) {
+    if (session.isDefaultReadOnly() || !TransactionSynchronizationManager.isSynchronizationActive()) {
+      return;
+    }
+    session.setDefaultReadOnly(true);
+    TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+      @Override
+      public void afterCompletion(int status) {
+        if (session.isOpen()) {
+          session.setDefaultReadOnly(false);
+        }
+      }
+    });
+  }
+
+}
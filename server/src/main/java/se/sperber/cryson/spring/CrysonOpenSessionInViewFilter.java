@@ -0,0 +1,40 @@
+/*
+  Cryson
+  
+  Copyright 2011-2012 Björn Sperber (cryson@sperber.se)
+  
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  
+  http://www.apache.org/licenses/LICENSE-2.0
+  
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package se.sperber.cryson.spring;
+
+import org.hibernate.SessionFactory;
+import org.springframework.context.ApplicationContext;
+import org.springframework.orm.hibernate4.support.OpenSessionInViewFilter;
+
+// Keeps the Hibernate session open while streamed responses are written, after the service transaction has ended
+public class CrysonOpenSessionInViewFilter extends OpenSessionInViewFilter {
+
+  private final ApplicationContext applicationContext;
+
+  public CrysonOpenSessionInViewFilter(ApplicationContext applicationContext) {
+    super();
+    this.applicationContext = applicationContext;
+  }
+
+  @Override
+  protected SessionFactory lookupSessionFactory() {
+    return applicationContext.getBean(SessionFactory.class);
+  }
+
+}
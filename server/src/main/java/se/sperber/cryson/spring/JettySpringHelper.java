@@ -59,6 +59,16 @@ public class JettySpringHelper {
     context.addFilter(securityFilterHolder, pathSpec, EnumSet.of(DispatcherType.FORWARD, DispatcherType.INCLUDE, DispatcherType.REQUEST));
   }
 
+  public void addOpenSessionInViewFilter(ServletContextHandler context, String pathSpec) {
+    FilterHolder openSessionInViewFilterHolder = new FilterHolder(new CrysonOpenSessionInViewFilter(applicationContext));
+    context.addFilter(openSessionInViewFilterHolder, pathSpec, EnumSet.of(DispatcherType.FORWARD, DispatcherType.INCLUDE, DispatcherType.REQUEST));
+  }
+
+  public void addReadPermissionsFilter(ServletContextHandler context, String pathSpec) {
+    FilterHolder readPermissionsFilterHolder = new FilterHolder(new CrysonReadPermissionsFilter());
+    context.addFilter(readPermissionsFilterHolder, pathSpec, EnumSet.of(DispatcherType.REQUEST));
+  }
+
   public void addJerseyServlet(ServletContextHandler context, String pathSpec, String packageName) {
     ServletHolder servletHolder = new ServletHolder(ServletContainer.class);
     servletHolder.setInitParameter(ServletContainer.RESOURCE_CONFIG_CLASS, PackagesResourceConfig.class.getName());
@@ -19,7 +19,9 @@
 package se.sperber.cryson.apitest;
 
 import com.google.common.base.Charsets;
+import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
 import org.apache.commons.httpclient.Credentials;
 import org.apache.commons.httpclient.HttpClient;
 import org.apache.commons.httpclient.HttpStatus;
@@ -29,17 +31,34 @@ import org.apache.commons.httpclient.methods.GetMethod;
 import org.apache.commons.httpclient.methods.PostMethod;
 import org.apache.commons.httpclient.methods.PutMethod;
 import org.apache.commons.httpclient.methods.StringRequestEntity;
+import org.hibernate.Hibernate;
 import org.hibernate.Session;
 import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionTemplate;
 import se.sperber.cryson.CrysonServer;
 import se.sperber.cryson.initialization.Application;
+import se.sperber.cryson.metrics.CrysonMetrics;
+import se.sperber.cryson.repository.CrysonRepository;
+import se.sperber.cryson.repository.ProxyBatchInitializer;
 import se.sperber.cryson.serialization.CrysonSerializer;
+import se.sperber.cryson.service.IdempotentResponseCache;
+import se.sperber.cryson.testutil.CrysonTestChildEntity;
 import se.sperber.cryson.testutil.CrysonTestEntity;
+import se.sperber.cryson.testutil.CrysonTestMergeableEntity;
+import se.sperber.cryson.testutil.CrysonTestPooledEntity;
+import se.sperber.cryson.testutil.CrysonTestRestrictedEntity;
 
 import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 import static org.junit.Assert.*;
 
@@ -76,6 +95,20 @@ public class CrysonAPITest {
     session.close();
   }
 
+  // Rows committed by a test are deleted again, so that tests counting rows do not depend on the order tests run in
+  private static void deleteTestEntities(String entityName, String... names) {
+    Session session = Application.get(SessionFactory.class).openSession();
+    session.beginTransaction();
+    if (entityName.equals("CrysonTestEntity")) {
+      session.createQuery("delete from CrysonTestChildEntity c where c.parent.id in (select e.id from CrysonTestEntity e where e.name in (:names))")
+              .setParameterList("names", names)
+              .executeUpdate();
+    }
+    session.createQuery("delete from " + entityName + " where name in (:names)").setParameterList("names", names).executeUpdate();
+    session.getTransaction().commit();
+    session.close();
+  }
+
   @AfterClass
   public static void teardown() throws Exception
   {
@@ -265,6 +298,210 @@ public class CrysonAPITest {
     assertEquals("{\"message\":\"CrysonTestEntity name size must be between 0 and 30\\n\",\"validationFailures\":[{\"entityClass\":\"CrysonTestEntity\",\"entityId\":" + entityId + ",\"keyPath\":\"name\",\"message\":\"size must be between 0 and 30\"}]}", postMethod.getResponseBodyAsString());
   }
 
+  @Test
+  public void shouldCommitPatchedEntities() throws Exception {
+    Session session = Application.get(SessionFactory.class).openSession();
+    session.beginTransaction();
+    CrysonTestEntity entity = new CrysonTestEntity();
+    entity.setName("unpatched");
+    session.save(entity);
+    session.getTransaction().commit();
+    session.close();
+
+    try {
+      String commitJson = "{\"patchedEntities\":[{\"crysonEntityClass\":\"CrysonTestEntity\",\"id\":" + entity.getId() + ",\"version\":0,\"name\":\"patched\"}]}";
+      PostMethod postMethod = new PostMethod("http://localhost:8789/cryson/commit");
+      postMethod.setRequestEntity(new StringRequestEntity(commitJson, "application/json", "UTF-8"));
+      assertEquals(HttpStatus.SC_OK, httpClient.executeMethod(postMethod));
+      JsonObject patchedEntity = crysonSerializer.parse(postMethod.getResponseBodyAsString()).getAsJsonObject().get("updatedEntities").getAsJsonArray().get(0).getAsJsonObject();
+      assertEquals("patched", patchedEntity.get("name").getAsString());
+      assertEquals(1, patchedEntity.get("version").getAsLong());
+
+      postMethod = new PostMethod("http://localhost:8789/cryson/commit");
+      postMethod.setRequestEntity(new StringRequestEntity(commitJson, "application/json", "UTF-8"));
+      assertEquals(HttpStatus.SC_CONFLICT, httpClient.executeMethod(postMethod));
+
+      String unversionedCommitJson = "{\"patchedEntities\":[{\"crysonEntityClass\":\"CrysonTestEntity\",\"id\":" + entity.getId() + ",\"name\":\"patched\"}]}";
+      postMethod = new PostMethod("http://localhost:8789/cryson/commit");
+      postMethod.setRequestEntity(new StringRequestEntity(unversionedCommitJson, "application/json", "UTF-8"));
+      assertEquals(HttpStatus.SC_BAD_REQUEST, httpClient.executeMethod(postMethod));
+
+      String missingCommitJson = "{\"patchedEntities\":[{\"crysonEntityClass\":\"CrysonTestEntity\",\"id\":999999999,\"version\":0,\"name\":\"patched\"}]}";
+      postMethod = new PostMethod("http://localhost:8789/cryson/commit");
+      postMethod.setRequestEntity(new StringRequestEntity(missingCommitJson, "application/json", "UTF-8"));
+      assertEquals(HttpStatus.SC_NOT_FOUND, httpClient.executeMethod(postMethod));
+    } finally {
+      deleteTestEntities("CrysonTestEntity", "unpatched", "patched");
+    }
+  }
+
+  @Test
+  public void shouldMergePatchesOfDisjointFieldsOntoMergeableEntities() throws Exception {
+    Session session = Application.get(SessionFactory.class).openSession();
+    session.beginTransaction();
+    CrysonTestMergeableEntity entity = new CrysonTestMergeableEntity();
+    entity.setName("unmerged");
+    session.save(entity);
+    session.getTransaction().commit();
+    session.close();
+
+    try {
+      CrysonMetrics crysonMetrics = Application.get(CrysonMetrics.class);
+      long mergedUpdates = crysonMetrics.get(CrysonRepository.MERGED_UPDATES_METRIC);
+
+      String statusCommitJson = "{\"patchedEntities\":[{\"crysonEntityClass\":\"CrysonTestMergeableEntity\",\"id\":" + entity.getId() + ",\"version\":0,\"status\":\"merged\"}]}";
+      PostMethod postMethod = new PostMethod("http://localhost:8789/cryson/commit");
+      postMethod.setRequestEntity(new StringRequestEntity(statusCommitJson, "application/json", "UTF-8"));
+      assertEquals(HttpStatus.SC_OK, httpClient.executeMethod(postMethod));
+
+      String nameCommitJson = "{\"patchedEntities\":[{\"crysonEntityClass\":\"CrysonTestMergeableEntity\",\"id\":" + entity.getId() + ",\"version\":0,\"name\":\"merged\"}]}";
+      postMethod = new PostMethod("http://localhost:8789/cryson/commit");
+      postMethod.setRequestEntity(new StringRequestEntity(nameCommitJson, "application/json", "UTF-8"));
+      assertEquals(HttpStatus.SC_OK, httpClient.executeMethod(postMethod));
+      JsonObject mergedEntity = crysonSerializer.parse(postMethod.getResponseBodyAsString()).getAsJsonObject().get("updatedEntities").getAsJsonArray().get(0).getAsJsonObject();
+      assertEquals("merged", mergedEntity.get("name").getAsString());
+      assertEquals("merged", mergedEntity.get("status").getAsString());
+      assertEquals(2, mergedEntity.get("version").getAsLong());
+      assertEquals(mergedUpdates + 1, crysonMetrics.get(CrysonRepository.MERGED_UPDATES_METRIC));
+
+      postMethod = new PostMethod("http://localhost:8789/cryson/commit");
+      postMethod.setRequestEntity(new StringRequestEntity(statusCommitJson, "application/json", "UTF-8"));
+      assertEquals(HttpStatus.SC_CONFLICT, httpClient.executeMethod(postMethod));
+    } finally {
+      deleteTestEntities("CrysonTestMergeableEntity", "merged");
+    }
+  }
+
+  @Test
+  public void shouldNotMergeStaleFullUpdatesOfMergeableEntities() throws Exception {
+    Session session = Application.get(SessionFactory.class).openSession();
+    session.beginTransaction();
+    CrysonTestMergeableEntity entity = new CrysonTestMergeableEntity();
+    entity.setName("updated");
+    session.save(entity);
+    session.getTransaction().commit();
+    session.close();
+
+    try {
+      String statusCommitJson = "{\"updatedEntities\":[{\"crysonEntityClass\":\"CrysonTestMergeableEntity\",\"id\":" + entity.getId() + ",\"version\":0,\"name\":\"updated\",\"status\":\"updated\"}]}";
+      PostMethod postMethod = new PostMethod("http://localhost:8789/cryson/commit");
+      postMethod.setRequestEntity(new StringRequestEntity(statusCommitJson, "application/json", "UTF-8"));
+      assertEquals(HttpStatus.SC_OK, httpClient.executeMethod(postMethod));
+
+      // Sent at the same version, the second update would otherwise silently reset the status
+      String nameCommitJson = "{\"updatedEntities\":[{\"crysonEntityClass\":\"CrysonTestMergeableEntity\",\"id\":" + entity.getId() + ",\"version\":0,\"name\":\"renamed\",\"status\":null}]}";
+      postMethod = new PostMethod("http://localhost:8789/cryson/commit");
+      postMethod.setRequestEntity(new StringRequestEntity(nameCommitJson, "application/json", "UTF-8"));
+      assertEquals(HttpStatus.SC_CONFLICT, httpClient.executeMethod(postMethod));
+
+      GetMethod getMethod = new GetMethod("http://localhost:8789/cryson/CrysonTestMergeableEntity/" + entity.getId());
+      assertEquals(HttpStatus.SC_OK, httpClient.executeMethod(getMethod));
+      JsonObject updatedEntity = crysonSerializer.parse(getMethod.getResponseBodyAsString()).getAsJsonObject();
+      assertEquals("updated", updatedEntity.get("name").getAsString());
+      assertEquals("updated", updatedEntity.get("status").getAsString());
+    } finally {
+      deleteTestEntities("CrysonTestMergeableEntity", "updated", "renamed");
+    }
+  }
+
+  @Test
+  public void shouldReplayTheResponseOfAResentCommit() throws Exception {
+    String requestId = "commit-" + System.nanoTime();
+    String commitJson = "{\"updatedEntities\":[], \"deletedEntities\":[], \"persistedEntities\":[{\"crysonEntityClass\":\"CrysonTestEntity\",\"id\":-1,\"name\":\"" + requestId + "\",\"childEntities_cryson_ids\":[]}]}";
+    try {
+      List<String> responseBodies = new ArrayList<String>();
+      for(int ix = 0;ix < 2;ix++) {
+        PostMethod postMethod = new PostMethod("http://localhost:8789/cryson/commit");
+        postMethod.setRequestHeader(IdempotentResponseCache.REQUEST_ID_HEADER, requestId);
+        postMethod.setRequestEntity(new StringRequestEntity(commitJson, "application/json", "UTF-8"));
+        assertEquals(HttpStatus.SC_OK, httpClient.executeMethod(postMethod));
+        assertEquals(ix == 1, postMethod.getResponseHeader(IdempotentResponseCache.REPLAYED_HEADER) != null);
+        responseBodies.add(postMethod.getResponseBodyAsString());
+      }
+      assertEquals(responseBodies.get(0), responseBodies.get(1));
+
+      GetMethod getMethod = new GetMethod("http://localhost:8789/cryson/namedQuery/CrysonTestEntity.findByName?name=" + requestId);
+      assertEquals(HttpStatus.SC_OK, httpClient.executeMethod(getMethod));
+      assertEquals(1, crysonSerializer.parse(getMethod.getResponseBodyAsString()).getAsJsonArray().size());
+    } finally {
+      deleteTestEntities("CrysonTestEntity", requestId);
+    }
+  }
+
+  @Test
+  public void shouldSerializeEntitiesFoundBySeveralBatchRequestsOnce() throws Exception {
+    Session session = Application.get(SessionFactory.class).openSession();
+    session.beginTransaction();
+    CrysonTestEntity entity = new CrysonTestEntity();
+    entity.setName("batch-" + System.nanoTime());
+    session.save(entity);
+    session.getTransaction().commit();
+    session.close();
+
+    try {
+      String batchJson = "[{\"type\":\"definitions\"}," +
+              "{\"type\":\"ids\",\"entity\":\"CrysonTestEntity\",\"ids\":[" + entity.getId() + "]}," +
+              "{\"type\":\"namedQuery\",\"query\":\"CrysonTestEntity.findByName\",\"parameters\":{\"name\":\"" + entity.getName() + "\"},\"fetch\":\"childEntities\"}]";
+      PostMethod postMethod = new PostMethod("http://localhost:8789/cryson/batch");
+      postMethod.setRequestEntity(new StringRequestEntity(batchJson, "application/json", "UTF-8"));
+      assertEquals(HttpStatus.SC_OK, httpClient.executeMethod(postMethod));
+
+      JsonObject batch = crysonSerializer.parse(postMethod.getResponseBodyAsString()).getAsJsonObject();
+      JsonArray entities = batch.get("entities").getAsJsonArray();
+      JsonArray results = batch.get("results").getAsJsonArray();
+      assertEquals(1, entities.size());
+      assertEquals(entity.getId().longValue(), entities.get(0).getAsJsonObject().get("id").getAsLong());
+      assertTrue(entities.get(0).getAsJsonObject().has("childEntities"));
+      assertTrue(results.get(0).getAsJsonObject().has("CrysonTestEntity"));
+      assertEquals(0, results.get(1).getAsJsonArray().get(0).getAsInt());
+      assertEquals(0, results.get(2).getAsJsonArray().get(0).getAsInt());
+
+      postMethod = new PostMethod("http://localhost:8789/cryson/batch");
+      postMethod.setRequestEntity(new StringRequestEntity("[{\"type\":\"unknown\"}]", "application/json", "UTF-8"));
+      assertEquals(HttpStatus.SC_BAD_REQUEST, httpClient.executeMethod(postMethod));
+    } finally {
+      deleteTestEntities("CrysonTestEntity", entity.getName());
+    }
+  }
+
+  @Test
+  public void shouldMergeBatchRequestsExecutedInParallel() throws Exception {
+    List<CrysonTestEntity> entities = new ArrayList<CrysonTestEntity>();
+    Session session = Application.get(SessionFactory.class).openSession();
+    session.beginTransaction();
+    for(int ix = 0;ix < 3;ix++) {
+      CrysonTestEntity entity = new CrysonTestEntity();
+      entity.setName("parallel-" + ix);
+      session.save(entity);
+      entities.add(entity);
+    }
+    session.getTransaction().commit();
+    session.close();
+
+    try {
+      StringBuilder batchJson = new StringBuilder("[{\"type\":\"definitions\"}");
+      for(CrysonTestEntity entity : entities) {
+        batchJson.append(",{\"type\":\"ids\",\"entity\":\"CrysonTestEntity\",\"ids\":[" + entity.getId() + "]}");
+      }
+      batchJson.append("]");
+      PostMethod postMethod = new PostMethod("http://localhost:8789/cryson/batch?parallel=true");
+      postMethod.setRequestEntity(new StringRequestEntity(batchJson.toString(), "application/json", "UTF-8"));
+      assertEquals(HttpStatus.SC_OK, httpClient.executeMethod(postMethod));
+
+      JsonObject batch = crysonSerializer.parse(postMethod.getResponseBodyAsString()).getAsJsonObject();
+      JsonArray results = batch.get("results").getAsJsonArray();
+      assertEquals(4, results.size());
+      assertTrue(results.get(0).getAsJsonObject().has("CrysonTestEntity"));
+      for(int ix = 0;ix < entities.size();ix++) {
+        int entityIndex = results.get(ix + 1).getAsJsonArray().get(0).getAsInt();
+        JsonObject entity = batch.get("entities").getAsJsonArray().get(entityIndex).getAsJsonObject();
+        assertEquals(entities.get(ix).getId().longValue(), entity.get("id").getAsLong());
+      }
+    } finally {
+      deleteTestEntities("CrysonTestEntity", "parallel-0", "parallel-1", "parallel-2");
+    }
+  }
+
   @Test
   public void shouldTopologicallySortPersistedEntities() throws Exception {
     String commitJson = "{\"updatedEntities\":[], \"deletedEntities\":[], \"persistedEntities\":[{\"crysonEntityClass\":\"CrysonTestChildEntity\",\"id\":-1,\"parent_cryson_id\":-2},{\"crysonEntityClass\":\"CrysonTestEntity\",\"id\":-2,\"name\":\"test\",\"childEntities_cryson_ids\":[-1]}]}";
@@ -273,4 +510,418 @@ public class CrysonAPITest {
     assertEquals(HttpStatus.SC_OK, httpClient.executeMethod(postMethod));
   }
 
+  @Test
+  public void shouldCommitInOneTransaction() throws Exception {
+    String commitJson = "{\"updatedEntities\":[], \"deletedEntities\":[], \"persistedEntities\":[{\"crysonEntityClass\":\"CrysonTestEntity\",\"id\":-1,\"name\":\"pipeline\",\"childEntities_cryson_ids\":[]}]}";
+    PostMethod postMethod = new PostMethod("http://localhost:8789/cryson/commit");
+    postMethod.setRequestEntity(new StringRequestEntity(commitJson, "application/json", "UTF-8"));
+
+    Statistics statistics = Application.get(SessionFactory.class).getStatistics();
+    statistics.setStatisticsEnabled(true);
+    statistics.clear();
+    try {
+      assertEquals(HttpStatus.SC_OK, httpClient.executeMethod(postMethod));
+      JsonElement persistedEntity = crysonSerializer.parse(postMethod.getResponseBodyAsString()).getAsJsonObject().get("persistedEntities").getAsJsonArray().get(0);
+      assertEquals("pipeline", persistedEntity.getAsJsonObject().get("name").getAsString());
+      assertEquals(1, statistics.getTransactionCount());
+    } finally {
+      statistics.setStatisticsEnabled(false);
+      deleteTestEntities("CrysonTestEntity", "pipeline");
+    }
+  }
+
+  @Test
+  public void shouldFlushPersistedEntitiesOnce() throws Exception {
+    StringBuilder persistedEntities = new StringBuilder();
+    for(int ix = 1;ix <= 5;ix++) {
+      persistedEntities.append(ix > 1 ? "," : "");
+      persistedEntities.append("{\"crysonEntityClass\":\"CrysonTestChildEntity\",\"id\":-" + (ix * 2) + ",\"parent_cryson_id\":-" + (ix * 2 + 1) + "},");
+      persistedEntities.append("{\"crysonEntityClass\":\"CrysonTestEntity\",\"id\":-" + (ix * 2 + 1) + ",\"name\":\"batched\",\"childEntities_cryson_ids\":[-" + (ix * 2) + "]}");
+    }
+    String commitJson = "{\"updatedEntities\":[], \"deletedEntities\":[], \"persistedEntities\":[" + persistedEntities + "]}";
+    PostMethod postMethod = new PostMethod("http://localhost:8789/cryson/commit");
+    postMethod.setRequestEntity(new StringRequestEntity(commitJson, "application/json", "UTF-8"));
+
+    Statistics statistics = Application.get(SessionFactory.class).getStatistics();
+    statistics.setStatisticsEnabled(true);
+    statistics.clear();
+    try {
+      assertEquals(HttpStatus.SC_OK, httpClient.executeMethod(postMethod));
+      JsonObject response = crysonSerializer.parse(postMethod.getResponseBodyAsString()).getAsJsonObject();
+      assertEquals(10, response.get("replacedTemporaryIds").getAsJsonObject().entrySet().size());
+      assertEquals(10, response.get("persistedEntities").getAsJsonArray().size());
+      assertEquals(10, statistics.getEntityInsertCount());
+      assertTrue(statistics.getFlushCount() <= 2); // The commit pipeline's flush and the transaction commit
+    } finally {
+      statistics.setStatisticsEnabled(false);
+      deleteTestEntities("CrysonTestEntity", "batched");
+    }
+  }
+
+  @Test
+  public void shouldValidatePermissionsOfUpdatedEntitiesInBulk() throws Exception {
+    Session session = Application.get(SessionFactory.class).openSession();
+    session.beginTransaction();
+    StringBuilder updatedEntities = new StringBuilder();
+    for(int ix = 0;ix < 5;ix++) {
+      CrysonTestEntity entity = new CrysonTestEntity();
+      entity.setName("permissions");
+      Long id = (Long)session.save(entity);
+      updatedEntities.append(ix > 0 ? "," : "");
+      updatedEntities.append("{\"crysonEntityClass\":\"CrysonTestEntity\",\"id\":" + id + ",\"name\":\"permitted\",\"childEntities_cryson_ids\":[],\"version\":0}");
+    }
+    session.getTransaction().commit();
+    session.close();
+
+    String commitJson = "{\"updatedEntities\":[" + updatedEntities + "], \"deletedEntities\":[], \"persistedEntities\":[]}";
+    PostMethod postMethod = new PostMethod("http://localhost:8789/cryson/commit");
+    postMethod.setRequestEntity(new StringRequestEntity(commitJson, "application/json", "UTF-8"));
+
+    Statistics statistics = Application.get(SessionFactory.class).getStatistics();
+    statistics.setStatisticsEnabled(true);
+    statistics.clear();
+    try {
+      assertEquals(HttpStatus.SC_OK, httpClient.executeMethod(postMethod));
+      for(JsonElement updatedEntity : crysonSerializer.parse(postMethod.getResponseBodyAsString()).getAsJsonObject().get("updatedEntities").getAsJsonArray()) {
+        assertEquals("permitted", updatedEntity.getAsJsonObject().get("name").getAsString());
+      }
+      // Per entity: the original loaded for the permission check and merged onto, the refresh after update and the re-read
+      assertEquals(15, statistics.getEntityLoadCount());
+    } finally {
+      statistics.setStatisticsEnabled(false);
+      deleteTestEntities("CrysonTestEntity", "permissions", "permitted");
+    }
+  }
+
+  @Test
+  public void shouldDeleteEntitiesInBulk() throws Exception {
+    Session session = Application.get(SessionFactory.class).openSession();
+    session.beginTransaction();
+    CrysonTestEntity parent = new CrysonTestEntity();
+    parent.setName("bulk delete");
+    session.save(parent);
+    StringBuilder deletedEntities = new StringBuilder("{\"crysonEntityClass\":\"CrysonTestEntity\",\"id\":" + parent.getId() + "}");
+    List<Long> childIds = new ArrayList<Long>();
+    for(int ix = 0;ix < 5;ix++) {
+      CrysonTestChildEntity child = new CrysonTestChildEntity();
+      child.setParent(parent);
+      childIds.add((Long)session.save(child));
+      deletedEntities.append(",{\"crysonEntityClass\":\"CrysonTestChildEntity\",\"id\":" + child.getId() + "}");
+    }
+    session.getTransaction().commit();
+    session.close();
+
+    String commitJson = "{\"updatedEntities\":[], \"deletedEntities\":[" + deletedEntities + "], \"persistedEntities\":[]}";
+    PostMethod postMethod = new PostMethod("http://localhost:8789/cryson/commit");
+    postMethod.setRequestEntity(new StringRequestEntity(commitJson, "application/json", "UTF-8"));
+
+    Statistics statistics = Application.get(SessionFactory.class).getStatistics();
+    statistics.setStatisticsEnabled(true);
+    statistics.clear();
+    try {
+      assertEquals(HttpStatus.SC_OK, httpClient.executeMethod(postMethod));
+      assertEquals(0, statistics.getEntityLoadCount());
+      assertEquals(2, statistics.getPrepareStatementCount());
+    } finally {
+      statistics.setStatisticsEnabled(false);
+    }
+
+    session = Application.get(SessionFactory.class).openSession();
+    assertEquals(0, session.createQuery("from CrysonTestChildEntity where id in (:ids)").setParameterList("ids", childIds).list().size());
+    assertEquals(null, session.get(CrysonTestEntity.class, parent.getId()));
+    session.close();
+  }
+
+  @Test
+  public void shouldRereadOnlyRestrictableCommittedEntities() throws Exception {
+    String commitJson = "{\"updatedEntities\":[], \"deletedEntities\":[], \"persistedEntities\":[" +
+            "{\"crysonEntityClass\":\"CrysonTestEntity\",\"id\":-1,\"name\":\"reread\",\"childEntities_cryson_ids\":[]}," +
+            "{\"crysonEntityClass\":\"CrysonTestEntity\",\"id\":-2,\"name\":\"reread\",\"childEntities_cryson_ids\":[]}," +
+            "{\"crysonEntityClass\":\"CrysonTestPooledEntity\",\"id\":-3,\"name\":\"not reread\"}," +
+            "{\"crysonEntityClass\":\"CrysonTestPooledEntity\",\"id\":-4,\"name\":\"not reread\"}]}";
+    PostMethod postMethod = new PostMethod("http://localhost:8789/cryson/commit");
+    postMethod.setRequestEntity(new StringRequestEntity(commitJson, "application/json", "UTF-8"));
+
+    Statistics statistics = Application.get(SessionFactory.class).getStatistics();
+    statistics.setStatisticsEnabled(true);
+    statistics.clear();
+    try {
+      assertEquals(HttpStatus.SC_OK, httpClient.executeMethod(postMethod));
+      JsonArray persistedEntities = crysonSerializer.parse(postMethod.getResponseBodyAsString()).getAsJsonObject().get("persistedEntities").getAsJsonArray();
+      assertEquals(4, persistedEntities.size());
+      for(JsonElement persistedEntity : persistedEntities) {
+        assertTrue(persistedEntity.getAsJsonObject().get("name").getAsString().endsWith("reread"));
+      }
+      assertEquals(2, statistics.getEntityLoadCount());
+      assertEquals(2, statistics.getEntityStatistics(CrysonTestEntity.class.getName()).getLoadCount());
+    } finally {
+      statistics.setStatisticsEnabled(false);
+      deleteTestEntities("CrysonTestEntity", "reread");
+      deleteTestEntities("CrysonTestPooledEntity", "not reread");
+    }
+  }
+
+  @Test
+  public void shouldAllocatePooledIdsWithoutInserting() throws Exception {
+    final Statistics statistics = Application.get(SessionFactory.class).getStatistics();
+    statistics.setStatisticsEnabled(true);
+    try {
+      new TransactionTemplate(Application.get(PlatformTransactionManager.class)).execute(new TransactionCallbackWithoutResult() {
+        protected void doInTransactionWithoutResult(TransactionStatus transactionStatus) {
+          Session session = Application.get(SessionFactory.class).getCurrentSession();
+          statistics.clear();
+          Long previousId = null;
+          for(int ix = 0;ix < 3;ix++) {
+            CrysonTestPooledEntity entity = new CrysonTestPooledEntity();
+            entity.setName("pooled");
+            Long id = (Long)session.save(entity);
+            if (previousId != null) {
+              assertEquals(previousId + 1, id.longValue());
+            }
+            previousId = id;
+          }
+          assertEquals(0, statistics.getEntityInsertCount());
+          session.flush();
+          assertEquals(3, statistics.getEntityInsertCount());
+        }
+      });
+    } finally {
+      statistics.setStatisticsEnabled(false);
+      deleteTestEntities("CrysonTestPooledEntity", "pooled");
+    }
+  }
+
+  @Test
+  public void shouldPageThroughAllEntitiesByKeysetCursor() throws Exception {
+    Session session = Application.get(SessionFactory.class).openSession();
+    session.beginTransaction();
+    for(int ix = 0;ix < 5;ix++) {
+      CrysonTestPooledEntity entity = new CrysonTestPooledEntity();
+      entity.setName("paged");
+      session.save(entity);
+    }
+    session.getTransaction().commit();
+    List<Long> expectedIds = session.createQuery("select id from CrysonTestPooledEntity order by id").list();
+    session.close();
+
+    try {
+      List<Long> pagedIds = new ArrayList<Long>();
+      String cursor = null;
+      do {
+        GetMethod getMethod = new GetMethod("http://localhost:8789/cryson/CrysonTestPooledEntity/all?limit=2&count=true" + (cursor != null ? "&after=" + cursor : ""));
+        assertEquals(HttpStatus.SC_OK, httpClient.executeMethod(getMethod));
+        JsonArray page = crysonSerializer.parse(getMethod.getResponseBodyAsString()).getAsJsonArray();
+        assertTrue(page.size() <= 2);
+        for(JsonElement entityElement : page) {
+          pagedIds.add(entityElement.getAsJsonObject().get("id").getAsLong());
+        }
+        assertEquals(String.valueOf(expectedIds.size()), getMethod.getResponseHeader("X-Cryson-Total-Count").getValue());
+        cursor = getMethod.getResponseHeader("X-Cryson-Next-Cursor") != null ? getMethod.getResponseHeader("X-Cryson-Next-Cursor").getValue() : null;
+      } while (cursor != null);
+
+      assertEquals(expectedIds, pagedIds);
+    } finally {
+      deleteTestEntities("CrysonTestPooledEntity", "paged");
+    }
+  }
+
+  @Test
+  public void shouldBindPaginationNamedParametersDeclaredByNamedQueries() throws Exception {
+    Session session = Application.get(SessionFactory.class).openSession();
+    session.beginTransaction();
+    for(String name : new String[] {"limited-a", "limited-b", "limited-c"}) {
+      CrysonTestPooledEntity entity = new CrysonTestPooledEntity();
+      entity.setName(name);
+      session.save(entity);
+    }
+    session.getTransaction().commit();
+    session.close();
+
+    try {
+      GetMethod getMethod = new GetMethod("http://localhost:8789/cryson/namedQuery/CrysonTestPooledEntity.findByNameAfter?after=limited-a&limit=1");
+      assertEquals(HttpStatus.SC_OK, httpClient.executeMethod(getMethod));
+      JsonArray page = crysonSerializer.parse(getMethod.getResponseBodyAsString()).getAsJsonArray();
+      assertEquals(1, page.size());
+      assertEquals("limited-b", page.get(0).getAsJsonObject().get("name").getAsString());
+
+      getMethod = new GetMethod("http://localhost:8789/cryson/namedQuery/CrysonTestEntity.findByName?name=created&limit=1&after=1");
+      assertEquals(HttpStatus.SC_BAD_REQUEST, httpClient.executeMethod(getMethod));
+    } finally {
+      deleteTestEntities("CrysonTestPooledEntity", "limited-a", "limited-b", "limited-c");
+    }
+  }
+
+  @Test
+  public void shouldExportAllEntitiesAsNewlineDelimitedJson() throws Exception {
+    Session session = Application.get(SessionFactory.class).openSession();
+    session.beginTransaction();
+    for(int ix = 0;ix < 3;ix++) {
+      CrysonTestPooledEntity entity = new CrysonTestPooledEntity();
+      entity.setName("exported");
+      session.save(entity);
+    }
+    session.getTransaction().commit();
+    List<Long> expectedIds = session.createQuery("select id from CrysonTestPooledEntity order by id").list();
+    session.close();
+
+    try {
+      GetMethod getMethod = new GetMethod("http://localhost:8789/cryson/CrysonTestPooledEntity/export");
+      assertEquals(HttpStatus.SC_OK, httpClient.executeMethod(getMethod));
+      assertTrue(getMethod.getResponseHeader("Content-Type").getValue().startsWith("application/x-ndjson"));
+
+      List<Long> exportedIds = new ArrayList<Long>();
+      for(String line : getMethod.getResponseBodyAsString().split("\n")) {
+        JsonObject entity = crysonSerializer.parse(line).getAsJsonObject();
+        assertEquals("CrysonTestPooledEntity", entity.get("crysonEntityClass").getAsString());
+        exportedIds.add(entity.get("id").getAsLong());
+      }
+      assertEquals(expectedIds, exportedIds);
+    } finally {
+      deleteTestEntities("CrysonTestPooledEntity", "exported");
+    }
+  }
+
+  @Test
+  public void shouldNotLoadEntitiesExcludedByReadCriterion() throws Exception {
+    Session session = Application.get(SessionFactory.class).openSession();
+    session.beginTransaction();
+    String[] names = new String[6];
+    for(int ix = 0;ix < names.length;ix++) {
+      names[ix] = (ix % 3 == 0 ? CrysonTestRestrictedEntity.SECRET_PREFIX : "public") + "-criterion-" + ix;
+      CrysonTestRestrictedEntity entity = new CrysonTestRestrictedEntity();
+      entity.setName(names[ix]);
+      session.save(entity);
+    }
+    session.getTransaction().commit();
+    long readableCount = (Long)session.createQuery("select count(*) from CrysonTestRestrictedEntity where name not like :secret")
+            .setParameter("secret", CrysonTestRestrictedEntity.SECRET_PREFIX + "%")
+            .uniqueResult();
+    session.close();
+
+    Statistics statistics = Application.get(SessionFactory.class).getStatistics();
+    statistics.setStatisticsEnabled(true);
+    statistics.clear();
+    try {
+      GetMethod getMethod = new GetMethod("http://localhost:8789/cryson/CrysonTestRestrictedEntity/all?count=true");
+      assertEquals(HttpStatus.SC_OK, httpClient.executeMethod(getMethod));
+      JsonArray entities = crysonSerializer.parse(getMethod.getResponseBodyAsString()).getAsJsonArray();
+      assertEquals(readableCount, entities.size());
+      int createdReadableEntities = 0;
+      for(JsonElement entityElement : entities) {
+        String name = entityElement.getAsJsonObject().get("name").getAsString();
+        assertFalse(name.startsWith(CrysonTestRestrictedEntity.SECRET_PREFIX));
+        createdReadableEntities += name.contains("-criterion-") ? 1 : 0;
+      }
+      assertEquals(4, createdReadableEntities);
+      assertEquals(String.valueOf(readableCount), getMethod.getResponseHeader("X-Cryson-Total-Count").getValue());
+      assertEquals(readableCount, statistics.getEntityLoadCount());
+    } finally {
+      statistics.setStatisticsEnabled(false);
+      deleteTestEntities("CrysonTestRestrictedEntity", names);
+    }
+  }
+
+  @Test
+  public void shouldNotFlushWhenReading() throws Exception {
+    Session session = Application.get(SessionFactory.class).openSession();
+    session.beginTransaction();
+    CrysonTestEntity entity = new CrysonTestEntity();
+    entity.setName("unflushed");
+    session.save(entity);
+    session.getTransaction().commit();
+    session.close();
+
+    Statistics statistics = Application.get(SessionFactory.class).getStatistics();
+    statistics.setStatisticsEnabled(true);
+    statistics.clear();
+    try {
+      GetMethod getMethod = new GetMethod("http://localhost:8789/cryson/CrysonTestEntity/all");
+      assertEquals(HttpStatus.SC_OK, httpClient.executeMethod(getMethod));
+      assertTrue(statistics.getEntityLoadCount() > 0);
+      assertEquals(0, statistics.getFlushCount());
+    } finally {
+      statistics.setStatisticsEnabled(false);
+      deleteTestEntities("CrysonTestEntity", "unflushed");
+    }
+  }
+
+  @Test
+  public void shouldFetchRequestedCollectionsWithoutOneQueryPerEntity() throws Exception {
+    Session session = Application.get(SessionFactory.class).openSession();
+    session.beginTransaction();
+    for(int ix = 0;ix < 5;ix++) {
+      CrysonTestEntity parent = new CrysonTestEntity();
+      parent.setName("fetchPlan");
+      session.save(parent);
+      for(int childIx = 0;childIx < 2;childIx++) {
+        CrysonTestChildEntity child = new CrysonTestChildEntity();
+        child.setParent(parent);
+        session.save(child);
+      }
+    }
+    session.getTransaction().commit();
+    session.close();
+
+    Statistics statistics = Application.get(SessionFactory.class).getStatistics();
+    statistics.setStatisticsEnabled(true);
+    statistics.clear();
+    try {
+      GetMethod getMethod = new GetMethod("http://localhost:8789/cryson/CrysonTestEntity/all?fetch=childEntities");
+      assertEquals(HttpStatus.SC_OK, httpClient.executeMethod(getMethod));
+
+      int fetchedParents = 0;
+      for(JsonElement entityElement : crysonSerializer.parse(getMethod.getResponseBodyAsString()).getAsJsonArray()) {
+        if (entityElement.getAsJsonObject().get("name").toString().equals("\"fetchPlan\"")) {
+          assertEquals(2, entityElement.getAsJsonObject().get("childEntities").getAsJsonArray().size());
+          fetchedParents++;
+        }
+      }
+      assertEquals(5, fetchedParents);
+      assertEquals(2, statistics.getPrepareStatementCount());
+    } finally {
+      statistics.setStatisticsEnabled(false);
+      deleteTestEntities("CrysonTestEntity", "fetchPlan");
+    }
+  }
+
+  @Test
+  public void shouldInitializeProxiesInOneQueryPerBatch() throws Exception {
+    final List<Long> ids = new ArrayList<Long>();
+    Session session = Application.get(SessionFactory.class).openSession();
+    session.beginTransaction();
+    for(int ix = 0;ix < 4;ix++) {
+      CrysonTestEntity entity = new CrysonTestEntity();
+      entity.setName("proxied");
+      ids.add((Long)session.save(entity));
+    }
+    session.getTransaction().commit();
+    session.close();
+
+    final Statistics statistics = Application.get(SessionFactory.class).getStatistics();
+    statistics.setStatisticsEnabled(true);
+    try {
+      new TransactionTemplate(Application.get(PlatformTransactionManager.class)).execute(new TransactionCallbackWithoutResult() {
+        protected void doInTransactionWithoutResult(TransactionStatus transactionStatus) {
+          List<Object> proxies = new ArrayList<Object>();
+          for(Long id : ids) {
+            proxies.add(Application.get(SessionFactory.class).getCurrentSession().load(CrysonTestEntity.class, id));
+          }
+          long savedQueries = Application.get(CrysonMetrics.class).get(ProxyBatchInitializer.SAVED_QUERIES_METRIC);
+          statistics.clear();
+
+          Application.get(ProxyBatchInitializer.class).initialize(proxies, Collections.<String>emptySet());
+
+          assertEquals(1, statistics.getPrepareStatementCount());
+          for(Object proxy : proxies) {
+            assertTrue(Hibernate.isInitialized(proxy));
+          }
+          assertEquals(savedQueries + ids.size() - 1, Application.get(CrysonMetrics.class).get(ProxyBatchInitializer.SAVED_QUERIES_METRIC));
+        }
+      });
+    } finally {
+      statistics.setStatisticsEnabled(false);
+      deleteTestEntities("CrysonTestEntity", "proxied");
+    }
+  }
+
 }
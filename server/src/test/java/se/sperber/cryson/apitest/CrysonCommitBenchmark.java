@@ -0,0 +1,107 @@
+/*
+  Cryson
+  
+  Copyright 2011-2012 Björn Sperber (cryson@sperber.se)
+  
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  
+  http://www.apache.org/licenses/LICENSE-2.0
+  
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package se.sperber.cryson.apitest;
+
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpStatus;
+import org.apache.commons.httpclient.UsernamePasswordCredentials;
+import org.apache.commons.httpclient.auth.AuthScope;
+import org.apache.commons.httpclient.methods.PostMethod;
+import org.apache.commons.httpclient.methods.StringRequestEntity;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import se.sperber.cryson.CrysonServer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares commit throughput for entities with IDENTITY ids and CrysonIdGenerator ids.
+ * Not picked up by the default surefire includes; run with
+ * mvn test -Dtest=CrysonCommitBenchmark
+ */
+public class CrysonCommitBenchmark {
+
+  private static final int ENTITIES_PER_COMMIT = 2000;
+  private static final int WARMUP_ROUNDS = 3;
+  private static final int MEASURED_ROUNDS = 10;
+
+  private static CrysonServer crysonServer;
+  private static HttpClient httpClient;
+
+  @BeforeClass
+  public static void setup() throws Exception {
+    crysonServer = new CrysonServer();
+    crysonServer.init(new String[]{"cryson-test.properties"});
+    crysonServer.start();
+    httpClient = new HttpClient();
+    httpClient.getState().setCredentials(new AuthScope("localhost", 8789, AuthScope.ANY_REALM), new UsernamePasswordCredentials("test", "testpassword"));
+    httpClient.getParams().setAuthenticationPreemptive(true);
+  }
+
+  @AfterClass
+  public static void teardown() throws Exception {
+    crysonServer.stop();
+    crysonServer.destroy();
+  }
+
+  @Test
+  public void commitWithAndWithoutPooledIds() throws Exception {
+    double identityEntitiesPerSecond = measureCommits("CrysonTestIdentityEntity");
+    double pooledEntitiesPerSecond = measureCommits("CrysonTestPooledEntity");
+    System.out.println(String.format("Committed %d x %d entities: %.0f entities/s with IDENTITY ids, %.0f entities/s with pooled ids",
+            MEASURED_ROUNDS, ENTITIES_PER_COMMIT, identityEntitiesPerSecond, pooledEntitiesPerSecond));
+  }
+
+  private double measureCommits(String entityClassName) throws Exception {
+    String commitJson = givenCommitJson(entityClassName);
+
+    for (int round = 0;round < WARMUP_ROUNDS;round++) {
+      commit(commitJson);
+    }
+
+    long startTime = System.nanoTime();
+    for (int round = 0;round < MEASURED_ROUNDS;round++) {
+      commit(commitJson);
+    }
+    long elapsedNanos = System.nanoTime() - startTime;
+
+    double entitiesPerSecond = (double)ENTITIES_PER_COMMIT * MEASURED_ROUNDS / (elapsedNanos / 1e9);
+    assertTrue(entitiesPerSecond > 0);
+    return entitiesPerSecond;
+  }
+
+  private void commit(String commitJson) throws Exception {
+    PostMethod postMethod = new PostMethod("http://localhost:8789/cryson/commit");
+    postMethod.setRequestEntity(new StringRequestEntity(commitJson, "application/json", "UTF-8"));
+    assertEquals(HttpStatus.SC_OK, httpClient.executeMethod(postMethod));
+    postMethod.releaseConnection();
+  }
+
+  private String givenCommitJson(String entityClassName) {
+    StringBuilder commitJson = new StringBuilder("{\"updatedEntities\":[], \"deletedEntities\":[], \"persistedEntities\":[");
+    for (int ix = 1;ix <= ENTITIES_PER_COMMIT;ix++) {
+      commitJson.append(ix > 1 ? "," : "");
+      commitJson.append("{\"crysonEntityClass\":\"").append(entityClassName).append("\",\"id\":-").append(ix).append(",\"name\":\"benchmark ").append(ix).append("\"}");
+    }
+    return commitJson.append("]}").toString();
+  }
+
+}
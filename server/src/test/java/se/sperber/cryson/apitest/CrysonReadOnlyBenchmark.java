@@ -0,0 +1,149 @@
+/*
+  Cryson
+  
+  Copyright 2011-2012 Björn Sperber (cryson@sperber.se)
+  
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  
+  http://www.apache.org/licenses/LICENSE-2.0
+  
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package se.sperber.cryson.apitest;
+
+import org.hibernate.FlushMode;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
+import se.sperber.cryson.CrysonServer;
+import se.sperber.cryson.initialization.Application;
+import se.sperber.cryson.testutil.CrysonTestPooledEntity;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares reading 50k rows in read-write and read-only (FlushMode.MANUAL, default read-only) sessions.
+ * Not picked up by the default surefire includes; run with
+ * mvn test -Dtest=CrysonReadOnlyBenchmark
+ */
+public class CrysonReadOnlyBenchmark {
+
+  private static final int ROW_COUNT = 50000;
+  private static final int WARMUP_ROUNDS = 3;
+  private static final int MEASURED_ROUNDS = 5;
+
+  private static CrysonServer crysonServer;
+
+  @BeforeClass
+  public static void setup() throws Exception {
+    crysonServer = new CrysonServer();
+    crysonServer.init(new String[]{"cryson-test.properties"});
+    crysonServer.start();
+    givenRows();
+  }
+
+  @AfterClass
+  public static void teardown() throws Exception {
+    crysonServer.stop();
+    crysonServer.destroy();
+  }
+
+  @Test
+  public void readFiftyThousandRows() throws Exception {
+    Measurement readWrite = measureReads(false);
+    Measurement readOnly = measureReads(true);
+    System.out.println(String.format("Read %d rows, read-write: %.1f ms CPU, %.1f MB allocated, %.1f MB retained",
+            ROW_COUNT, readWrite.cpuMillis, readWrite.allocatedMegabytes, readWrite.retainedMegabytes));
+    System.out.println(String.format("Read %d rows, read-only:  %.1f ms CPU, %.1f MB allocated, %.1f MB retained",
+            ROW_COUNT, readOnly.cpuMillis, readOnly.allocatedMegabytes, readOnly.retainedMegabytes));
+  }
+
+  private Measurement measureReads(boolean readOnly) {
+    for (int round = 0;round < WARMUP_ROUNDS;round++) {
+      read(readOnly, false);
+    }
+    Measurement measurement = new Measurement();
+    for (int round = 0;round < MEASURED_ROUNDS;round++) {
+      Measurement roundMeasurement = read(readOnly, false);
+      measurement.cpuMillis += roundMeasurement.cpuMillis / MEASURED_ROUNDS;
+      measurement.allocatedMegabytes += roundMeasurement.allocatedMegabytes / MEASURED_ROUNDS;
+    }
+    measurement.retainedMegabytes = read(readOnly, true).retainedMegabytes;
+    return measurement;
+  }
+
+  // Covers the read and its commit, where a read-write session dirty checks every loaded entity
+  private Measurement read(final boolean readOnly, final boolean measureRetained) {
+    com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+    long threadId = Thread.currentThread().getId();
+    final Measurement measurement = new Measurement();
+    final long heapBefore = measureRetained ? usedHeap() : 0;
+    TransactionTemplate transactionTemplate = new TransactionTemplate(Application.get(PlatformTransactionManager.class));
+    transactionTemplate.setReadOnly(readOnly);
+
+    long cpuBefore = threadMXBean.getCurrentThreadCpuTime();
+    long allocatedBefore = threadMXBean.getThreadAllocatedBytes(threadId);
+    transactionTemplate.execute(new TransactionCallback<Object>() {
+      public Object doInTransaction(TransactionStatus transactionStatus) {
+        Session session = Application.get(SessionFactory.class).getCurrentSession();
+        if (readOnly) {
+          session.setFlushMode(FlushMode.MANUAL);
+          session.setDefaultReadOnly(true);
+        }
+        assertEquals(ROW_COUNT, session.createQuery("from CrysonTestPooledEntity").list().size());
+        if (measureRetained) {
+          measurement.retainedMegabytes = (usedHeap() - heapBefore) / 1e6;
+        }
+        return null;
+      }
+    });
+    measurement.cpuMillis = (threadMXBean.getCurrentThreadCpuTime() - cpuBefore) / 1e6;
+    measurement.allocatedMegabytes = (threadMXBean.getThreadAllocatedBytes(threadId) - allocatedBefore) / 1e6;
+    return measurement;
+  }
+
+  private static long usedHeap() {
+    System.gc();
+    Runtime runtime = Runtime.getRuntime();
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+
+  private static void givenRows() {
+    Session session = Application.get(SessionFactory.class).openSession();
+    session.beginTransaction();
+    session.createQuery("delete from CrysonTestPooledEntity").executeUpdate();
+    for (int ix = 0;ix < ROW_COUNT;ix++) {
+      CrysonTestPooledEntity entity = new CrysonTestPooledEntity();
+      entity.setName("row " + ix);
+      session.save(entity);
+      if (ix % 1000 == 999) {
+        session.flush();
+        session.clear();
+      }
+    }
+    session.getTransaction().commit();
+    session.close();
+  }
+
+  private static class Measurement {
+    double cpuMillis;
+    double allocatedMegabytes;
+    double retainedMegabytes;
+  }
+
+}
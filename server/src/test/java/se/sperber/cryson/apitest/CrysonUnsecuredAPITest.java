@@ -0,0 +1,86 @@
+/*
+  Cryson
+  
+  Copyright 2011-2012 Björn Sperber (cryson@sperber.se)
+  
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  
+  http://www.apache.org/licenses/LICENSE-2.0
+  
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package se.sperber.cryson.apitest;
+
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpStatus;
+import org.apache.commons.httpclient.methods.PostMethod;
+import org.apache.commons.httpclient.methods.StringRequestEntity;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import se.sperber.cryson.CrysonServer;
+import se.sperber.cryson.initialization.Application;
+import se.sperber.cryson.testutil.CrysonTestRestrictedEntity;
+
+import static org.junit.Assert.assertEquals;
+
+public class CrysonUnsecuredAPITest {
+
+  private static CrysonServer crysonServer;
+  private static HttpClient httpClient;
+
+  @BeforeClass
+  public static void setup() throws Exception
+  {
+    crysonServer = new CrysonServer();
+    crysonServer.init(new String[]{"cryson-test.properties", "cryson-unsecured-test.properties"});
+    crysonServer.start();
+    httpClient = new HttpClient();
+  }
+
+  @AfterClass
+  public static void teardown() throws Exception
+  {
+    crysonServer.stop();
+    crysonServer.destroy();
+  }
+
+  @Test
+  public void shouldCommitRestrictableEntitiesWithoutCheckingPermissions() throws Exception {
+    Session session = Application.get(SessionFactory.class).openSession();
+    session.beginTransaction();
+    CrysonTestRestrictedEntity entity = new CrysonTestRestrictedEntity();
+    entity.setName(CrysonTestRestrictedEntity.SECRET_PREFIX + "-unsecured");
+    session.save(entity);
+    session.getTransaction().commit();
+    session.close();
+
+    try {
+      String commitJson = "{\"updatedEntities\":[{\"crysonEntityClass\":\"CrysonTestRestrictedEntity\",\"id\":" + entity.getId() + ",\"name\":\"" + CrysonTestRestrictedEntity.SECRET_PREFIX + "-committed\"}], \"deletedEntities\":[], \"persistedEntities\":[]}";
+      PostMethod postMethod = new PostMethod("http://localhost:8790/cryson/commit");
+      postMethod.setRequestEntity(new StringRequestEntity(commitJson, "application/json", "UTF-8"));
+      assertEquals(HttpStatus.SC_OK, httpClient.executeMethod(postMethod));
+
+      session = Application.get(SessionFactory.class).openSession();
+      CrysonTestRestrictedEntity committedEntity = (CrysonTestRestrictedEntity)session.get(CrysonTestRestrictedEntity.class, entity.getId());
+      assertEquals(CrysonTestRestrictedEntity.SECRET_PREFIX + "-committed", committedEntity.getName());
+      session.close();
+    } finally {
+      session = Application.get(SessionFactory.class).openSession();
+      session.beginTransaction();
+      session.createQuery("delete from CrysonTestRestrictedEntity where id = :id").setParameter("id", entity.getId()).executeUpdate();
+      session.getTransaction().commit();
+      session.close();
+    }
+  }
+
+}
@@ -99,6 +99,7 @@ public class CrysonRepositoryTest {
     CrysonRepository crysonRepository = new CrysonRepository();
     crysonRepository.setSessionFactory(sessionFactory);
     crysonRepository.setReflectionHelper(reflectionHelper);
+    crysonRepository.setFetchPlanExecutor(new FetchPlanExecutor());
 
     return crysonRepository;
   }
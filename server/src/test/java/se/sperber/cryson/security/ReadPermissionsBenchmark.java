@@ -0,0 +1,119 @@
+/*
+  Cryson
+  
+  Copyright 2011-2012 Björn Sperber (cryson@sperber.se)
+  
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  
+  http://www.apache.org/licenses/LICENSE-2.0
+  
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package se.sperber.cryson.security;
+
+import org.aopalliance.intercept.MethodInvocation;
+import org.junit.Test;
+import org.springframework.expression.EvaluationContext;
+import org.springframework.expression.Expression;
+import org.springframework.security.access.expression.method.DefaultMethodSecurityExpressionHandler;
+import org.springframework.security.authentication.TestingAuthenticationToken;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
+import se.sperber.cryson.testutil.CrysonTestEntity;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Not picked up by the default surefire includes; run with
+ * mvn test -Dtest=ReadPermissionsBenchmark
+ */
+public class ReadPermissionsBenchmark {
+
+  private static final int ENTITY_COUNT = 100000;
+  private static final int WARMUP_ROUNDS = 10;
+  private static final int MEASURED_ROUNDS = 20;
+
+  @Test
+  public void filterHundredThousandEntities() throws Exception {
+    Authentication authentication = new TestingAuthenticationToken("test", "testpassword");
+    SecurityContextHolder.getContext().setAuthentication(authentication);
+    List<Object> entities = givenEntities();
+
+    DefaultMethodSecurityExpressionHandler expressionHandler = new DefaultMethodSecurityExpressionHandler();
+    expressionHandler.setPermissionEvaluator(new CrysonPermissionEvaluator());
+    Expression filterExpression = expressionHandler.getExpressionParser().parseExpression("hasPermission(filterObject, 'read')");
+    MethodInvocation methodInvocation = mock(MethodInvocation.class);
+
+    long postFilterNanos = 0;
+    long readPermissionsNanos = 0;
+    for (int round = 0;round < WARMUP_ROUNDS + MEASURED_ROUNDS;round++) {
+      // As before: SpEL filtering of a copy through the permission evaluator, then the serializer asking again
+      long startTime = System.nanoTime();
+      EvaluationContext evaluationContext = expressionHandler.createEvaluationContext(authentication, methodInvocation);
+      List<?> postFiltered = (List<?>) expressionHandler.filter(new ArrayList<Object>(entities), filterExpression, evaluationContext);
+      int postFilteredReadable = countReadableAsSerializerDid(postFiltered, authentication);
+      long postFilterElapsed = System.nanoTime() - startTime;
+
+      startTime = System.nanoTime();
+      ReadPermissions.beginRequest();
+      int readable;
+      try {
+        readable = countReadable(ReadPermissions.filterReadable(entities));
+      } finally {
+        ReadPermissions.endRequest();
+      }
+      long readPermissionsElapsed = System.nanoTime() - startTime;
+
+      assertEquals(postFilteredReadable, readable);
+      if (round >= WARMUP_ROUNDS) {
+        postFilterNanos += postFilterElapsed;
+        readPermissionsNanos += readPermissionsElapsed;
+      }
+    }
+
+    System.out.println(String.format("Filtered and checked %d entities: @PostFilter %.1f ms/list, ReadPermissions %.1f ms/list",
+            ENTITY_COUNT, postFilterNanos / 1e6 / MEASURED_ROUNDS, readPermissionsNanos / 1e6 / MEASURED_ROUNDS));
+  }
+
+  private int countReadableAsSerializerDid(List<?> entities, Authentication authentication) {
+    int readable = 0;
+    for (Object entity : entities) {
+      if (((Restrictable) entity).isReadableBy(authentication)) {
+        readable++;
+      }
+    }
+    return readable;
+  }
+
+  private int countReadable(List<?> entities) {
+    int readable = 0;
+    for (Object entity : entities) {
+      if (ReadPermissions.isReadable(entity)) {
+        readable++;
+      }
+    }
+    return readable;
+  }
+
+  private List<Object> givenEntities() {
+    List<Object> entities = new ArrayList<Object>(ENTITY_COUNT);
+    for (long id = 1;id <= ENTITY_COUNT;id++) {
+      CrysonTestEntity entity = new CrysonTestEntity(id);
+      entity.setShouldBeReadable(id % 3 != 0);
+      entities.add(entity);
+    }
+    return entities;
+  }
+
+}
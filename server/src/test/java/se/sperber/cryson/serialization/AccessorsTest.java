@@ -0,0 +1,57 @@
+package se.sperber.cryson.serialization;
+
+import org.junit.Test;
+import se.sperber.cryson.testutil.CrysonTestEntity;
+
+import java.lang.reflect.Field;
+
+import static org.junit.Assert.*;
+
+public class AccessorsTest {
+
+  @Test
+  public void shouldReadAndWriteThroughPublicMethods() throws Exception {
+    CrysonTestEntity entity = new CrysonTestEntity();
+
+    Accessors.setter(CrysonTestEntity.class.getMethod("setId", Long.class)).set(entity, 17l);
+
+    assertEquals(17l, Accessors.getter(CrysonTestEntity.class.getMethod("getId")).get(entity));
+  }
+
+  @Test
+  public void shouldBindPublicMethodsWithoutMethodHandleFallback() throws Exception {
+    assertTrue(Accessors.getter(CrysonTestEntity.class.getMethod("getId")).getClass().isSynthetic());
+    assertTrue(Accessors.setter(CrysonTestEntity.class.getMethod("setId", Long.class)).getClass().isSynthetic());
+  }
+
+  @Test
+  public void shouldBoxPrimitiveReturnValues() throws Exception {
+    CrysonTestEntity entity = new CrysonTestEntity();
+    entity.setId(3l);
+
+    assertEquals(6l, Accessors.getter(CrysonTestEntity.class.getMethod("getDoubleId")).get(entity));
+  }
+
+  @Test
+  public void shouldReadAndWritePrivateFields() throws Exception {
+    CrysonTestEntity entity = new CrysonTestEntity();
+    Field nameField = CrysonTestEntity.class.getDeclaredField("name");
+
+    Accessors.setter(nameField).set(entity, "test");
+
+    assertEquals("test", Accessors.getter(nameField).get(entity));
+    assertEquals("test", entity.getName());
+  }
+
+  @Test
+  public void shouldReadThroughNonPublicMethods() throws Exception {
+    assertEquals("hidden", Accessors.getter(HiddenGetter.class.getDeclaredMethod("getHidden")).get(new HiddenGetter()));
+  }
+
+  private static class HiddenGetter {
+    private String getHidden() {
+      return "hidden";
+    }
+  }
+
+}
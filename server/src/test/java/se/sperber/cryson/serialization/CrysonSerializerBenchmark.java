@@ -0,0 +1,91 @@
+/*
+  Cryson
+  
+  Copyright 2011-2012 Björn Sperber (cryson@sperber.se)
+  
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  
+  http://www.apache.org/licenses/LICENSE-2.0
+  
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package se.sperber.cryson.serialization;
+
+import org.junit.Test;
+import se.sperber.cryson.testutil.CrysonTestChildEntity;
+import se.sperber.cryson.testutil.CrysonTestEntity;
+
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Not picked up by the default surefire includes; run with
+ * mvn test -Dtest=CrysonSerializerBenchmark
+ */
+public class CrysonSerializerBenchmark {
+
+  private static final int ENTITY_COUNT = 10000;
+  private static final int WARMUP_ROUNDS = 10;
+  private static final int MEASURED_ROUNDS = 30;
+
+  @Test
+  public void serializeTenThousandEntities() throws Exception {
+    CrysonSerializer crysonSerializer = CrysonSerializerTest.givenCrysonSerializer();
+    List<CrysonTestEntity> entities = givenEntities();
+    Writer nullWriter = new NullWriter();
+
+    for (int round = 0;round < WARMUP_ROUNDS;round++) {
+      crysonSerializer.serialize(entities, Collections.<String>emptySet(), nullWriter);
+    }
+
+    long startTime = System.nanoTime();
+    for (int round = 0;round < MEASURED_ROUNDS;round++) {
+      crysonSerializer.serialize(entities, Collections.<String>emptySet(), nullWriter);
+    }
+    long elapsedNanos = System.nanoTime() - startTime;
+
+    double entitiesPerSecond = (double)ENTITY_COUNT * MEASURED_ROUNDS / (elapsedNanos / 1e9);
+    System.out.println(String.format("Serialized %d x %d entities: %.1f ms/list, %.0f entities/s",
+            MEASURED_ROUNDS, ENTITY_COUNT, elapsedNanos / 1e6 / MEASURED_ROUNDS, entitiesPerSecond));
+    assertTrue(entitiesPerSecond > 0);
+  }
+
+  private List<CrysonTestEntity> givenEntities() {
+    List<CrysonTestEntity> entities = new ArrayList<CrysonTestEntity>(ENTITY_COUNT);
+    for (long id = 1;id <= ENTITY_COUNT;id++) {
+      CrysonTestEntity entity = new CrysonTestEntity(id);
+      entity.setName("entity " + id);
+      entity.setVersion(id % 7);
+      Set<CrysonTestChildEntity> childEntities = new HashSet<CrysonTestChildEntity>();
+      for (long childId = 0;childId < 3;childId++) {
+        CrysonTestChildEntity childEntity = new CrysonTestChildEntity();
+        childEntity.setId(id * 10 + childId);
+        childEntity.setParent(entity);
+        childEntities.add(childEntity);
+      }
+      entity.setChildEntities(childEntities);
+      entities.add(entity);
+    }
+    return entities;
+  }
+
+  private static class NullWriter extends Writer {
+    public void write(char[] buffer, int offset, int length) {}
+    public void flush() {}
+    public void close() {}
+  }
+
+}
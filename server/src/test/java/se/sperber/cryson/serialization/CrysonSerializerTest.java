@@ -18,24 +18,33 @@
 
 package se.sperber.cryson.serialization;
 
+import com.google.common.base.Function;
 import com.google.common.collect.Sets;
 import com.google.gson.JsonElement;
+import org.hibernate.collection.internal.PersistentSet;
 import se.sperber.cryson.testutil.CrysonTestChildEntity;
 import se.sperber.cryson.testutil.CrysonTestEntity;
 import org.junit.Test;
 import org.junit.experimental.runners.Enclosed;
 import org.junit.runner.RunWith;
 
+import java.io.StringReader;
+import java.io.StringWriter;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
 
 @RunWith(Enclosed.class)
 public class CrysonSerializerTest {
 
-  private static CrysonSerializer givenCrysonSerializer() {
+  static CrysonSerializer givenCrysonSerializer() {
     CrysonSerializer crysonSerializer = new CrysonSerializer();
     ReflectionHelper reflectionHelper = new ReflectionHelper();
     LazyAssociationExclusionStrategy lazyAssociationExclusionStrategy = new LazyAssociationExclusionStrategy();
@@ -70,6 +79,43 @@ public class CrysonSerializerTest {
       assertEquals(expectedSerializedChildEntity, serializedChildEntity);
     }
 
+    @Test
+    public void shouldWriteLoadedIdsWithoutInitializingLazyCollections() throws Exception {
+      CrysonSerializer crysonSerializer = givenCrysonSerializer();
+
+      PersistentSet uninitializedChildEntities = new PersistentSet();
+      uninitializedChildEntities.setSnapshot(1L, "CrysonTestEntity.childEntities", null);
+      CrysonTestEntity testEntity = new CrysonTestEntity();
+      testEntity.setId(1L);
+      testEntity.setName("test");
+      testEntity.setChildEntities(uninitializedChildEntities);
+
+      LazyCollectionIds lazyCollectionIds = new LazyCollectionIds();
+      lazyCollectionIds.addId("CrysonTestEntity.childEntities", 1L, 100L);
+      lazyCollectionIds.addId("CrysonTestEntity.childEntities", 1L, 101L);
+
+      String serializedEntity = crysonSerializer.serialize(testEntity, Collections.<String>emptySet(), lazyCollectionIds);
+      assertEquals("{\"id\":1,\"name\":\"test\",\"version\":0,\"crysonEntityClass\":\"CrysonTestEntity\",\"doubleId\":2,\"childEntities_cryson_ids\":[100,101]}", serializedEntity);
+      assertFalse(uninitializedChildEntities.wasInitialized());
+    }
+
+    @Test
+    public void shouldStreamSameOutputAsSerialize() throws Exception {
+      CrysonSerializer crysonSerializer = givenCrysonSerializer();
+
+      CrysonTestChildEntity testChildEntity = new CrysonTestChildEntity();
+      testChildEntity.setId(100L);
+      CrysonTestEntity testEntity = new CrysonTestEntity();
+      testEntity.setId(1L);
+      testEntity.setName("<test>");
+      testEntity.setChildEntities(Collections.singleton(testChildEntity));
+      testChildEntity.setParent(testEntity);
+
+      StringWriter writer = new StringWriter();
+      crysonSerializer.serialize(Arrays.asList(testEntity), Sets.newHashSet("childEntities"), writer);
+      assertEquals(crysonSerializer.serializeTree(crysonSerializer.serializeToTree(Arrays.asList(testEntity), Sets.newHashSet("childEntities"))), writer.toString());
+    }
+
     @Test
     public void shouldSerializeUnauthorizedEntity() {
       CrysonSerializer serializer = givenCrysonSerializer();
@@ -163,6 +209,91 @@ public class CrysonSerializerTest {
       assertEquals((Long)1l, deserializedChildEntity.getParent().getId());
     }
 
+    @Test
+    public void shouldDeserializeFieldsTypedByGenericSuperclasses() throws Exception {
+      CrysonSerializer crysonSerializer = givenCrysonSerializer();
+
+      LongValuedEntity deserializedEntity = crysonSerializer.deserialize("{\"value\":5,\"values\":[6]}", LongValuedEntity.class, null);
+
+      assertEquals((Long)5l, deserializedEntity.value);
+      assertEquals(Arrays.asList(6l), deserializedEntity.values);
+    }
+
+    @Test
+    public void shouldReadCommittedEntitiesInOnePass() throws Exception {
+      CrysonSerializer crysonSerializer = givenCrysonSerializer();
+      crysonSerializer.registerEntityClasses(Arrays.<Class<?>>asList(CrysonTestEntity.class, CrysonTestChildEntity.class));
+
+      String json = "{\"persistedEntities\":[{\"id\":-1,\"name\":\"new\",\"crysonEntityClass\":\"CrysonTestEntity\"}," +
+              "{\"crysonEntityClass\":\"CrysonTestChildEntity\",\"id\":-2,\"parent_cryson_id\":-1}]," +
+              "\"updatedEntities\":[{\"crysonEntityClass\":\"CrysonTestEntity\",\"id\":1,\"childEntities_cryson_ids\":[-2,100]}]," +
+              "\"deletedEntities\":[]}";
+
+      CommittedEntities committedEntities = crysonSerializer.readCommittedEntities(new StringReader(json));
+
+      assertEquals(2, committedEntities.getPersistedEntities().size());
+      assertEquals(1, committedEntities.getUpdatedEntities().size());
+      assertEquals(0, committedEntities.getDeletedEntities().size());
+
+      CrysonTestEntity persistedEntity = (CrysonTestEntity)committedEntities.getPersistedEntities().get(0).getEntity();
+      assertEquals((Long)(-1l), persistedEntity.getId());
+      assertEquals("new", persistedEntity.getName());
+
+      DeserializedEntity persistedChildEntity = committedEntities.getPersistedEntities().get(1);
+      crysonSerializer.replaceTemporaryIds(persistedChildEntity, Collections.singletonMap(-1l, 10l));
+      assertEquals((Long)10l, ((CrysonTestChildEntity)persistedChildEntity.getEntity()).getParent().getId());
+
+      DeserializedEntity updatedEntity = committedEntities.getUpdatedEntities().get(0);
+      crysonSerializer.replaceTemporaryIds(updatedEntity, Collections.singletonMap(-2l, 20l));
+      Set<Long> childIds = new HashSet<Long>();
+      for(CrysonTestChildEntity childEntity : ((CrysonTestEntity)updatedEntity.getEntity()).getChildEntities()) {
+        childIds.add(childEntity.getId());
+      }
+      assertEquals(Sets.newHashSet(20l, 100l), childIds);
+    }
+
+    @Test
+    public void shouldResolveReferencesOfCommittedEntities() throws Exception {
+      CrysonSerializer crysonSerializer = givenCrysonSerializer();
+      crysonSerializer.registerEntityClasses(Arrays.<Class<?>>asList(CrysonTestEntity.class, CrysonTestChildEntity.class));
+
+      String json = "{\"updatedEntities\":[{\"crysonEntityClass\":\"CrysonTestEntity\",\"id\":1,\"childEntities_cryson_ids\":[2,3]}," +
+              "{\"crysonEntityClass\":\"CrysonTestChildEntity\",\"id\":2,\"parent_cryson_id\":1}]}";
+      CommittedEntities committedEntities = crysonSerializer.readCommittedEntities(new StringReader(json));
+
+      final CrysonTestEntity parent = new CrysonTestEntity(1l);
+      Function<Object, Object> resolver = new Function<Object, Object>() {
+        public Object apply(Object placeHolderObject) {
+          if (placeHolderObject instanceof CrysonTestEntity) {
+            return parent;
+          }
+          CrysonTestChildEntity childEntity = new CrysonTestChildEntity();
+          childEntity.setId(((CrysonTestChildEntity)placeHolderObject).getId() * 10);
+          return childEntity;
+        }
+      };
+
+      DeserializedEntity updatedParent = committedEntities.getUpdatedEntities().get(0);
+      crysonSerializer.resolveReferences(updatedParent, resolver);
+      Set<Long> childIds = new HashSet<Long>();
+      for(CrysonTestChildEntity childEntity : ((CrysonTestEntity)updatedParent.getEntity()).getChildEntities()) {
+        childIds.add(childEntity.getId());
+      }
+      assertEquals(Sets.newHashSet(20l, 30l), childIds);
+
+      DeserializedEntity updatedChild = committedEntities.getUpdatedEntities().get(1);
+      crysonSerializer.resolveReferences(updatedChild, resolver);
+      assertSame(parent, ((CrysonTestChildEntity)updatedChild.getEntity()).getParent());
+    }
+
+  }
+
+  static class ValuedEntity<T> {
+    T value;
+    List<T> values;
+  }
+
+  static class LongValuedEntity extends ValuedEntity<Long> {
   }
 
 }
@@ -0,0 +1,116 @@
+/*
+  Cryson
+  
+  Copyright 2011-2012 Björn Sperber (cryson@sperber.se)
+  
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  
+  http://www.apache.org/licenses/LICENSE-2.0
+  
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package se.sperber.cryson.service;
+
+import org.junit.Test;
+import org.junit.experimental.runners.Enclosed;
+import org.junit.runner.RunWith;
+import org.springframework.dao.CannotAcquireLockException;
+import se.sperber.cryson.exception.CrysonException;
+import se.sperber.cryson.metrics.CrysonMetrics;
+import se.sperber.cryson.repository.CrysonRepositoryExceptionTranslator;
+
+import java.sql.SQLException;
+import java.util.concurrent.Callable;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+@RunWith(Enclosed.class)
+public class CommitRetrierTest {
+
+  public static class WhenACommitHitsATransientLockFailure {
+
+    @Test
+    public void shouldRetryUntilTheCommitSucceeds() throws Exception {
+      CrysonMetrics crysonMetrics = new CrysonMetrics();
+      CommitRetrier commitRetrier = givenCommitRetrier(crysonMetrics, 3);
+
+      assertThat(commitRetrier.execute(givenCommitFailingTimes(2, new CannotAcquireLockException("Lock wait timeout"))), is("committed"));
+      assertThat(crysonMetrics.get(CommitRetrier.RETRIES_METRIC), is(2L));
+      assertThat(crysonMetrics.get(CommitRetrier.EXHAUSTED_RETRIES_METRIC), is(0L));
+    }
+
+    @Test
+    public void shouldClassifyWrappedDeadlocksBySqlState() throws Exception {
+      CrysonMetrics crysonMetrics = new CrysonMetrics();
+      CommitRetrier commitRetrier = givenCommitRetrier(crysonMetrics, 3);
+
+      SQLException deadlock = new SQLException("Deadlock found when trying to get lock", "40001", 1213);
+      assertThat(commitRetrier.execute(givenCommitFailingTimes(1, new CrysonException("Unclassified error", deadlock))), is("committed"));
+      assertThat(crysonMetrics.get(CommitRetrier.RETRIES_METRIC), is(1L));
+    }
+
+    @Test
+    public void shouldGiveUpAfterTheLastAttempt() throws Exception {
+      CrysonMetrics crysonMetrics = new CrysonMetrics();
+      CommitRetrier commitRetrier = givenCommitRetrier(crysonMetrics, 2);
+
+      try {
+        commitRetrier.execute(givenCommitFailingTimes(2, new CannotAcquireLockException("Lock wait timeout")));
+        fail();
+      } catch(CannotAcquireLockException e) {
+        assertThat(crysonMetrics.get(CommitRetrier.RETRIES_METRIC), is(1L));
+        assertThat(crysonMetrics.get(CommitRetrier.EXHAUSTED_RETRIES_METRIC), is(1L));
+      }
+    }
+
+  }
+
+  public static class WhenACommitHitsAnyOtherFailure {
+
+    @Test
+    public void shouldNotRetry() throws Exception {
+      CrysonMetrics crysonMetrics = new CrysonMetrics();
+      CommitRetrier commitRetrier = givenCommitRetrier(crysonMetrics, 3);
+
+      try {
+        commitRetrier.execute(givenCommitFailingTimes(1, new CrysonException("Unclassified error", new SQLException("Syntax error", "42000"))));
+        fail();
+      } catch(CrysonException e) {
+        assertThat(crysonMetrics.get(CommitRetrier.RETRIES_METRIC), is(0L));
+      }
+    }
+
+  }
+
+  private static CommitRetrier givenCommitRetrier(CrysonMetrics crysonMetrics, int maxAttempts) {
+    CommitRetrier commitRetrier = new CommitRetrier();
+    commitRetrier.setCrysonRepositoryExceptionTranslator(new CrysonRepositoryExceptionTranslator());
+    commitRetrier.setCrysonMetrics(crysonMetrics);
+    commitRetrier.setMaxAttempts(maxAttempts);
+    commitRetrier.setBackoffMillis(1);
+    return commitRetrier;
+  }
+
+  private static Callable<String> givenCommitFailingTimes(final int failures, final Exception failure) {
+    return new Callable<String>() {
+      private int attempts = 0;
+
+      public String call() throws Exception {
+        if (attempts++ < failures) {
+          throw failure;
+        }
+        return "committed";
+      }
+    };
+  }
+
+}
@@ -0,0 +1,69 @@
+/*
+  Cryson
+  
+  Copyright 2011-2012 Björn Sperber (cryson@sperber.se)
+  
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  
+  http://www.apache.org/licenses/LICENSE-2.0
+  
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package se.sperber.cryson.testutil;
+
+import se.sperber.cryson.annotation.CrysonMergeable;
+import se.sperber.cryson.repository.CrysonIdGenerator;
+
+import javax.persistence.*;
+import java.io.Serializable;
+
+@Entity
+@CrysonMergeable
+public class CrysonTestMergeableEntity implements Serializable {
+
+  @Id @GeneratedValue(generator = CrysonIdGenerator.NAME)
+  private Long id;
+
+  private String name;
+
+  private String status;
+
+  @Version
+  private long version;
+
+  public Long getId() {
+    return id;
+  }
+
+  public void setId(Long id) {
+    this.id = id;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public void setName(String name) {
+    this.name = name;
+  }
+
+  public String getStatus() {
+    return status;
+  }
+
+  public void setStatus(String status) {
+    this.status = status;
+  }
+
+  public long getVersion() {
+    return version;
+  }
+
+}
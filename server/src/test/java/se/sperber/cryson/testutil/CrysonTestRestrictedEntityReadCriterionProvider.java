@@ -0,0 +1,42 @@
+/*
+  Cryson
+  
+  Copyright 2011-2012 Björn Sperber (cryson@sperber.se)
+  
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  
+  http://www.apache.org/licenses/LICENSE-2.0
+  
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package se.sperber.cryson.testutil;
+
+import org.hibernate.criterion.Criterion;
+import org.hibernate.criterion.MatchMode;
+import org.hibernate.criterion.Restrictions;
+import org.springframework.security.core.Authentication;
+import org.springframework.stereotype.Component;
+import se.sperber.cryson.security.ReadCriterionProvider;
+import se.sperber.cryson.security.Restrictable;
+
+@Component
+public class CrysonTestRestrictedEntityReadCriterionProvider implements ReadCriterionProvider {
+
+  @Override
+  public Class<? extends Restrictable> getEntityClass() {
+    return CrysonTestRestrictedEntity.class;
+  }
+
+  @Override
+  public Criterion getReadCriterion(Authentication authentication) {
+    return Restrictions.not(Restrictions.like("name", CrysonTestRestrictedEntity.SECRET_PREFIX, MatchMode.START));
+  }
+
+}